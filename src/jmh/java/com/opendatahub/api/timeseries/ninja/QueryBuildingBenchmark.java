@@ -0,0 +1,121 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
+import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.miniparser.Token;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryPlanCache;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.SelectExpansion;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.WhereClauseParser;
+
+/**
+ * Where clause parsing, select expansion and the SQL generation of {@link DataFetcher},
+ * without a database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuildingBenchmark {
+
+	private static final String WHERE = "sorigin.eq.A22,"
+			+ "or(mvalue.gt.10,mvalue.lt.-5),"
+			+ "scode.ire.\\(TRENTO|rovereto\\)\\.*,"
+			+ "mvalidtime.gt.2024-01-15T10:30:00+02:00,"
+			+ "scoordinate.bbi.(11.0,46.0,12.0,47.0,4326),"
+			+ "smetadata.municipality.in.(Bolzano,Merano,Trento)";
+
+	private static final String WIDE_SELECT = "sname,scode,stype,sorigin,sactive,savailable,scoordinate,smetadata,"
+			+ "pname,pcode,ptype,tname,tunit,ttype,tdescription,tmetadata,"
+			+ "mvalue,mvalidtime,mtransactiontime,mperiod,prname,prversion,prlineage";
+
+	private static final OffsetDateTime FROM = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+	private static final OffsetDateTime TO = OffsetDateTime.of(2024, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+	/* With a plan cache, repeated shapes skip the SQL generation */
+	@Param({ "false", "true" })
+	public boolean planCache;
+
+	private WhereClauseParser parser;
+	private DataFetcher dataFetcher;
+	private DataFetcher stationFetcher;
+
+	@Setup
+	public void setup() {
+		QueryBuilder.setPlanCache(planCache ? new QueryPlanCache(256) : null);
+		parser = new WhereClauseParser(WHERE);
+		dataFetcher = new DataFetcher();
+		dataFetcher.setRoles(Arrays.asList("GUEST"));
+		dataFetcher.setLimit(200);
+		dataFetcher.setOffset(0);
+		dataFetcher.setIgnoreNull(true);
+		dataFetcher.setDistinct(true);
+		dataFetcher.setSelect(WIDE_SELECT);
+		dataFetcher.setWhere(WHERE);
+
+		stationFetcher = new DataFetcher();
+		stationFetcher.setRoles(Arrays.asList("GUEST"));
+		stationFetcher.setLimit(-1);
+		stationFetcher.setOffset(0);
+		stationFetcher.setSelect("sname,scode,stype,sorigin,scoordinate,smetadata,pname,pcode");
+		stationFetcher.setWhere("sorigin.eq.A22,smetadata.municipality.in.(Bolzano,Merano,Trento)");
+	}
+
+	@Benchmark
+	public Token parseWhere() {
+		parser.setInput(WHERE);
+		return parser.parse();
+	}
+
+	@Benchmark
+	public SelectExpansion expandWideSelect() {
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
+		se.setWhereClause(WHERE);
+		se.expand(WIDE_SELECT, "station", "parent", "measurementdouble", "measurement", "datatype", "provenance");
+		return se;
+	}
+
+	@Benchmark
+	public String buildMeasurementHistoryQuery() {
+		return dataFetcher
+				.buildMeasurementQuery("ParkingStation,TrafficSensor", "*", FROM, TO, Representation.FLAT_NODE)
+				.getSql();
+	}
+
+	@Benchmark
+	public String buildLatestMeasurementTreeQuery() {
+		return dataFetcher
+				.buildMeasurementQuery("*", "*", null, null, Representation.TREE_NODE)
+				.getSql();
+	}
+
+	@Benchmark
+	public String buildStationsQuery() {
+		return stationFetcher
+				.buildStationsQuery("ParkingStation,TrafficSensor", Representation.FLAT_NODE)
+				.getSql();
+	}
+}
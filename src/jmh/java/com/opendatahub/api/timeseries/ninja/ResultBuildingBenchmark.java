@@ -0,0 +1,116 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jsoniter.output.JsonStream;
+
+import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilderConfig;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.StreamingResultBuilder;
+
+/**
+ * Tree building of synthetic latest measurement rows: 100 station types, with
+ * stations of 10 data types each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ResultBuildingBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int rows;
+
+	private List<Map<String, Object>> records;
+	private ResultBuilderConfig config;
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup
+	public void setup() {
+		config = new ResultBuilderConfig()
+				.setShowNull(false)
+				.addExitPoint("metadatahistory", false)
+				.setSchema(SelectExpansionConfig.getSchema())
+				.setMaxAllowedSizeInMB(0)
+				.setEntryPoint("stationtype");
+
+		records = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++) {
+			String code = String.valueOf(i / 10);
+			Map<String, Object> rec = new LinkedHashMap<>();
+			rec.put("_stationtype", "Type" + (i * 100L / rows));
+			rec.put("_stationcode", code);
+			rec.put("_datatypename", "type" + (i % 10));
+			rec.put("sname", "Station " + code);
+			rec.put("scode", code);
+			rec.put("sorigin", "origin");
+			rec.put("sactive", Boolean.TRUE);
+			rec.put("tname", "type" + (i % 10));
+			rec.put("tunit", "m/s");
+			rec.put("mvalidtime", "2024-01-15 10:30:00.000+0000");
+			rec.put("mperiod", 600);
+			rec.put("mvalue", i * 0.5);
+			records.add(rec);
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> build() {
+		return ResultBuilder.build(config, records);
+	}
+
+	/* Same output as stream(), for a fair comparison */
+	@Benchmark
+	public JsonStream buildAndWrite() throws IOException {
+		JsonStream stream = new JsonStream(DISCARD, 65536);
+		stream.writeVal(ResultBuilder.build(config, records));
+		stream.flush();
+		return stream;
+	}
+
+	@Benchmark
+	public JsonStream stream() throws IOException {
+		JsonStream stream = new JsonStream(DISCARD, 65536);
+		StreamingResultBuilder builder = new StreamingResultBuilder(config, stream);
+		for (Map<String, Object> rec : records) {
+			builder.add(rec);
+		}
+		builder.finish();
+		stream.flush();
+		return stream;
+	}
+}
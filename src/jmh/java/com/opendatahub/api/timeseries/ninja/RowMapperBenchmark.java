@@ -0,0 +1,137 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.postgresql.util.PGobject;
+
+import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ColumnMapRowMapper;
+
+/**
+ * {@link ColumnMapRowMapper} on an in-memory result set, that looks like a flat
+ * measurement history page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowMapperBenchmark {
+
+	private static final String[] LABELS = { "_timestamp", "sname", "scode", "sorigin", "scoordinate", "smetadata",
+			"tname", "tunit", "mvalidtime", "mtransactiontime", "mperiod", "mvalue_double" };
+	private static final int[] TYPES = { Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.OTHER,
+			Types.OTHER, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.TIMESTAMP, Types.INTEGER, Types.DOUBLE };
+	private static final String[] TYPE_NAMES = { "timestamptz", "varchar", "varchar", "varchar", "geometry", "jsonb",
+			"varchar", "varchar", "timestamptz", "timestamptz", "int4", "float8" };
+
+	@Param({ "10000", "100000" })
+	public int rows;
+
+	@Param({ "UTC", "Europe/Rome" })
+	public String timeZone;
+
+	private Object[] values;
+	private ResultSet resultSet;
+	private int row;
+	private boolean lastWasNull;
+
+	@Setup
+	public void setup() throws SQLException {
+		ColumnMapRowMapper.setTargetDefNameToAliasMap(SelectExpansionConfig.getSchema().getTargetDefNameToAliasMap());
+
+		PGobject metadata = new PGobject();
+		metadata.setType("jsonb");
+		metadata.setValue("{\"municipality\": \"Bolzano - Bozen\", \"capacity\": 120, \"tags\": [\"a\", \"b\"]}");
+		PGobject coordinate = new PGobject();
+		coordinate.setType("geometry");
+		coordinate.setValue("SRID=4326;POINT(11.35 46.49)");
+		Timestamp ts = Timestamp.valueOf("2024-01-15 10:30:00.123");
+		values = new Object[] { ts, "Station 1", "ST1", "origin", coordinate, metadata, "temperature", "C", ts, ts,
+				Integer.valueOf(600), Double.valueOf(21.5) };
+
+		ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getColumnCount":
+							return LABELS.length;
+						case "getColumnLabel":
+						case "getColumnName":
+							return LABELS[(Integer) args[0] - 1];
+						case "getColumnType":
+							return TYPES[(Integer) args[0] - 1];
+						case "getColumnTypeName":
+							return TYPE_NAMES[(Integer) args[0] - 1];
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+
+		resultSet = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "next":
+							return row++ < rows;
+						case "getMetaData":
+							return metaData;
+						case "wasNull":
+							return lastWasNull;
+						default:
+							break;
+					}
+					Object value = values[(Integer) args[0] - 1];
+					lastWasNull = value == null;
+					switch (method.getName()) {
+						case "getObject":
+							return value;
+						case "getString":
+							return value == null ? null : value instanceof PGobject ? ((PGobject) value).getValue() : value.toString();
+						case "getDouble":
+							return value == null ? 0.0 : ((Number) value).doubleValue();
+						case "getTimestamp":
+							return value;
+						case "getInt":
+							return value == null ? 0 : ((Number) value).intValue();
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	@Benchmark
+	public void mapRows(Blackhole bh) throws SQLException {
+		ColumnMapRowMapper mapper = new ColumnMapRowMapper();
+		mapper.setIgnoreNull(true);
+		mapper.setTimeZone(timeZone);
+		row = 0;
+		int rowNum = 0;
+		while (resultSet.next()) {
+			Map<String, Object> rec = mapper.mapRow(resultSet, rowNum++);
+			bh.consume(rec);
+		}
+	}
+}
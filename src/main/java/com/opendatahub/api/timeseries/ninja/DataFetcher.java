@@ -5,9 +5,12 @@
 package com.opendatahub.api.timeseries.ninja;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,21 +18,45 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.StringJoiner;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.jsoniter.output.JsonStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
+import com.opendatahub.api.timeseries.ninja.quota.CostLimit;
 import com.opendatahub.api.timeseries.ninja.utils.FileUtils;
+import com.opendatahub.api.timeseries.ninja.utils.HistoryCursor;
 import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics.Phase;
 import com.opendatahub.api.timeseries.ninja.utils.Timer;
+import com.opendatahub.api.timeseries.ninja.utils.VirtualThreads;
 import com.opendatahub.api.timeseries.ninja.utils.miniparser.Token;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryBuilder;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.SelectExpansion;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.WhereClauseTarget;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.LatestMeasurementCache;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ListingVersion;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead.Workload;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.MergingQueryExecutor;
 import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.QueryExecutor;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SharedResultBuffer;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SingleFlight;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilderConfig;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.StreamingResultBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.BinaryEncoder;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.Format;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.ResultSetWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.RowWriter;
 import com.opendatahub.api.timeseries.ninja.utils.simpleexception.ErrorCodeInterface;
 import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
 
@@ -38,15 +65,57 @@ import static net.logstash.logback.argument.StructuredArguments.v;
 public class DataFetcher {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DataFetcher.class);
+	private static LatestMeasurementCache latestCache;
+	private static ListingVersion listingVersion;
+	private static SingleFlight<SharedResult> latestFlight;
+	private static int latestFlightMaxSize;
+	private static ExecutorService branchExecutor;
+	private static Semaphore branchPermits;
+	private static long historyChunkSeconds = 0;
+
+	/* History chunks running at once per request, and their rows read ahead */
+	private static final int CHUNKS_IN_FLIGHT = 4;
+	private static final int CHUNK_READ_AHEAD_ROWS = 10000;
 	private static final int MEASUREMENT_TYPE_DOUBLE = 1 << 0;
 	private static final int MEASUREMENT_TYPE_STRING = 1 << 1;
 	private static final int MEASUREMENT_TYPE_JSON = 1 << 2;
 	private static final int MEASUREMENT_TYPE_ALL = (1 << 3) - 1;
 
+	/* Orders of the measurement queries, see buildMeasurementQuery */
+	private static final Comparator<Map<String, Object>> FLAT_MERGE_ORDER = Comparator
+			.comparingLong(row -> ((Number) row.get("_mergekey")).longValue());
+	private static final Comparator<Map<String, Object>> TREE_MERGE_ORDER = Comparator
+			.<Map<String, Object>, String>comparing(row -> (String) row.get("_stationtype"), MergingQueryExecutor::compareCodePoints)
+			.thenComparing(row -> (String) row.get("_stationcode"), MergingQueryExecutor::compareCodePoints)
+			.thenComparing(row -> (String) row.get("_datatypename"), MergingQueryExecutor::compareCodePoints);
+
+	private static final Pattern INTERVAL_PATTERN = Pattern.compile("(\\d{1,9})([smhdw])");
+
+	/* Aggregates over the double values of a measurementhistory time bucket */
+	private enum Aggregate {
+		AVG("avg(mh.double_value)"),
+		MIN("min(mh.double_value)"),
+		MAX("max(mh.double_value)"),
+		SUM("sum(mh.double_value)"),
+		COUNT("count(mh.double_value)"),
+		FIRST("(array_agg(mh.double_value order by mh.timestamp asc))[1]"),
+		LAST("(array_agg(mh.double_value order by mh.timestamp desc))[1]");
+
+		private final String sql;
+
+		Aggregate(String sql) {
+			this.sql = sql;
+		}
+	}
+
 	public enum ErrorCode implements ErrorCodeInterface {
 		WRONG_TIMEZONE("'%s' is not a valid time zone understandable by java.time.ZoneId."),
 		WHERE_WRONG_DATA_TYPE("'%s' can only be used with NULL, NUMBERS or STRINGS: '%s' given."),
-		METHOD_NOT_ALLOWED("Method '%s' not allowed with %s representation.");
+		METHOD_NOT_ALLOWED("Method '%s' not allowed with %s representation."),
+		AGGREGATE_INCOMPLETE("'aggregate' and 'interval' must be used together."),
+		AGGREGATE_UNKNOWN("'%s' is not a valid aggregate. Use one of %s."),
+		AGGREGATE_INTERVAL("'%s' is not a valid interval. Use a positive number followed by s, m, h, d or w, ex. 15m or 1h."),
+		AGGREGATE_WRONG_DATA_TYPE("Aggregates can only be calculated on numeric measurements.");
 
 		private final String msg;
 
@@ -68,13 +137,24 @@ public class DataFetcher {
 	private String where;
 	private boolean distinct;
 	private String timeZone = "UTC";
+	private ResultBuilderConfig resultBuilderConfig;
+	private boolean keyset = false;
+	private HistoryCursor cursor;
+	private String nextCursor;
+	private Aggregate aggregate;
+	private long intervalSeconds;
 	private Map<String, Object> logPayload;
+	private final RequestMetrics metrics = new RequestMetrics();
+	private CostLimit.Budget costBudget;
+	private Workload workload = Workload.METADATA;
+	private Format format = Format.JSON;
 
-	private QueryBuilder buildStationsQuery(String stationTypeList, Representation representation) {
+	QueryBuilder buildStationsQuery(String stationTypeList, Representation representation) {
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
 		return QueryBuilder
-				.init(se, select, where, distinct, "station", "parent")
+				.initCached(planKey("stations", representation, stationTypeSet.contains("*")),
+						se, select, where, distinct, "station", "parent")
 				.addSql("select")
 				.addSqlIf("distinct", distinct)
 				.addSqlIf("s.stationtype as _stationtype, s.stationcode as _stationcode", !representation.isFlat())
@@ -94,41 +174,17 @@ public class DataFetcher {
 				.addOffset(offset);
 	}
 
-	public List<Map<String, Object>> fetchStations(String stationTypeList, final Representation representation) {
-		if (representation.isEdge()) {
-			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchStations", representation.getTypeAsString());
-		}
-		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
-		Timer timer = new Timer();
-		timer.start();
-		QueryBuilder query = buildStationsQuery(stationTypeList, representation);
-		long timeBuild = timer.stop();
-
-		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
-
-		Map<String, Object> logData = new HashMap<>();
-		logData.put("stationTypes", stationTypeSet);
-		setStats("fetchStations", representation, queryResult.size(), timeBuild, timeExec, query.getSql(), logData);
-		return queryResult;
-	}
-
-	public int fetchStationsFlat(String stationTypeList, final Representation representation, JsonStream jsonStream) throws IOException {
+	public int fetchStationsStream(String stationTypeList, final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = Workload.METADATA;
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildStationsQuery(stationTypeList, representation);
-		long timeBuild = timer.stop();
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		int count = QueryExecutor.init()
-				.addParameters(query.getParameters())
-				.buildAndStream(query.getSql(), ignoreNull, timeZone, jsonStream);
-		long timeExec = timer.stop();
+		int count = stream(query, representation, jsonStream);
+		long timeExec = timer.stopNanos();
 
 		Map<String, Object> logData = new HashMap<>();
 		logData.put("stationTypes", stationTypeSet);
@@ -136,11 +192,12 @@ public class DataFetcher {
 		return count;
 	}
 
-	private QueryBuilder buildStationsAndMetadataHistoryQuery(String stationTypeList, OffsetDateTime from, OffsetDateTime to, Representation representation) {
+	QueryBuilder buildStationsAndMetadataHistoryQuery(String stationTypeList, OffsetDateTime from, OffsetDateTime to, Representation representation) {
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
 		return QueryBuilder
-				.init(se, select, where, distinct, "station", "parent", "metadatahistory")
+				.initCached(planKey("stationsMetadataHistory", representation, stationTypeSet.contains("*"), from != null, to != null),
+						se, select, where, distinct, "station", "parent", "metadatahistory")
 				.addSql("select")
 				.addSqlIf("distinct", distinct)
 				.addSqlIf("s.stationtype as _stationtype, s.stationcode as _stationcode", !representation.isFlat())
@@ -163,69 +220,75 @@ public class DataFetcher {
 				.addOffset(offset);
 	}
 
-	public List<Map<String, Object>> fetchStationsAndMetadataHistory(String stationTypeList, OffsetDateTime from, OffsetDateTime to, final Representation representation) {
-		if (representation.isEdge()) {
-			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchStationsAndMetadata", representation.getTypeAsString());
-		}
-		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
-		Timer timer = new Timer();
-		timer.start();
-		QueryBuilder query = buildStationsAndMetadataHistoryQuery(stationTypeList, from, to, representation);
-		long timeBuild = timer.stop();
-
-		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
-
-		Map<String, Object> logData = new HashMap<>();
-		logData.put("stationTypes", stationTypeSet);
-		setStats("fetchStationsAndMetadata", representation, queryResult.size(), timeBuild, timeExec, query.getSql(), logData);
-		return queryResult;
-	}
-
-	public int fetchStationsAndMetadataHistoryFlat(String stationTypeList, OffsetDateTime from, OffsetDateTime to, final Representation representation, JsonStream jsonStream) throws IOException {
+	public int fetchStationsAndMetadataHistoryStream(String stationTypeList, OffsetDateTime from, OffsetDateTime to, final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = from == null && to == null ? Workload.METADATA : Workload.HISTORY;
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildStationsAndMetadataHistoryQuery(stationTypeList, from, to, representation);
-		long timeBuild = timer.stop();
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		int count = QueryExecutor.init()
-				.addParameters(query.getParameters())
-				.buildAndStream(query.getSql(), ignoreNull, timeZone, jsonStream);
-		long timeExec = timer.stop();
+		int count = stream(query, representation, jsonStream);
+		long timeExec = timer.stopNanos();
 
 		Map<String, Object> logData = new HashMap<>();
 		logData.put("stationTypes", stationTypeSet);
 		setStats("fetchStationsAndMetadata", representation, count, timeBuild, timeExec, query.getSql(), logData);
 		return count;
 	}
-	private QueryBuilder buildMeasurementQuery(String stationTypeList, String dataTypeList, OffsetDateTime from, OffsetDateTime to, Representation representation) {
+	QueryBuilder buildMeasurementQuery(String stationTypeList, String dataTypeList, OffsetDateTime from, OffsetDateTime to, Representation representation) {
+		return buildMeasurementQuery(stationTypeList, dataTypeList, from, to, representation, MEASUREMENT_TYPE_ALL, false);
+	}
+
+	/**
+	 * @param branches measurement types to query, a combination of the MEASUREMENT_TYPE_* flags
+	 * @param merge build a branch for {@link MergingQueryExecutor}: with a merge key for flat
+	 *     representations, tree keys ordered by code points, and the offset left to the merge
+	 * @return null, if none of the requested measurement types is needed
+	 */
+	private QueryBuilder buildMeasurementQuery(String stationTypeList, String dataTypeList, OffsetDateTime from,
+			OffsetDateTime to, Representation representation, int branches, boolean merge) {
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
 		Set<String> dataTypeSet = QueryBuilder.csvToSet(dataTypeList);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
+		boolean keyset = useKeyset(from, to, representation);
+		boolean seek = keyset && cursor != null;
+		boolean useLatest = from == null && to == null;
+		Aggregate agg = useLatest ? null : aggregate;
 		QueryBuilder query = QueryBuilder
-				.init(se, select, where, distinct, "station", "parent", "measurementdouble", "measurement", "datatype",
+				.initCached(planKey("measurement", representation, stationTypeSet.contains("*"), dataTypeSet.contains("*"), from != null, to != null, roles, keyset, seek, agg, branches, merge),
+						se, select, where, distinct, "station", "parent", "measurementdouble", "measurement", "datatype",
 						"provenance");
 
 		int measurementType = checkMeasurementType(query);
+		if (agg != null) {
+			measurementType &= MEASUREMENT_TYPE_DOUBLE;
+			if (measurementType == 0) {
+				throw new SimpleException(ErrorCode.AGGREGATE_WRONG_DATA_TYPE);
+			}
+		}
+		measurementType &= branches;
+		if (measurementType == 0) {
+			return null;
+		}
+		String treeKeys = merge
+				? "s.stationtype collate \"C\" as _stationtype, s.stationcode collate \"C\" as _stationcode, t.cname collate \"C\" as _datatypename"
+				: "s.stationtype as _stationtype, s.stationcode as _stationcode, t.cname as _datatypename";
 		String aclWhereClause = getAclWhereClause(AclType.stations, roles);
-		boolean useLatest = from == null && to == null;
 
 		if (hasFlag(measurementType, MEASUREMENT_TYPE_DOUBLE)) {
 			query.addSql("select")
 					.addSqlIf("distinct", distinct)
-					.addSqlIf("s.stationtype as _stationtype, s.stationcode as _stationcode, t.cname as _datatypename",
-							!representation.isFlat())
+					.addSqlIf(treeKeys, !representation.isFlat())
 					.addSqlIf("me.timestamp as _timestamp", representation.isFlat())
+					.addSqlIf(", me.timestamp::text as _cursorts, me.timeseries_id as _cursorid", keyset)
+					.addSqlIf(", (extract(epoch from me.timestamp) * 1000000)::int8 as _mergekey", merge && representation.isFlat())
 					.expandSelectPrefix(", ")
 					.addSqlIf("from measurement me", useLatest)
-					.addSqlIf("from measurementhistory me", !useLatest)
-					.addSql("join timeseries ts on ts.id = me.timeseries_id")
+					.addSqlIf("from measurementhistory me", !useLatest && agg == null)
+					.addSqlIf("join timeseries ts on ts.id = me.timeseries_id", agg == null)
+					.addSqlIf(aggregateFromClause(agg), agg != null)
 					.addSql("join station s on ts.station_id = s.id")
 					.addSqlIfAlias("left join metadata m on m.id = s.meta_data_id", "smetadata")
 					.addSqlIfDefinition("left join station p on s.parent_id = p.id", "parent")
@@ -234,7 +297,7 @@ public class DataFetcher {
 					.addSqlIfDefinition("left join provenance pr on me.provenance_id = pr.id", "provenance")
 					.addSqlIfAlias("left join type_metadata tm on tm.id = t.meta_data_id", "tmetadata")
 					.addSql("where s.available = true")
-					.addSqlIf("and me.partition_id = ts.partition_id", !useLatest)
+					.addSqlIf("and me.partition_id = ts.partition_id", !useLatest && agg == null)
 					.addSqlIfNotNull("and", aclWhereClause)
 					.addSqlIfNotNull(aclWhereClause, aclWhereClause)
 					.addSqlIfDefinition("and (p.id is null or p.available = true)", "parent")
@@ -242,12 +305,19 @@ public class DataFetcher {
 							!stationTypeSet.contains("*"))
 					.setParameterIfNotEmptyAnd("datatypes", dataTypeSet, "and t.cname in (:datatypes)",
 							!dataTypeSet.contains("*"))
-					.setParameterIfNotNull("from", from, "and me.timestamp >= :from::timestamptz")
-					.setParameterIfNotNull("to", to, "and me.timestamp < :to::timestamptz")
+					.setParameterIfNotNullAnd("from", from, "and me.timestamp >= :from::timestamptz", agg == null)
+					.setParameterIfNotNullAnd("to", to, "and me.timestamp < :to::timestamptz", agg == null)
+					.addSqlIf("and (me.timestamp, me.timeseries_id) > (:cursor_ts::timestamptz, :cursor_id)", seek)
 					.expandWhere()
 					.expandGroupByIf("_stationtype, _stationcode, _datatypename", !representation.isFlat());
 		}
 
+		if (agg != null) {
+			query.setParameter("from", from)
+					.setParameter("to", to)
+					.setParameter("interval", Long.valueOf(intervalSeconds));
+		}
+
 		if (hasFlag(measurementType, MEASUREMENT_TYPE_DOUBLE) && hasFlag(measurementType, MEASUREMENT_TYPE_STRING)) {
 			query.addSql("union all");
 		}
@@ -257,9 +327,10 @@ public class DataFetcher {
 					"provenance")
 					.addSql("select")
 					.addSqlIf("distinct", distinct)
-					.addSqlIf("s.stationtype as _stationtype, s.stationcode as _stationcode, t.cname as _datatypename",
-							!representation.isFlat())
+					.addSqlIf(treeKeys, !representation.isFlat())
 					.addSqlIf("me.timestamp as _timestamp", representation.isFlat())
+					.addSqlIf(", me.timestamp::text as _cursorts, me.timeseries_id as _cursorid", keyset)
+					.addSqlIf(", (extract(epoch from me.timestamp) * 1000000)::int8 as _mergekey", merge && representation.isFlat())
 					.expandSelectPrefix(", ")
 					.addSqlIf("from measurementstring me", useLatest)
 					.addSqlIf("from measurementstringhistory me", !useLatest)
@@ -282,6 +353,7 @@ public class DataFetcher {
 							!dataTypeSet.contains("*"))
 					.setParameterIfNotNull("from", from, "and me.timestamp >= :from::timestamptz")
 					.setParameterIfNotNull("to", to, "and me.timestamp < :to::timestamptz")
+					.addSqlIf("and (me.timestamp, me.timeseries_id) > (:cursor_ts::timestamptz, :cursor_id)", seek)
 					.expandWhere()
 					.expandGroupByIf("_stationtype, _stationcode, _datatypename", !representation.isFlat());
 		}
@@ -296,9 +368,10 @@ public class DataFetcher {
 					"provenance")
 					.addSql("select")
 					.addSqlIf("distinct", distinct)
-					.addSqlIf("s.stationtype as _stationtype, s.stationcode as _stationcode, t.cname as _datatypename",
-							!representation.isFlat())
+					.addSqlIf(treeKeys, !representation.isFlat())
 					.addSqlIf("me.timestamp as _timestamp", representation.isFlat())
+					.addSqlIf(", me.timestamp::text as _cursorts, me.timeseries_id as _cursorid", keyset)
+					.addSqlIf(", (extract(epoch from me.timestamp) * 1000000)::int8 as _mergekey", merge && representation.isFlat())
 					.expandSelectPrefix(", ")
 					.addSqlIf("from measurementjson me", useLatest)
 					.addSqlIf("from measurementjsonhistory me", !useLatest)
@@ -321,14 +394,21 @@ public class DataFetcher {
 							!dataTypeSet.contains("*"))
 					.setParameterIfNotNull("from", from, "and me.timestamp >= :from::timestamptz")
 					.setParameterIfNotNull("to", to, "and me.timestamp < :to::timestamptz")
+					.addSqlIf("and (me.timestamp, me.timeseries_id) > (:cursor_ts::timestamptz, :cursor_id)", seek)
 					.expandWhere()
 					.expandGroupByIf("_stationtype, _stationcode, _datatypename", !representation.isFlat());
 		}
 
+		if (seek) {
+			query.setParameter("cursor_ts", cursor.getTimestamp())
+					.setParameter("cursor_id", cursor.getTimeseriesId());
+		}
+
 		query.addSqlIf("order by _stationtype, _stationcode, _datatypename", !representation.isFlat())
-				.addSqlIf("order by _timestamp asc", representation.isFlat())
-				.addLimit(limit)
-				.addOffset(offset);
+				.addSqlIf("order by _timestamp asc", representation.isFlat() && !keyset)
+				.addSqlIf("order by _timestamp asc, _cursorid asc", keyset)
+				.addLimit(merge && limit > 0 && offset > 0 ? limit + offset : limit)
+				.addOffset(keyset || merge ? -1 : offset);
 
 		return query;
 	}
@@ -347,45 +427,43 @@ public class DataFetcher {
 		return logData;
 	}
 
-	public List<Map<String, Object>> fetchStationsTypesAndMeasurementHistory(String stationTypeList,
-			String dataTypeList, OffsetDateTime from, OffsetDateTime to, final Representation representation) {
-
-		if (representation.isEdge()) {
-			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchStationsTypesAndMeasurement(History)",
-					representation.getTypeAsString());
-		}
-
-		Timer timer = new Timer();
-		timer.start();
-		QueryBuilder query = buildMeasurementQuery(stationTypeList, dataTypeList, from, to, representation);
-		long timeBuild = timer.stop();
-
-		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
-
-		String command = (from == null && to == null) ? "fetchMeasurement" : "fetchMeasurementHistory";
-		setStats(command, representation, queryResult.size(), timeBuild, timeExec, query.getSql(),
-				measurementLogData(stationTypeList, dataTypeList, from, to));
-		return queryResult;
-	}
-
-	public int fetchStationsTypesAndMeasurementHistoryFlat(String stationTypeList, String dataTypeList,
+	public int fetchStationsTypesAndMeasurementHistoryStream(String stationTypeList, String dataTypeList,
 			OffsetDateTime from, OffsetDateTime to, final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = from == null && to == null ? Workload.LATEST : Workload.HISTORY;
 
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildMeasurementQuery(stationTypeList, dataTypeList, from, to, representation);
-		long timeBuild = timer.stop();
+		/*
+		 * Typed formats read the result set of the query itself. All other ways below work on
+		 * rows as maps: merging chunks or branches, sharing, caching and cursors.
+		 */
+		boolean typed = format.isTyped();
+		MergingQueryExecutor chunks = typed ? null : buildHistoryChunks(stationTypeList, dataTypeList, from, to, representation);
+		MergingQueryExecutor branches = typed || chunks != null
+				? null
+				: buildMeasurementBranches(stationTypeList, dataTypeList, from, to, representation);
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		int count = QueryExecutor.init()
-				.addParameters(query.getParameters())
-				.buildAndStream(query.getSql(), ignoreNull, timeZone, jsonStream);
-		long timeExec = timer.stop();
+		boolean shared = from == null && to == null && !typed;
+		if (!shared || (latestFlight == null && latestCache == null)) {
+			checkCost(query);
+		}
+		int count;
+		if (typed) {
+			count = stream(query, representation, jsonStream);
+		} else if (useKeyset(from, to, representation)) {
+			count = streamWithCursor(query, jsonStream);
+		} else if (shared && latestFlight != null) {
+			count = streamLatestCoalesced(query, branches, stationTypeList, representation, jsonStream);
+		} else if (shared && latestCache != null) {
+			count = streamLatestCached(query, stationTypeList, representation, jsonStream);
+		} else {
+			Integer chunked = chunks == null ? null : streamChunks(chunks, jsonStream);
+			count = chunked != null ? chunked : streamMeasurement(query, branches, representation, jsonStream);
+		}
+		long timeExec = timer.stopNanos();
 
 		String command = (from == null && to == null) ? "fetchMeasurement" : "fetchMeasurementHistory";
 		setStats(command, representation, count, timeBuild, timeExec, query.getSql(),
@@ -436,12 +514,13 @@ public class DataFetcher {
 		return sj.toString();
 	}
 
-	private QueryBuilder buildStationsAndTypesQuery(String stationTypeList, String dataTypeList, Representation representation) {
+	QueryBuilder buildStationsAndTypesQuery(String stationTypeList, String dataTypeList, Representation representation) {
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
 		Set<String> dataTypeSet = QueryBuilder.csvToSet(dataTypeList);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
 		QueryBuilder query = QueryBuilder
-				.init(se, select, where, distinct, "station", "parent", "datatype");
+				.initCached(planKey("stationsAndTypes", representation, stationTypeSet.contains("*"), dataTypeSet.contains("*")),
+						se, select, where, distinct, "station", "parent", "datatype");
 
 		query.addSql("select")
 				.addSqlIf("distinct", distinct)
@@ -470,46 +549,18 @@ public class DataFetcher {
 				.addOffset(offset);
 	}
 
-	public List<Map<String, Object>> fetchStationsAndTypes(String stationTypeList, String dataTypeList,
-			final Representation representation) {
-
-		if (representation.isEdge()) {
-			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchStationsAndTypes",
-					representation.getTypeAsString());
-		}
-
-		Timer timer = new Timer();
-		timer.start();
-		QueryBuilder query = buildStationsAndTypesQuery(stationTypeList, dataTypeList, representation);
-		long timeBuild = timer.stop();
-
-		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
-
-		Map<String, Object> logData = new HashMap<>();
-		logData.put("stationTypes", QueryBuilder.csvToSet(stationTypeList));
-		logData.put("dataTypes", QueryBuilder.csvToSet(dataTypeList));
-		setStats("fetchStationsAndTypes", representation, queryResult.size(), timeBuild, timeExec, query.getSql(), logData);
-		return queryResult;
-	}
-
-	public int fetchStationsAndTypesFlat(String stationTypeList, String dataTypeList,
+	public int fetchStationsAndTypesStream(String stationTypeList, String dataTypeList,
 			final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = Workload.METADATA;
 
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildStationsAndTypesQuery(stationTypeList, dataTypeList, representation);
-		long timeBuild = timer.stop();
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		int count = QueryExecutor.init()
-				.addParameters(query.getParameters())
-				.buildAndStream(query.getSql(), ignoreNull, timeZone, jsonStream);
-		long timeExec = timer.stop();
+		int count = stream(query, representation, jsonStream);
+		long timeExec = timer.stopNanos();
 
 		Map<String, Object> logData = new HashMap<>();
 		logData.put("stationTypes", QueryBuilder.csvToSet(stationTypeList));
@@ -519,6 +570,7 @@ public class DataFetcher {
 	}
 
 	public List<Map<String, Object>> fetchStationTypes(final Representation representation) {
+		workload = Workload.METADATA;
 
 		if (!representation.isNode()) {
 			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchStationTypes",
@@ -529,10 +581,9 @@ public class DataFetcher {
 
 		String sql = "select distinct stationtype as id from station s where s.available = true order by 1";
 		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
+		List<Map<String, Object>> queryResult = executor()
 				.build(sql, true, timeZone);
-		long timeExec = timer.stop();
+		long timeExec = timer.stopNanos();
 
 		setStats("fetchStationTypes", representation, queryResult.size(), 0, timeExec, sql, null);
 
@@ -540,6 +591,7 @@ public class DataFetcher {
 	}
 
 	public List<Map<String, Object>> fetchEventOrigins(final Representation representation) {
+		workload = Workload.EVENTS;
 
 		if (!representation.isEvent()) {
 			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchEventOrigins",
@@ -550,22 +602,22 @@ public class DataFetcher {
 
 		String sql = "select distinct origin as id from event order by 1";
 		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
+		List<Map<String, Object>> queryResult = executor()
 				.build(sql, true, timeZone);
-		long timeExec = timer.stop();
+		long timeExec = timer.stopNanos();
 
 		setStats("fetchEventOrigins", representation, queryResult.size(), 0, timeExec, sql, null);
 
 		return queryResult;
 	}
 
-	private QueryBuilder buildEventsQuery(String originList, boolean latestOnly, OffsetDateTime from, OffsetDateTime to, Representation representation) {
+	QueryBuilder buildEventsQuery(String originList, boolean latestOnly, OffsetDateTime from, OffsetDateTime to, Representation representation) {
 		Set<String> originSet = QueryBuilder.csvToSet(originList);
 		String aclWhereClause = getAclWhereClause(AclType.events, roles);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
 		return QueryBuilder
-				.init(se, select, where, distinct, "event", "location", "provenanceevent")
+				.initCached(planKey("events", representation, originSet.contains("*"), latestOnly, from != null, to != null, roles),
+						se, select, where, distinct, "event", "location", "provenanceevent")
 				.addSqlIf(
 						"with latest as (select e.id, row_number() over(partition by e.origin, e.event_series_uuid order by e.event_interval desc) as rank from event e)",
 						latestOnly)
@@ -601,8 +653,9 @@ public class DataFetcher {
 				.addOffset(offset);
 	}
 
-	public List<Map<String, Object>> fetchEvents(String originList, boolean latestOnly, OffsetDateTime from,
-			OffsetDateTime to, final Representation representation) {
+	public int fetchEventsStream(String originList, boolean latestOnly, OffsetDateTime from,
+			OffsetDateTime to, final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = Workload.EVENTS;
 
 		if (!representation.isEvent()) {
 			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchEvents", representation.getTypeAsString());
@@ -611,22 +664,20 @@ public class DataFetcher {
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildEventsQuery(originList, latestOnly, from, to, representation);
-		long timeBuild = timer.stop();
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
+		int count = stream(query, representation, jsonStream);
+		long timeExec = timer.stopNanos();
 
 		Map<String, Object> logData = new HashMap<>();
 		logData.put("origins", QueryBuilder.csvToSet(originList));
-		setStats("fetchEvents", representation, queryResult.size(), timeBuild, timeExec, query.getSql(), logData);
-		return queryResult;
+		setStats("fetchEvents", representation, count, timeBuild, timeExec, query.getSql(), logData);
+		return count;
 	}
 
 	public List<Map<String, Object>> fetchEdgeTypes(final Representation representation) {
+		workload = Workload.METADATA;
 
 		if (!representation.isEdge()) {
 			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchEdgeTypes", representation.getTypeAsString());
@@ -636,21 +687,21 @@ public class DataFetcher {
 
 		String sql = "select distinct stationtype as id from edge e join station s on e.edge_data_id = s.id where s.available = true order by 1";
 		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
+		List<Map<String, Object>> queryResult = executor()
 				.build(sql, true, timeZone);
-		long timeExec = timer.stop();
+		long timeExec = timer.stopNanos();
 
 		setStats("fetchEdgeTypes", representation, queryResult.size(), 0, timeExec, sql, null);
 
 		return queryResult;
 	}
 
-	private QueryBuilder buildEdgesQuery(String stationTypeList, Representation representation) {
+	QueryBuilder buildEdgesQuery(String stationTypeList, Representation representation) {
 		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
-		SelectExpansion se = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion se = SelectExpansionConfig.newSelectExpansion();
 		return QueryBuilder
-				.init(se, select, where, distinct, "edge", "stationbegin", "stationend")
+				.initCached(planKey("edges", representation, stationTypeSet.contains("*")),
+						se, select, where, distinct, "edge", "stationbegin", "stationend")
 				.addSql("select")
 				.addSqlIf("distinct", distinct)
 				.addSqlIf("i.stationtype as _edgetype, i.stationcode as _edgecode", !representation.isFlat())
@@ -671,56 +722,366 @@ public class DataFetcher {
 				.addOffset(offset);
 	}
 
-	public List<Map<String, Object>> fetchEdges(String stationTypeList, final Representation representation) {
-
-		if (!representation.isEdge()) {
-			throw new SimpleException(ErrorCode.METHOD_NOT_ALLOWED, "fetchEdges", representation.getTypeAsString());
-		}
+	public int fetchEdgesStream(String stationTypeList, final Representation representation, JsonStream jsonStream) throws IOException {
+		workload = Workload.METADATA;
 
 		Timer timer = new Timer();
 		timer.start();
 		QueryBuilder query = buildEdgesQuery(stationTypeList, representation);
-		long timeBuild = timer.stop();
+		long timeBuild = timer.stopNanos();
 
 		timer.start();
-		List<Map<String, Object>> queryResult = QueryExecutor
-				.init()
-				.addParameters(query.getParameters())
-				.build(query.getSql(), ignoreNull && representation.isFlat(), timeZone);
-		long timeExec = timer.stop();
+		int count = stream(query, representation, jsonStream);
+		long timeExec = timer.stopNanos();
 
 		Map<String, Object> logData = new HashMap<>();
 		logData.put("stationTypes", QueryBuilder.csvToSet(stationTypeList));
-		setStats("fetchEdges", representation, queryResult.size(), timeBuild, timeExec, query.getSql(), logData);
-		return queryResult;
+		setStats("fetchEdges", representation, count, timeBuild, timeExec, query.getSql(), logData);
+		return count;
+	}
+
+	/**
+	 * A new executor for the current command, which takes its connection from the bulkhead
+	 * of the command's workload
+	 */
+	private QueryExecutor executor() {
+		return QueryExecutor
+				.init()
+				.setMetrics(metrics)
+				.setBulkhead(Bulkhead.get(workload));
 	}
 
-	public int fetchEdgesFlat(String stationTypeList, final Representation representation, JsonStream jsonStream) throws IOException {
+	/**
+	 * Reject the query, if its estimated cost exceeds the budget of the caller. Parallel
+	 * branches and chunks get estimated as the single query they replace.
+	 */
+	private void checkCost(QueryBuilder query) {
+		if (costBudget != null) {
+			costBudget.check(query.getSql(), query.getParameters(), metrics).ifPresent(e -> { throw e; });
+		}
+	}
 
-		Timer timer = new Timer();
-		timer.start();
-		QueryBuilder query = buildEdgesQuery(stationTypeList, representation);
-		long timeBuild = timer.stop();
+	/**
+	 * Execute the query and write its result into <code>jsonStream</code>: A JSON array for
+	 * flat representations, or a JSON object built with the {@link ResultBuilderConfig} for trees.
+	 */
+	private int stream(QueryBuilder query, Representation representation, JsonStream jsonStream) throws IOException {
+		QueryExecutor executor = executor()
+				.addParameters(query.getParameters());
+		if (representation.isFlat()) {
+			return format.isTyped()
+					? executor.buildAndStream(query.getSql(), ResultSetWriter.of(format, jsonStream))
+					: executor.buildAndStream(query.getSql(), ignoreNullFlat(), timeZone, RowWriter.of(format, jsonStream));
+		}
+		if (resultBuilderConfig == null || !resultBuilderConfig.isValid()) {
+			throw new RuntimeException("Missing or invalid ResultBuilderConfig for representation " + representation);
+		}
+		StreamingResultBuilder tree = treeBuilder(jsonStream);
+		int count = executor.buildAndConsume(query.getSql(), false, timeZone, tree::add);
+		tree.finish();
+		return count;
+	}
 
-		timer.start();
-		int count = QueryExecutor.init()
-				.addParameters(query.getParameters())
-				.buildAndStream(query.getSql(), ignoreNull, timeZone, jsonStream);
-		long timeExec = timer.stop();
+	/* Serialized result of a query, shared by all identical requests in flight */
+	private static final class SharedResult {
+		static final SharedResult TOO_BIG = new SharedResult(null, 0);
 
-		Map<String, Object> logData = new HashMap<>();
-		logData.put("stationTypes", QueryBuilder.csvToSet(stationTypeList));
-		setStats("fetchEdges", representation, count, timeBuild, timeExec, query.getSql(), logData);
+		/* Null, if it was too big to be shared */
+		final byte[] json;
+		final int count;
+
+		SharedResult(byte[] json, int count) {
+			this.json = json;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Identical latest measurement requests, that arrive while one of them is running, wait for
+	 * it and copy its serialized JSON. The key is made of the representation, roles, and
+	 * everything that changes the query or its rows. If the JSON is too big to be kept, the
+	 * waiting requests get released as soon as this is known, and run their query themselves.
+	 * Failures of the executing request after that point, like a client abort, stay with it.
+	 */
+	private int streamLatestCoalesced(QueryBuilder query, MergingQueryExecutor branches, String stationTypeList,
+			Representation representation, JsonStream jsonStream) throws IOException {
+		List<String> sortedRoles = new ArrayList<>(roles);
+		Collections.sort(sortedRoles);
+		String key = representation.name() + "|" + format + "|" + sortedRoles + "|" + ignoreNull + "|" + timeZone + "|"
+				+ QueryExecutor.key(query.getSql(), query.getParameters());
+		boolean[] executed = { false };
+		SharedResult result = latestFlight.execute(key, share -> {
+			executed[0] = true;
+			SharedResultBuffer out = new SharedResultBuffer(jsonStream, latestFlightMaxSize,
+					() -> share.accept(SharedResult.TOO_BIG));
+			JsonStream buffer = new JsonStream(out, 65536);
+			int count = latestCache != null
+					? streamLatestCached(query, stationTypeList, representation, buffer)
+					: streamMeasurement(query, branches, representation, buffer);
+			buffer.flush();
+			return new SharedResult(out.toByteArray(), count);
+		});
+		if (result.json != null) {
+			jsonStream.write(result.json, 0, result.json.length);
+			return result.count;
+		}
+		if (executed[0]) {
+			return result.count;
+		}
+		return latestCache != null
+				? streamLatestCached(query, stationTypeList, representation, jsonStream)
+				: streamMeasurement(query, branches, representation, jsonStream);
+	}
+
+	/**
+	 * Like {@link #stream}, but take the rows from the {@link LatestMeasurementCache}, if they
+	 * are fresh enough. The SQL of the query contains the ACL rules, so each role combination
+	 * gets its own entries. New measurements of other station types keep them.
+	 */
+	private int streamLatestCached(QueryBuilder query, String stationTypeList, Representation representation,
+			JsonStream jsonStream) throws IOException {
+		boolean ignoreNullRows = representation.isFlat() && ignoreNullFlat();
+		Set<String> stationTypeSet = QueryBuilder.csvToSet(stationTypeList);
+		List<Map<String, Object>> rows = latestCache.get(query.getSql(), query.getParameters(),
+				ignoreNullRows + "|" + timeZone, stationTypeSet.contains("*") ? null : stationTypeSet,
+				() -> executor()
+						.addParameters(query.getParameters())
+						.build(query.getSql(), ignoreNullRows, timeZone));
+		if (representation.isFlat()) {
+			RowWriter out = RowWriter.of(format, jsonStream);
+			out.start();
+			for (Map<String, Object> row : rows) {
+				writeRow(out, row);
+			}
+			out.end();
+			return rows.size();
+		}
+		if (resultBuilderConfig == null || !resultBuilderConfig.isValid()) {
+			throw new RuntimeException("Missing or invalid ResultBuilderConfig for representation " + representation);
+		}
+		StreamingResultBuilder tree = treeBuilder(jsonStream);
+		for (Map<String, Object> row : rows) {
+			tree.add(row);
+		}
+		tree.finish();
+		return rows.size();
+	}
+
+	/**
+	 * One query per measurement type, to be run in parallel, if enabled and if the request
+	 * needs more than one of them. Keyset pagination stays on the single query.
+	 *
+	 * @return null, if the measurement query should be used as is
+	 */
+	private MergingQueryExecutor buildMeasurementBranches(String stationTypeList, String dataTypeList,
+			OffsetDateTime from, OffsetDateTime to, Representation representation) {
+		if (branchExecutor == null || useKeyset(from, to, representation)) {
+			return null;
+		}
+		MergingQueryExecutor branches = new MergingQueryExecutor(branchExecutor, branchPermits).setMetrics(metrics);
+		int count = 0;
+		for (int type : new int[] { MEASUREMENT_TYPE_DOUBLE, MEASUREMENT_TYPE_STRING, MEASUREMENT_TYPE_JSON }) {
+			QueryBuilder branch = buildMeasurementQuery(stationTypeList, dataTypeList, from, to, representation, type, true);
+			if (branch != null) {
+				branches.addQuery(branch.getSql(), branch.getParameters());
+				count++;
+			}
+		}
+		return count > 1 ? branches : null;
+	}
+
+	/**
+	 * Split flat history requests, that are longer than the configured chunk, into sub-ranges
+	 * aligned to multiples of the chunk since the Unix epoch. Aggregations stay in one query,
+	 * because their time buckets must not be split, and so does keyset pagination.
+	 *
+	 * @return null, if the measurement query should be used as is
+	 */
+	private MergingQueryExecutor buildHistoryChunks(String stationTypeList, String dataTypeList,
+			OffsetDateTime from, OffsetDateTime to, Representation representation) {
+		if (branchExecutor == null || historyChunkSeconds <= 0 || from == null || to == null
+				|| !representation.isFlat() || aggregate != null || useKeyset(from, to, representation)
+				|| to.toEpochSecond() - from.toEpochSecond() <= historyChunkSeconds) {
+			return null;
+		}
+		MergingQueryExecutor chunks = new MergingQueryExecutor(branchExecutor, branchPermits, CHUNKS_IN_FLIGHT,
+				CHUNK_READ_AHEAD_ROWS).setMetrics(metrics);
+		OffsetDateTime chunkFrom = from;
+		while (chunkFrom.isBefore(to)) {
+			long boundary = (Math.floorDiv(chunkFrom.toEpochSecond(), historyChunkSeconds) + 1) * historyChunkSeconds;
+			OffsetDateTime chunkTo = OffsetDateTime.ofInstant(Instant.ofEpochSecond(boundary), from.getOffset());
+			if (chunkTo.isAfter(to)) {
+				chunkTo = to;
+			}
+			QueryBuilder chunk = buildMeasurementQuery(stationTypeList, dataTypeList, chunkFrom, chunkTo,
+					representation, MEASUREMENT_TYPE_ALL, true);
+			chunks.addQuery(chunk.getSql(), chunk.getParameters());
+			chunkFrom = chunkTo;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Write the rows of the history chunks in time order, as a flat representation
+	 *
+	 * @return null, if there are not enough threads left; nothing has been written then
+	 */
+	private Integer streamChunks(MergingQueryExecutor chunks, JsonStream jsonStream) throws IOException {
+		return executor().runBounded(() -> {
+			if (!chunks.tryAcquire()) {
+				return null;
+			}
+			RowWriter out = RowWriter.of(format, jsonStream);
+			out.start();
+			chunks.buildAndConcat(ignoreNullFlat(), timeZone, offset, limit, row -> {
+				row.remove("_mergekey");
+				writeRow(out, row);
+			});
+			out.end();
+			return out.getCount();
+		});
+	}
+
+	/**
+	 * Like {@link #stream}, but run the <code>branches</code> in parallel instead, if given,
+	 * and if there are enough threads left. Rows get merged in the order of the query.
+	 */
+	private int streamMeasurement(QueryBuilder query, MergingQueryExecutor branches, Representation representation,
+			JsonStream jsonStream) throws IOException {
+		Integer count = branches == null
+				? null
+				: executor().runBounded(() -> branches.tryAcquire() ? streamBranches(branches, representation, jsonStream) : null);
+		return count != null ? count : stream(query, representation, jsonStream);
+	}
+
+	private int streamBranches(MergingQueryExecutor branches, Representation representation, JsonStream jsonStream)
+			throws IOException {
+		if (representation.isFlat()) {
+			RowWriter out = RowWriter.of(format, jsonStream);
+			out.start();
+			branches.buildAndConsume(ignoreNullFlat(), timeZone, FLAT_MERGE_ORDER, offset, limit, row -> {
+				row.remove("_mergekey");
+				writeRow(out, row);
+			});
+			out.end();
+			return out.getCount();
+		}
+		if (resultBuilderConfig == null || !resultBuilderConfig.isValid()) {
+			throw new RuntimeException("Missing or invalid ResultBuilderConfig for representation " + representation);
+		}
+		StreamingResultBuilder tree = treeBuilder(jsonStream);
+		int count = branches.buildAndConsume(false, timeZone, TREE_MERGE_ORDER, offset, limit, tree::add);
+		tree.finish();
 		return count;
 	}
 
+	/**
+	 * Replaces measurementhistory with one aggregated row per timeseries and time bucket.
+	 * The derived table keeps the column names of measurementhistory, such that the
+	 * rest of the query and all select expansions stay the same. Timestamps become bucket
+	 * starts, aligned to the Unix epoch in UTC.
+	 */
+	private static String aggregateFromClause(Aggregate agg) {
+		if (agg == null) {
+			return null;
+		}
+		return "from timeseries ts join lateral ("
+				+ "select mh.timeseries_id, mh.partition_id, "
+				+ "to_timestamp(floor(extract(epoch from mh.timestamp) / :interval) * :interval) as timestamp, "
+				+ agg.sql + " as double_value, "
+				+ "max(mh.created_on) as created_on, "
+				+ "max(mh.provenance_id) as provenance_id "
+				+ "from measurementhistory mh "
+				+ "where mh.timeseries_id = ts.id and mh.partition_id = ts.partition_id "
+				+ "and mh.timestamp >= :from::timestamptz and mh.timestamp < :to::timestamptz "
+				+ "group by 1, 2, 3"
+				+ ") me on true";
+	}
+
+	/**
+	 * Keyset pagination is available for flat history requests with a <code>cursor</code>
+	 * parameter. The first page has an empty cursor.
+	 */
+	private boolean useKeyset(OffsetDateTime from, OffsetDateTime to, Representation representation) {
+		return keyset && representation.isFlat() && (from != null || to != null);
+	}
+
+	/**
+	 * Like {@link #stream}, for flat results, but remove the cursor columns from each row, and
+	 * remember the last one as the next cursor, if the page is full.
+	 */
+	private int streamWithCursor(QueryBuilder query, JsonStream jsonStream) throws IOException {
+		Object[] last = new Object[2];
+		RowWriter out = RowWriter.of(format, jsonStream);
+		out.start();
+		executor()
+				.addParameters(query.getParameters())
+				.buildAndConsume(query.getSql(), ignoreNullFlat(), timeZone, row -> {
+					last[0] = row.remove("_cursorts");
+					last[1] = row.remove("_cursorid");
+					writeRow(out, row);
+				});
+		out.end();
+		nextCursor = limit > 0 && out.getCount() == limit
+				? new HistoryCursor((String) last[0], ((Number) last[1]).longValue()).encode()
+				: null;
+		return out.getCount();
+	}
+
+	/**
+	 * Null values get left out of streamed flat rows, if requested, but not in tabular
+	 * formats, where they keep the position of their column
+	 */
+	private boolean ignoreNullFlat() {
+		return ignoreNull && !format.isTabular();
+	}
+
+	/**
+	 * Trees get streamed as JSON, or built at once and encoded in the requested binary format
+	 */
+	private StreamingResultBuilder treeBuilder(JsonStream jsonStream) throws IOException {
+		return new StreamingResultBuilder(resultBuilderConfig, jsonStream, metrics, BinaryEncoder.of(format, jsonStream));
+	}
+
+	/**
+	 * Write a row of a flat representation in the requested format
+	 */
+	private void writeRow(RowWriter out, Map<String, Object> row) throws IOException {
+		long start = System.nanoTime();
+		out.write(row);
+		metrics.addSince(Phase.SERIALIZATION, start);
+	}
+
+	/**
+	 * Shape key for {@link QueryBuilder#initCached}: everything, besides select and
+	 * where, that changes the SQL text of a query. Parameter values must not go in here.
+	 */
+	private String planKey(final String command, final Representation representation, Object... shape) {
+		StringJoiner sj = new StringJoiner("|");
+		sj.add(command);
+		sj.add(representation.name());
+		sj.add(String.valueOf(limit > 0));
+		sj.add(String.valueOf(offset >= 0));
+		for (Object part : shape) {
+			sj.add(String.valueOf(part));
+		}
+		return sj.toString();
+	}
+
 	public void logStats() {
 		LOG.info("query_execution", v("payload", logPayload));
 		LOG.debug(logPayload.get("sql").toString());
 	}
 
+	/**
+	 * @param buildTime in nanoseconds
+	 * @param executionTime in nanoseconds
+	 */
 	private void setStats(final String command, final Representation repr, long resultCount, long buildTime,
 			long executionTime, final String sql, Map<String, Object> extraData) {
+		metrics.add(Phase.BUILD, buildTime);
+		metrics.setRequest(command, repr, resultCount);
+
 		if (logPayload == null) {
 			logPayload = new HashMap<>();
 		} else {
@@ -731,8 +1092,8 @@ public class DataFetcher {
 		logPayload.put("command", command);
 		logPayload.put("representation", repr);
 		logPayload.put("result_count", resultCount);
-		logPayload.put("build_time", Long.valueOf(buildTime));
-		logPayload.put("execution_time", Long.valueOf(executionTime));
+		logPayload.put("build_time", Long.valueOf(buildTime / 1000000));
+		logPayload.put("execution_time", Long.valueOf(executionTime / 1000000));
 		logPayload.put("sql", sql);
 		if (extraData != null) {
 			logPayload.putAll(extraData);
@@ -743,6 +1104,24 @@ public class DataFetcher {
 		return logPayload;
 	}
 
+	/**
+	 * @return phases of this request, to be published after the response has been written
+	 */
+	public RequestMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param format of flat representations, trees are always JSON
+	 */
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
 	public void setLimit(long limit) {
 		this.limit = limit;
 	}
@@ -751,6 +1130,13 @@ public class DataFetcher {
 		this.offset = offset;
 	}
 
+	/**
+	 * @param costBudget limits the estimated cost of measurement queries, null for no limit
+	 */
+	public void setCostBudget(CostLimit.Budget costBudget) {
+		this.costBudget = costBudget;
+	}
+
 	public void setRoles(List<String> roles) {
 		if (roles == null) {
 			roles = new ArrayList<>();
@@ -783,6 +1169,155 @@ public class DataFetcher {
 		this.timeZone = timeZone;
 	}
 
+	/**
+	 * Use keyset pagination for flat history requests, instead of an offset.
+	 *
+	 * @param cursor the next cursor of the previous page, an empty string for the first
+	 *     page, or null to use the offset
+	 */
+	public void setCursor(String cursor) {
+		this.keyset = cursor != null;
+		this.cursor = cursor == null || cursor.isEmpty() ? null : HistoryCursor.decode(cursor);
+	}
+
+	/**
+	 * @return the cursor of the next page, or null if this was the last one
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Aggregate measurement history into time buckets. Only numeric measurements get
+	 * aggregated, the latest measurements are not affected.
+	 *
+	 * @param aggregate avg, min, max, sum, count, first or last
+	 * @param interval bucket size, ex. 15m, 1h or 1d
+	 */
+	public void setAggregation(String aggregate, String interval) {
+		if (aggregate == null && interval == null) {
+			this.aggregate = null;
+			return;
+		}
+		if (aggregate == null || interval == null) {
+			throw new SimpleException(ErrorCode.AGGREGATE_INCOMPLETE);
+		}
+		try {
+			this.aggregate = Aggregate.valueOf(aggregate.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			StringJoiner names = new StringJoiner(", ");
+			for (Aggregate agg : Aggregate.values()) {
+				names.add(agg.name().toLowerCase());
+			}
+			throw new SimpleException(ErrorCode.AGGREGATE_UNKNOWN, aggregate, names.toString());
+		}
+		Matcher matcher = INTERVAL_PATTERN.matcher(interval.trim());
+		long amount = matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+		if (amount <= 0) {
+			throw new SimpleException(ErrorCode.AGGREGATE_INTERVAL, interval);
+		}
+		long unit;
+		switch (matcher.group(2)) {
+			case "m":
+				unit = 60;
+				break;
+			case "h":
+				unit = 3600;
+				break;
+			case "d":
+				unit = 86400;
+				break;
+			case "w":
+				unit = 604800;
+				break;
+			default:
+				unit = 1;
+		}
+		this.intervalSeconds = amount * unit;
+	}
+
+	/**
+	 * Answer latest measurement requests from an in-memory cache, null disables it
+	 */
+	public static void setLatestMeasurementCache(LatestMeasurementCache latestMeasurementCache) {
+		latestCache = latestMeasurementCache;
+	}
+
+	public static LatestMeasurementCache getLatestMeasurementCache() {
+		return latestCache;
+	}
+
+	/**
+	 * Give station type, station and datatype listings an ETag, null disables it
+	 */
+	public static void setListingVersion(ListingVersion version) {
+		listingVersion = version;
+	}
+
+	public static ListingVersion getListingVersion() {
+		return listingVersion;
+	}
+
+	/**
+	 * Let identical concurrent latest measurement requests share one database query
+	 *
+	 * @param maxSizeInMB of a serialized result, that gets kept for sharing
+	 */
+	public static void setCoalesceLatest(boolean coalesce, int maxSizeInMB) {
+		latestFlight = coalesce ? new SingleFlight<>() : null;
+		latestFlightMaxSize = maxSizeInMB * 1000000;
+	}
+
+	public static SingleFlight<?> getLatestFlight() {
+		return latestFlight;
+	}
+
+	/**
+	 * Run the double, string and json queries of measurement requests in parallel, on
+	 * separate connections, with at most <code>maxThreads</code> threads in total. 0
+	 * disables it.
+	 */
+	public static void setParallelBranches(int maxThreads) {
+		setParallelBranches(maxThreads, false);
+	}
+
+	/**
+	 * @param virtual run the branches on virtual threads, if the JDK has them
+	 * @see #setParallelBranches(int)
+	 */
+	public static synchronized void setParallelBranches(int maxThreads, boolean virtual) {
+		if (branchExecutor != null) {
+			branchExecutor.shutdown();
+		}
+		if (maxThreads <= 0) {
+			branchExecutor = null;
+			branchPermits = null;
+			return;
+		}
+		branchPermits = new Semaphore(maxThreads);
+		branchExecutor = virtual ? VirtualThreads.newExecutor() : null;
+		if (branchExecutor == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ninja-branch-");
+			threadFactory.setDaemon(true);
+			branchExecutor = Executors.newCachedThreadPool(threadFactory);
+		}
+	}
+
+	/**
+	 * Split flat history requests into chunks of <code>days</code>, that run in parallel on
+	 * the threads of {@link #setParallelBranches}. 0 disables it.
+	 */
+	public static void setHistoryChunkDays(int days) {
+		historyChunkSeconds = days * 86400L;
+	}
+
+	/**
+	 * @param resultBuilderConfig used to stream tree representations
+	 */
+	public void setResultBuilderConfig(ResultBuilderConfig resultBuilderConfig) {
+		this.resultBuilderConfig = resultBuilderConfig;
+	}
+
 	private int checkMeasurementType(QueryBuilder query) {
 		List<WhereClauseTarget> mvalueTokens = query.getSelectExpansion().getUsedAliasesInWhere().get("mvalue");
 
@@ -14,14 +14,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
 
+import com.opendatahub.api.timeseries.ninja.controller.DataController.ResponseAbortedException;
 import com.opendatahub.api.timeseries.ninja.quota.QuotaLimitException;
 import com.opendatahub.api.timeseries.ninja.utils.conditionals.ConditionalMap;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead;
 import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
 
 /**
@@ -40,11 +43,26 @@ public class ErrorResponseConfig extends ResponseEntityExceptionHandler {
 		return buildResponse(HttpStatus.INTERNAL_SERVER_ERROR, ex);
 	}
 
+	/**
+	 * Rethrown, such that no error gets appended to the partial response. The servlet
+	 * container aborts the connection then, and clients notice the truncation.
+	 */
+	@ExceptionHandler
+	public void handleException(ResponseAbortedException ex) {
+		log.error(ex.getMessage(), ex.getCause());
+		throw ex;
+	}
+
 	@ExceptionHandler
 	public ResponseEntity<Object> handleException(SimpleException ex) {
 		return buildResponse(HttpStatus.BAD_REQUEST, ex);
 	}
 
+	@ExceptionHandler
+	public ResponseEntity<Object> handleException(Bulkhead.FullException ex) {
+		return buildResponse(HttpStatus.SERVICE_UNAVAILABLE, ex);
+	}
+
 	@ExceptionHandler
 	public ResponseEntity<Object> handleException(ResponseStatusException ex) {
 		return buildResponse(ex.getStatus(), ex);
@@ -64,6 +82,7 @@ public class ErrorResponseConfig extends ResponseEntityExceptionHandler {
 		HttpStatus status = HttpStatus.TOO_MANY_REQUESTS;
 
 		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
 
 		Map<String, Object> body = Map.of(
 			"message", ex.message,
@@ -104,6 +123,9 @@ public class ErrorResponseConfig extends ResponseEntityExceptionHandler {
 		if (log.isDebugEnabled()) {
 			log.error(message, exception);
 		}
-		return new ResponseEntity<>(map.get(), httpStatus);
+		/* Errors are JSON, also if the data would have been in another format */
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return new ResponseEntity<>(map.get(), headers, httpStatus);
 	}
 }
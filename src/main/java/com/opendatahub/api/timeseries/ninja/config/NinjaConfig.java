@@ -12,12 +12,26 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.TimeZone;
+import java.util.function.ToDoubleFunction;
 
 import com.jsoniter.output.JsonStream;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import com.opendatahub.api.timeseries.ninja.DataFetcher;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
 import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.JsonIterPostgresSupport;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead.Workload;
 import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ColumnMapRowMapper;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.LatestMeasurementCache;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ListingVersion;
 import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.QueryExecutor;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SingleFlight;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SlowQueryLog;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryPlanCache;
 
 
 @Component
@@ -26,9 +40,78 @@ public class NinjaConfig implements ApplicationListener<ContextRefreshedEvent> {
 	@Autowired
     NamedParameterJdbcTemplate jdbcTemplate;
 
+	@Autowired(required = false)
+	MeterRegistry meterRegistry;
+
 	@Value("${server.compression.enabled:true}")
 	private boolean enableCompression4JSON;
 
+	@Value("${ninja.query.plan-cache-size:256}")
+	private int planCacheSize;
+
+	@Value("${ninja.query.coalesce-latest:false}")
+	private boolean coalesceLatest;
+
+	@Value("${ninja.query.coalesce-latest-max-size-mb:8}")
+	private int coalesceLatestMaxSizeInMB;
+
+	@Value("${ninja.query.parallel-branches:0}")
+	private int parallelBranches;
+
+	@Value("${ninja.query.history-chunk-days:0}")
+	private int historyChunkDays;
+
+	@Value("${ninja.query.max-concurrent:0}")
+	private int maxConcurrentQueries;
+
+	@Value("${ninja.query.max-concurrent-timeout-ms:1000}")
+	private long maxConcurrentQueriesTimeout;
+
+	@Value("${ninja.virtual-threads.enabled:false}")
+	private boolean virtualThreads;
+
+	@Value("${ninja.slow-query.threshold-ms:0}")
+	private long slowQueryThreshold;
+
+	@Value("${ninja.slow-query.explain-sample-rate:0}")
+	private double slowQueryExplainSampleRate;
+
+	@Value("${ninja.slow-query.capacity:100}")
+	private int slowQueryCapacity;
+
+	@Value("${ninja.bulkhead.latest.size:0}")
+	private int bulkheadLatestSize;
+
+	@Value("${ninja.bulkhead.latest.timeout-ms:1000}")
+	private long bulkheadLatestTimeout;
+
+	@Value("${ninja.bulkhead.history.size:0}")
+	private int bulkheadHistorySize;
+
+	@Value("${ninja.bulkhead.history.timeout-ms:1000}")
+	private long bulkheadHistoryTimeout;
+
+	@Value("${ninja.bulkhead.metadata.size:0}")
+	private int bulkheadMetadataSize;
+
+	@Value("${ninja.bulkhead.metadata.timeout-ms:1000}")
+	private long bulkheadMetadataTimeout;
+
+	@Value("${ninja.bulkhead.events.size:0}")
+	private int bulkheadEventsSize;
+
+	@Value("${ninja.bulkhead.events.timeout-ms:1000}")
+	private long bulkheadEventsTimeout;
+
+	@Value("${ninja.latest-cache.max-staleness-ms:0}")
+	private long latestCacheMaxStaleness;
+
+	@Value("${ninja.latest-cache.max-rows:500000}")
+	private long latestCacheMaxRows;
+
+	@Value("${ninja.listing-etag.max-staleness-ms:0}")
+	private long listingEtagMaxStaleness;
+
     private boolean alreadySetup = false;
 
 	@Override
@@ -40,10 +123,62 @@ public class NinjaConfig implements ApplicationListener<ContextRefreshedEvent> {
 		/* Set the query builder, JDBC template's row mapper and JSON parser up */
 		QueryExecutor.setup(jdbcTemplate);
 
+		/* Reuse SQL strings of requests with the same shape, a size of 0 disables it */
+		if (planCacheSize > 0) {
+			QueryPlanCache planCache = new QueryPlanCache(planCacheSize);
+			QueryBuilder.setPlanCache(planCache);
+			registerResults("ninja.plancache.lookups", "Look-ups of SQL templates by request shape", planCache,
+				"hit", QueryPlanCache::getHits, "miss", QueryPlanCache::getMisses);
+		}
+
+		/* Identical latest measurement requests in flight share one query */
+		DataFetcher.setCoalesceLatest(coalesceLatest, coalesceLatestMaxSizeInMB);
+		if (DataFetcher.getLatestFlight() != null) {
+			registerResults("ninja.singleflight.calls", "Latest measurement requests, executed or shared with an identical one",
+				DataFetcher.getLatestFlight(), "executed", SingleFlight::getExecuted, "shared", SingleFlight::getShared);
+		}
+
+		/* Query double, string and json measurements on separate connections, 0 disables it */
+		DataFetcher.setParallelBranches(parallelBranches, virtualThreads);
+
+		/* Split long flat history requests into chunks, that use the same threads */
+		DataFetcher.setHistoryChunkDays(historyChunkDays);
+
+		/* Keep slow queries for /actuator/slowqueries, a threshold of 0 disables it */
+		if (slowQueryThreshold > 0) {
+			QueryExecutor.setSlowQueryLog(
+				new SlowQueryLog(jdbcTemplate, slowQueryThreshold, slowQueryExplainSampleRate, slowQueryCapacity));
+		}
+
+		/* Split the connection pool into slices per workload, a size of 0 leaves it unbounded */
+		setBulkhead(Workload.LATEST, bulkheadLatestSize, bulkheadLatestTimeout);
+		setBulkhead(Workload.HISTORY, bulkheadHistorySize, bulkheadHistoryTimeout);
+		setBulkhead(Workload.METADATA, bulkheadMetadataSize, bulkheadMetadataTimeout);
+		setBulkhead(Workload.EVENTS, bulkheadEventsSize, bulkheadEventsTimeout);
+		Bulkhead.setGlobal(maxConcurrentQueries > 0
+			? new Bulkhead(maxConcurrentQueries, maxConcurrentQueriesTimeout, meterRegistry)
+			: null);
+
+		/* Answer latest measurement requests from memory, a staleness of 0 disables it */
+		if (latestCacheMaxStaleness > 0) {
+			LatestMeasurementCache latestCache = new LatestMeasurementCache(latestCacheMaxStaleness, latestCacheMaxRows).start();
+			DataFetcher.setLatestMeasurementCache(latestCache);
+			registerResults("ninja.latestcache.lookups", "Look-ups of cached latest measurement results", latestCache,
+				"hit", LatestMeasurementCache::getHits, "miss", LatestMeasurementCache::getMisses);
+		}
+
+		/* Answer unchanged listings with 304 Not Modified, a staleness of 0 disables it */
+		if (listingEtagMaxStaleness > 0) {
+			DataFetcher.setListingVersion(new ListingVersion(listingEtagMaxStaleness));
+		}
+
+		/* Publish request phases, rows and bytes, if actuator metrics are available */
+		RequestMetrics.setRegistry(meterRegistry);
+
 		/* Set the global timezone for this Java application */
 		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
 
-		ColumnMapRowMapper.setTargetDefNameToAliasMap(new SelectExpansionConfig().getSelectExpansion().getSchema().getTargetDefNameToAliasMap());
+		ColumnMapRowMapper.setTargetDefNameToAliasMap(SelectExpansionConfig.getSchema().getTargetDefNameToAliasMap());
 
 		if (!enableCompression4JSON) {
 			JsonStream.setIndentionStep(4);
@@ -51,5 +186,27 @@ public class NinjaConfig implements ApplicationListener<ContextRefreshedEvent> {
 		JsonIterPostgresSupport.enable();
 	}
 
+	/**
+	 * Publish two counters of <code>obj</code> as one meter, tagged by result
+	 */
+	private <T> void registerResults(String name, String description, T obj, String first, ToDoubleFunction<T> firstCount,
+			String second, ToDoubleFunction<T> secondCount) {
+		if (meterRegistry == null) {
+			return;
+		}
+		FunctionCounter.builder(name, obj, firstCount)
+			.description(description)
+			.tag("result", first)
+			.register(meterRegistry);
+		FunctionCounter.builder(name, obj, secondCount)
+			.description(description)
+			.tag("result", second)
+			.register(meterRegistry);
+	}
+
+	private void setBulkhead(Workload workload, int size, long timeoutMs) {
+		Bulkhead.set(workload, size > 0 ? new Bulkhead(workload, size, timeoutMs, meterRegistry) : null);
+	}
+
 }
 
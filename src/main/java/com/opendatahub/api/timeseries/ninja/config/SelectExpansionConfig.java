@@ -4,6 +4,10 @@
 
 package com.opendatahub.api.timeseries.ninja.config;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
 import com.opendatahub.api.timeseries.ninja.utils.miniparser.Consumer;
 import com.opendatahub.api.timeseries.ninja.utils.miniparser.Token;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.TargetDefList;
@@ -12,16 +16,39 @@ import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.LookUpType;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.Schema;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.SelectExpansion;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.TargetDef;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.WhereClauseOperator;
+
+/**
+ * The Open Data Hub schema and where-clause operator table. Both are built and
+ * frozen once at class initialization and shared by all threads. Each request
+ * gets its own lightweight {@link SelectExpansion} state object on top of them,
+ * see {@link #newSelectExpansion()}.
+ */
+public final class SelectExpansionConfig {
 
-public class SelectExpansionConfig {
+	private static final Schema SCHEMA = buildSchema();
+	private static final Map<String, WhereClauseOperator> OPERATORS = buildOperators();
 
-	private SelectExpansion se;
+	private SelectExpansionConfig() {
+		throw new IllegalStateException("Utility class");
+	}
 
-	// TODO make this static and immutable: private static final Schema schema = new Schema();
+	/**
+	 * @return the frozen, process-wide Open Data Hub schema
+	 */
+	public static Schema getSchema() {
+		return SCHEMA;
+	}
 
-	public SelectExpansionConfig() {
-		super();
+	/**
+	 * Create a new per-request {@link SelectExpansion}, that shares the frozen
+	 * schema and operator table. This is cheap, no definitions get rebuilt.
+	 */
+	public static SelectExpansion newSelectExpansion() {
+		return new SelectExpansion(SCHEMA, OPERATORS);
+	}
 
+	private static Schema buildSchema() {
 		Schema schema = new Schema();
 
 		TargetDefList provenance = TargetDefList
@@ -235,8 +262,12 @@ public class SelectExpansionConfig {
 
 		schema.add(eventorigin);
 
-		se = new SelectExpansion();
-		se.setSchema(schema);
+		return schema.freeze();
+	}
+
+	private static Map<String, WhereClauseOperator> buildOperators() {
+		/* We use a throw-away expansion to register operators, and keep only its operator table */
+		SelectExpansion se = new SelectExpansion();
 
 		/*
 		 * Define where-clause items and their mappings to SQL. Some operators need
@@ -331,10 +362,8 @@ public class SelectExpansionConfig {
 		se.addOperator("JSON/LIST/NUMBER", "nin", "(%c#>'{%j}')::double precision not in (%v)");
 		se.addOperator("JSON/LIST/NULL", "nin", "%c#>'{%j}' not in (%v)");
 		se.addOperator("JSON/LIST/MIXED", "nin", "%c#>'{%j}' not in (%v)");
-	}
 
-	public SelectExpansion getSelectExpansion() {
-		return se;
+		return Collections.unmodifiableMap(new TreeMap<>(se.getOperators()));
 	}
 
 }
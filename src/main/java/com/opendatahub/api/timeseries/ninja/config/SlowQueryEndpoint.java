@@ -0,0 +1,36 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.config;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.opendatahub.api.timeseries.ninja.utils.SecurityUtils;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.QueryExecutor;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SlowQueryLog;
+
+/**
+ * Slow queries with their parameters and plans, at /actuator/slowqueries. Parameters
+ * reveal what others requested, hence only admins get them.
+ */
+@Component
+@WebEndpoint(id = "slowqueries")
+public class SlowQueryEndpoint {
+
+	@ReadOperation
+	public WebEndpointResponse<List<SlowQueryLog.Entry>> slowQueries() {
+		if (!SecurityUtils.getRolesFromAuthentication().contains(SecurityUtils.ROLE_OPENDATA_ADMIN)) {
+			return new WebEndpointResponse<>(HttpStatus.FORBIDDEN.value());
+		}
+		SlowQueryLog log = QueryExecutor.getSlowQueryLog();
+		return new WebEndpointResponse<>(log == null ? Collections.emptyList() : log.getEntries());
+	}
+}
@@ -0,0 +1,39 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.config;
+
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.opendatahub.api.timeseries.ninja.utils.VirtualThreads;
+
+/**
+ * Handle each request on its own virtual thread instead of the Tomcat thread pool, such
+ * that streaming to slow clients does not use up platform threads. Database concurrency
+ * is then bounded by ninja.query.max-concurrent instead of server.tomcat.threads.max.
+ */
+@Configuration
+@ConditionalOnProperty(name = "ninja.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadConfig {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+	@Bean
+	public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+		ExecutorService executor = VirtualThreads.newExecutor();
+		if (executor == null) {
+			LOG.warn("Virtual threads are enabled, but need Java 21 or later. Using platform threads.");
+			return protocolHandler -> {};
+		}
+		LOG.info("Handling requests on virtual threads");
+		return protocolHandler -> protocolHandler.setExecutor(executor);
+	}
+}
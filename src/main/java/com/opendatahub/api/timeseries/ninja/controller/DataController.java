@@ -8,11 +8,16 @@ package com.opendatahub.api.timeseries.ninja.controller;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.OffsetDateTime;
 
 import javax.servlet.http.HttpServletRequest;
@@ -29,18 +34,25 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
 import com.opendatahub.api.timeseries.ninja.DataFetcher;
+import com.opendatahub.api.timeseries.ninja.config.ErrorResponseConfig;
 import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
+import com.opendatahub.api.timeseries.ninja.quota.CostLimit;
 import com.opendatahub.api.timeseries.ninja.quota.HistoryLimit;
 import com.opendatahub.api.timeseries.ninja.utils.DateTimeParser;
 import com.opendatahub.api.timeseries.ninja.utils.FileUtils;
 import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics.Phase;
 import com.opendatahub.api.timeseries.ninja.utils.SecurityUtils;
 import com.opendatahub.api.timeseries.ninja.utils.Timer;
-import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ListingVersion;
 import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilderConfig;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.BinaryEncoder;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.Format;
 import com.opendatahub.api.timeseries.ninja.utils.simpleexception.ErrorCodeInterface;
 import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
 
@@ -76,10 +88,18 @@ public class DataController {
 	@Autowired
 	HistoryLimit historyLimit;
 
+	@Autowired
+	CostLimit costLimit;
+
 	public enum ErrorCode implements ErrorCodeInterface {
 		DATE_PARSE_ERROR(
 				"Invalid date given. Format must be %s, where [] denotes optionality. Do not forget, single digits must be leaded by 0. Error message: %s."),
-		METHOD_NOT_ALLOWED("URL scheme not found '%s' not allowed with %s representation.");
+		METHOD_NOT_ALLOWED("URL scheme not found '%s' not allowed with %s representation."),
+		CURSOR_NOT_SUPPORTED("The 'cursor' parameter is only supported for flat measurement history."),
+		AGGREGATE_NOT_SUPPORTED("The 'aggregate' and 'interval' parameters are only supported for measurement history."),
+		FORMAT_NOT_SUPPORTED("The format '%s' is only supported for flat representations."),
+		CURSOR_FORMAT_NOT_SUPPORTED("The 'cursor' parameter is not supported with format '%s', use 'offset' instead."),
+		FORMAT_LIMIT_REQUIRED("The format '%s' needs a positive 'limit' for flat representations, use 'limit' and 'offset' to page through all records.");
 
 		private final String msg;
 
@@ -120,6 +140,9 @@ public class DataController {
 			HttpServletResponse response,
 			@PathVariable final String pathvar1) throws IOException {
 		Representation rep = Representation.get(pathvar1);
+		if (rep.isNode() && notModified(request, response, Format.JSON)) {
+			return;
+		}
 		final List<Map<String, Object>> queryResult;
 		DataFetcher dataFetcher = new DataFetcher();
 		if (rep.isEdge()) {
@@ -166,10 +189,12 @@ public class DataController {
 
 		}
 		request.setAttribute("data_fetcher", dataFetcher.getStats());
-		serializeJsonToResponse(queryResult, response, dataFetcher.getStats());
+		serializeJsonToResponse(queryResult, response, dataFetcher.getStats(), dataFetcher.getMetrics());
 	}
 
-	@GetMapping(value = "/{pathvar1}/{pathvar2}", produces = "application/json;charset=UTF-8")
+	@GetMapping(value = "/{pathvar1}/{pathvar2}", produces = { Format.MEDIA_TYPE_JSON,
+			Format.MEDIA_TYPE_NDJSON, Format.MEDIA_TYPE_CSV, Format.MEDIA_TYPE_TSV, Format.MEDIA_TYPE_ARROW,
+			Format.MEDIA_TYPE_MSGPACK, Format.MEDIA_TYPE_CBOR })
 	public void requestLevel02(
 			HttpServletRequest request,
 			HttpServletResponse response,
@@ -180,7 +205,8 @@ public class DataController {
 			@RequestParam(value = "select", required = false) final String select,
 			@RequestParam(value = "where", required = false) final String where,
 			@RequestParam(value = "shownull", required = false, defaultValue = DEFAULT_SHOWNULL) final Boolean showNull,
-			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct) throws IOException {
+			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct,
+			@RequestParam(value = "format", required = false) final String format) throws IOException {
 		final Representation repr = Representation.get(pathvar1);
 
 		DataFetcher dataFetcher = new DataFetcher();
@@ -192,54 +218,41 @@ public class DataController {
 		dataFetcher.setSelect(select);
 		dataFetcher.setRoles(getRoles(request));
 		dataFetcher.setDistinct(distinct);
-
-		String entryPoint = null;
-		String exitPoint = null;
-		List<Map<String, Object>> queryResult = null;
+		dataFetcher.setFormat(getFormat(request, format, repr, limit));
 
 		switch (repr) {
 			case FLAT_NODE:
-				streamFlatResponse(response, offset, limit,
-					stream -> dataFetcher.fetchStationsFlat(pathvar2, repr, stream));
-				request.setAttribute("data_fetcher", dataFetcher.getStats());
-				return;
 			case TREE_NODE:
-				queryResult = dataFetcher.fetchStations(pathvar2, repr);
-				entryPoint = "stationtype";
-				exitPoint = "station";
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("stationtype")
+					.addExitPoint("station", true));
+				if (notModified(request, response, dataFetcher.getFormat())) {
+					break;
+				}
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchStationsStream(pathvar2, repr, stream));
 				break;
 			case FLAT_EVENT:
 			case TREE_EVENT:
-				queryResult = dataFetcher.fetchEvents(pathvar2, false, null, null, repr);
-				entryPoint = "eventorigin";
-				exitPoint = "location";
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("eventorigin")
+					.addExitPoint("location", true));
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchEventsStream(pathvar2, false, null, null, repr, stream));
 				break;
 			case FLAT_EDGE:
-				streamFlatResponse(response, offset, limit,
-					stream -> dataFetcher.fetchEdgesFlat(pathvar2, repr, stream));
-				request.setAttribute("data_fetcher", dataFetcher.getStats());
-				return;
 			case TREE_EDGE:
-				queryResult = dataFetcher.fetchEdges(pathvar2, repr);
-				entryPoint = "edgetype";
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("edgetype"));
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchEdgesStream(pathvar2, repr, stream));
 				break;
 			default:
-				break;
-		}
-
-		if (queryResult == null) {
-			throw new ResponseStatusException(
-					HttpStatus.NOT_FOUND,
-					"Route does not exist for representation " + repr.getTypeAsString());
+				throw new ResponseStatusException(
+						HttpStatus.NOT_FOUND,
+						"Route does not exist for representation " + repr.getTypeAsString());
 		}
-
-		ResultBuilderConfig resultBuilderConfig = createResultBuilderConfigExcludeMetadataHistory(showNull)
-			.setEntryPoint(entryPoint)
-			.addExitPoint(exitPoint, true);
 		request.setAttribute("data_fetcher", dataFetcher.getStats());
-		serializeJsonToResponse(
-				buildResult(resultBuilderConfig, queryResult, offset, limit, repr),
-				response, dataFetcher.getStats());
 	}
 
 	/**
@@ -247,7 +260,9 @@ public class DataController {
 	 * @param pathvar2 stations | eventorigin
 	 * @param pathvar3 datatypes | "latest" or start-timepoint
 	 */
-	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}", produces = "application/json;charset=UTF-8")
+	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}", produces = { Format.MEDIA_TYPE_JSON,
+			Format.MEDIA_TYPE_NDJSON, Format.MEDIA_TYPE_CSV, Format.MEDIA_TYPE_TSV, Format.MEDIA_TYPE_ARROW,
+			Format.MEDIA_TYPE_MSGPACK, Format.MEDIA_TYPE_CBOR })
 	public void requestLevel03(
 			HttpServletRequest request,
 			HttpServletResponse response,
@@ -259,7 +274,8 @@ public class DataController {
 			@RequestParam(value = "select", required = false) final String select,
 			@RequestParam(value = "where", required = false) final String where,
 			@RequestParam(value = "shownull", required = false, defaultValue = DEFAULT_SHOWNULL) final Boolean showNull,
-			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct) throws IOException {
+			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct,
+			@RequestParam(value = "format", required = false) final String format) throws IOException {
 
 		final Representation repr = Representation.get(pathvar1);
 
@@ -272,52 +288,41 @@ public class DataController {
 		dataFetcher.setSelect(select);
 		dataFetcher.setRoles(getRoles(request));
 		dataFetcher.setDistinct(distinct);
-
-		String entryPoint = null;
-		String exitPoint = null;
-		List<Map<String, Object>> queryResult = null;
+		dataFetcher.setFormat(getFormat(request, format, repr, limit));
 
 		switch (repr) {
 			case FLAT_NODE:
-				streamFlatResponse(response, offset, limit,
-					stream -> dataFetcher.fetchStationsAndTypesFlat(pathvar2, pathvar3, repr, stream));
-				request.setAttribute("data_fetcher", dataFetcher.getStats());
-				return;
 			case TREE_NODE:
-				queryResult = dataFetcher.fetchStationsAndTypes(pathvar2, pathvar3, repr);
-				entryPoint = "stationtype";
-				exitPoint = "datatype";
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("stationtype")
+					.addExitPoint("datatype", true));
+				if (notModified(request, response, dataFetcher.getFormat())) {
+					break;
+				}
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchStationsAndTypesStream(pathvar2, pathvar3, repr, stream));
 				break;
 			case FLAT_EVENT:
-			case TREE_EVENT:
-				if ("latest".equalsIgnoreCase(pathvar3)) {
-					queryResult = dataFetcher.fetchEvents(pathvar2, true, null, null, repr);
-				} else {
-					queryResult = dataFetcher.fetchEvents(pathvar2, false,
-							getDateTime(pathvar3).toOffsetDateTime(), null, repr);
-				}
-				entryPoint = "eventorigin";
+			case TREE_EVENT: {
+				boolean latestOnly = "latest".equalsIgnoreCase(pathvar3);
+				OffsetDateTime from = latestOnly ? null : getDateTime(pathvar3).toOffsetDateTime();
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("eventorigin"));
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchEventsStream(pathvar2, latestOnly, from, null, repr, stream));
 				break;
+			}
 			default:
-				break;
-		}
-
-		if (queryResult == null) {
-			throw new ResponseStatusException(
-					HttpStatus.NOT_FOUND,
-					"Route does not exist for representation " + repr.getTypeAsString());
+				throw new ResponseStatusException(
+						HttpStatus.NOT_FOUND,
+						"Route does not exist for representation " + repr.getTypeAsString());
 		}
-
-		ResultBuilderConfig resultBuilderConfig = createResultBuilderConfigExcludeMetadataHistory(showNull)
-			.setEntryPoint(entryPoint)
-			.addExitPoint(exitPoint, true);
 		request.setAttribute("data_fetcher", dataFetcher.getStats());
-		serializeJsonToResponse(
-				buildResult(resultBuilderConfig, queryResult, offset, limit, repr),
-				response, dataFetcher.getStats());
 	}
 
-	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}/{pathvar4}", produces = "application/json;charset=UTF-8")
+	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}/{pathvar4}", produces = { Format.MEDIA_TYPE_JSON,
+			Format.MEDIA_TYPE_NDJSON, Format.MEDIA_TYPE_CSV, Format.MEDIA_TYPE_TSV, Format.MEDIA_TYPE_ARROW,
+			Format.MEDIA_TYPE_MSGPACK, Format.MEDIA_TYPE_CBOR })
 	public void requestLevel04(
 			HttpServletRequest request,
 			HttpServletResponse response,
@@ -331,6 +336,7 @@ public class DataController {
 			@RequestParam(value = "where", required = false) final String where,
 			@RequestParam(value = "shownull", required = false, defaultValue = DEFAULT_SHOWNULL) final Boolean showNull,
 			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct,
+			@RequestParam(value = "format", required = false) final String format,
 			@RequestParam(value = "timezone", required = false, defaultValue = DEFAULT_TIMEZONE) final String timeZone) throws IOException {
 
 		final Representation repr = Representation.get(pathvar1);
@@ -344,56 +350,43 @@ public class DataController {
 		dataFetcher.setSelect(select);
 		dataFetcher.setRoles(getRoles(request));
 		dataFetcher.setDistinct(distinct);
+		dataFetcher.setFormat(getFormat(request, format, repr, limit));
 		dataFetcher.setTimeZone(timeZone);
 
-		String entryPoint = null;
-		List<Map<String, Object>> queryResult = null;
-
 		switch (repr) {
 			case FLAT_NODE:
+			case TREE_NODE:
 				if (!"latest".equalsIgnoreCase(pathvar4)) {
 					throw new ResponseStatusException(HttpStatus.NOT_FOUND,
 						"Route does not exist for representation " + repr.getTypeAsString());
 				}
-				streamFlatResponse(response, offset, limit,
-					stream -> dataFetcher.fetchStationsTypesAndMeasurementHistoryFlat(
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("stationtype"));
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchStationsTypesAndMeasurementHistoryStream(
 						pathvar2, pathvar3, null, null, repr, stream));
-				request.setAttribute("data_fetcher", dataFetcher.getStats());
-				return;
-			case TREE_NODE:
-				if ("latest".equalsIgnoreCase(pathvar4)) {
-					queryResult = dataFetcher.fetchStationsTypesAndMeasurementHistory(
-							pathvar2, pathvar3, null, null, repr);
-					entryPoint = "stationtype";
-				}
 				break;
 			case FLAT_EVENT:
-			case TREE_EVENT:
-				queryResult = dataFetcher.fetchEvents(pathvar2, false,
-						getDateTime(pathvar3).toOffsetDateTime(),
-						getDateTime(pathvar4).toOffsetDateTime(), repr);
-				entryPoint = "eventorigin";
+			case TREE_EVENT: {
+				OffsetDateTime from = getDateTime(pathvar3).toOffsetDateTime();
+				OffsetDateTime to = getDateTime(pathvar4).toOffsetDateTime();
+				dataFetcher.setResultBuilderConfig(createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("eventorigin"));
+				streamResponse(response, dataFetcher, offset, limit,
+					stream -> dataFetcher.fetchEventsStream(pathvar2, false, from, to, repr, stream));
 				break;
+			}
 			default:
-				break;
-		}
-
-		if (queryResult == null) {
-			throw new ResponseStatusException(
-					HttpStatus.NOT_FOUND,
-					"Route does not exist for representation " + repr.getTypeAsString());
+				throw new ResponseStatusException(
+						HttpStatus.NOT_FOUND,
+						"Route does not exist for representation " + repr.getTypeAsString());
 		}
-
-		ResultBuilderConfig resultBuilderConfig = createResultBuilderConfigExcludeMetadataHistory(showNull)
-			.setEntryPoint(entryPoint)
-			.addExitPoint(null, true);
 		request.setAttribute("data_fetcher", dataFetcher.getStats());
-		serializeJsonToResponse(
-				buildResult(resultBuilderConfig, queryResult, offset, limit, repr),
-				response, dataFetcher.getStats());
 	}
 
-	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}/{pathvar4}/{pathvar5}", produces = "application/json;charset=UTF-8")
+	@GetMapping(value = "/{pathvar1}/{pathvar2}/{pathvar3}/{pathvar4}/{pathvar5}", produces = { Format.MEDIA_TYPE_JSON,
+			Format.MEDIA_TYPE_NDJSON, Format.MEDIA_TYPE_CSV, Format.MEDIA_TYPE_TSV, Format.MEDIA_TYPE_ARROW,
+			Format.MEDIA_TYPE_MSGPACK, Format.MEDIA_TYPE_CBOR })
 	public void requestLevel05(
 			HttpServletRequest request,
 			HttpServletResponse response,
@@ -408,7 +401,11 @@ public class DataController {
 			@RequestParam(value = "where", required = false) final String where,
 			@RequestParam(value = "shownull", required = false, defaultValue = DEFAULT_SHOWNULL) final Boolean showNull,
 			@RequestParam(value = "distinct", required = false, defaultValue = DEFAULT_DISTINCT) final Boolean distinct,
-			@RequestParam(value = "timezone", required = false, defaultValue = DEFAULT_TIMEZONE) final String timeZone) throws IOException {
+			@RequestParam(value = "format", required = false) final String format,
+			@RequestParam(value = "timezone", required = false, defaultValue = DEFAULT_TIMEZONE) final String timeZone,
+			@RequestParam(value = "cursor", required = false) final String cursor,
+			@RequestParam(value = "aggregate", required = false) final String aggregate,
+			@RequestParam(value = "interval", required = false) final String interval) throws IOException {
 
 		final Representation repr = Representation.get(pathvar1);
 
@@ -421,60 +418,52 @@ public class DataController {
 		dataFetcher.setSelect(select);
 		dataFetcher.setRoles(getRoles(request));
 		dataFetcher.setDistinct(distinct);
+		dataFetcher.setFormat(getFormat(request, format, repr, limit));
 		dataFetcher.setTimeZone(timeZone);
 
-		List<Map<String, Object>> queryResult = null;
-		ResultBuilderConfig resultBuilderConfig = createResultBuilderConfigExcludeMetadataHistory(showNull);
-
 		switch (repr) {
-			case FLAT_NODE: {
+			case FLAT_NODE:
+			case TREE_NODE: {
 				ZonedDateTime from = getDateTime(pathvar4);
 				ZonedDateTime to = getDateTime(pathvar5);
 				OffsetDateTime fromOdt = from.toOffsetDateTime();
 				OffsetDateTime toOdt = to.toOffsetDateTime();
-				if ("metadata".equalsIgnoreCase(pathvar3)) {
-					streamFlatResponse(response, offset, limit,
-						stream -> dataFetcher.fetchStationsAndMetadataHistoryFlat(
-							pathvar2, fromOdt, toOdt, repr, stream));
-				} else {
-					historyLimit.check(request, from, to).ifPresent(e -> { throw e; });
-					streamFlatResponse(response, offset, limit,
-						stream -> dataFetcher.fetchStationsTypesAndMeasurementHistoryFlat(
-							pathvar2, pathvar3, fromOdt, toOdt, repr, stream));
+				ResultBuilderConfig resultBuilderConfig = createResultBuilderConfigExcludeMetadataHistory(showNull)
+					.setEntryPoint("stationtype");
+				dataFetcher.setResultBuilderConfig(resultBuilderConfig);
+				if (cursor != null && (!repr.isFlat() || "metadata".equalsIgnoreCase(pathvar3))) {
+					throw new SimpleException(ErrorCode.CURSOR_NOT_SUPPORTED);
 				}
-				request.setAttribute("data_fetcher", dataFetcher.getStats());
-				return;
-			}
-			case TREE_NODE: {
-				ZonedDateTime from = getDateTime(pathvar4);
-				ZonedDateTime to = getDateTime(pathvar5);
+				if (cursor != null && dataFetcher.getFormat().isTyped()) {
+					throw new SimpleException(ErrorCode.CURSOR_FORMAT_NOT_SUPPORTED, dataFetcher.getFormat());
+				}
+				if ((aggregate != null || interval != null) && "metadata".equalsIgnoreCase(pathvar3)) {
+					throw new SimpleException(ErrorCode.AGGREGATE_NOT_SUPPORTED);
+				}
+				dataFetcher.setCursor(cursor);
+				dataFetcher.setAggregation(aggregate, interval);
 				if ("metadata".equalsIgnoreCase(pathvar3)) {
-					queryResult = dataFetcher.fetchStationsAndMetadataHistory(
-							pathvar2, from.toOffsetDateTime(), to.toOffsetDateTime(), repr);
 					resultBuilderConfig.clearExitPoints();
 					resultBuilderConfig.addExitPoint("datatype", false);
+					streamResponse(response, dataFetcher, offset, limit,
+						stream -> dataFetcher.fetchStationsAndMetadataHistoryStream(
+							pathvar2, fromOdt, toOdt, repr, stream));
 				} else {
 					historyLimit.check(request, from, to).ifPresent(e -> { throw e; });
-					queryResult = dataFetcher.fetchStationsTypesAndMeasurementHistory(
-							pathvar2, pathvar3, from.toOffsetDateTime(), to.toOffsetDateTime(), repr);
+					dataFetcher.setCostBudget(costLimit.resolve(request));
+					streamResponse(response, dataFetcher, offset, limit,
+						stream -> dataFetcher.fetchStationsTypesAndMeasurementHistoryStream(
+							pathvar2, pathvar3, fromOdt, toOdt, repr, stream),
+						cursor == null ? null : dataFetcher::getNextCursor);
 				}
-				resultBuilderConfig.setEntryPoint("stationtype");
 				break;
 			}
 			default:
-				break;
-		}
-
-		if (queryResult == null) {
-			throw new ResponseStatusException(
-					HttpStatus.NOT_FOUND,
-					"Route does not exist for representation " + repr.getTypeAsString());
+				throw new ResponseStatusException(
+						HttpStatus.NOT_FOUND,
+						"Route does not exist for representation " + repr.getTypeAsString());
 		}
-
 		request.setAttribute("data_fetcher", dataFetcher.getStats());
-		serializeJsonToResponse(
-				buildResult(resultBuilderConfig, queryResult, offset, limit, repr),
-				response, dataFetcher.getStats());
 	}
 
 	private static ZonedDateTime getDateTime(final String dateString) {
@@ -490,58 +479,175 @@ public class DataController {
 		return new ResultBuilderConfig()
 				.addExitPoint("metadatahistory", false)
 				.setShowNull(showNull)
-				// FIXME use a static immutable schema everywhere
-				.setSchema(new SelectExpansionConfig().getSelectExpansion().getSchema())
+				.setSchema(SelectExpansionConfig.getSchema())
 				.setMaxAllowedSizeInMB(maxAllowedSizeInMB);
 	}
 
-	private Map<String, Object> buildResult(ResultBuilderConfig builderConfig,
-			final List<Map<String, Object>> queryResult, final long offset,
-			final long limit, final Representation representation) {
-		final Map<String, Object> result = new HashMap<>();
-		result.put("offset", offset);
-		result.put("limit", limit);
-		switch (representation) {
-			case FLAT_EDGE:
-			case FLAT_NODE:
-			case FLAT_EVENT:
-				result.put("data", queryResult);
-				break;
-			case TREE_NODE:
-			case TREE_EDGE:
-			case TREE_EVENT:
-				result.put("data", ResultBuilder.build(builderConfig, queryResult));
-				break;
+	@FunctionalInterface
+	private interface ResponseStreamWriter {
+		void write(JsonStream stream) throws IOException;
+	}
+
+	/* Count the bytes written into the response, for metrics */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
 		}
-		return result;
 	}
 
-	@FunctionalInterface
-	private interface FlatStreamWriter {
-		void write(JsonStream stream) throws IOException;
+	/**
+	 * Failure after parts of a response have been sent already. An error response
+	 * cannot be sent anymore, and closing the data properly would hide the failure,
+	 * so the connection gets aborted instead, see {@link ErrorResponseConfig}.
+	 */
+	public static class ResponseAbortedException extends RuntimeException {
+		public ResponseAbortedException(long sentBytes, Throwable cause) {
+			super(String.format("Response aborted after %d bytes: %s", sentBytes, cause.getMessage()), cause);
+		}
 	}
 
-	private static void streamFlatResponse(HttpServletResponse response, long offset, long limit,
-			FlatStreamWriter writer) throws IOException {
-		response.setContentType("application/json;charset=UTF-8");
-		JsonStream stream = new JsonStream(response.getOutputStream(), 65536);
-		stream.writeObjectStart();
-		stream.writeObjectField("offset"); stream.writeVal(offset);
-		stream.writeMore();
-		stream.writeObjectField("limit"); stream.writeVal(limit);
-		stream.writeMore();
-		stream.writeObjectField("data");
-		writer.write(stream);
-		stream.writeObjectEnd();
-		stream.flush();
+	private static void streamResponse(HttpServletResponse response, DataFetcher dataFetcher, long offset, long limit,
+			ResponseStreamWriter writer) throws IOException {
+		streamResponse(response, dataFetcher, offset, limit, writer, null);
 	}
 
-	private static void serializeJsonToResponse(Object whatever, HttpServletResponse response, Map<String, Object> logging) throws IOException {
+	/**
+	 * Write the data in the format of <code>dataFetcher</code>. JSON gets wrapped into an
+	 * object with pagination fields, binary formats into the equivalent map, other formats
+	 * send them as headers: X-Offset, X-Limit, and X-Next-Cursor as trailer, since it is
+	 * known only after the data.
+	 *
+	 * @param dataFetcher gives the format, and its metrics get published after the response
+	 *     has been written
+	 * @param next supplies the cursor of the next page after the data has been written, or
+	 *     null to omit the "next" field
+	 * @throws ResponseAbortedException if writing fails after the response got committed
+	 */
+	private static void streamResponse(HttpServletResponse response, DataFetcher dataFetcher, long offset, long limit,
+			ResponseStreamWriter writer, Supplier<String> next) throws IOException {
+		RequestMetrics metrics = dataFetcher.getMetrics();
+		Format format = dataFetcher.getFormat();
+		response.setContentType(format.getContentType());
+		if (!format.isEnveloped()) {
+			response.setHeader("X-Offset", String.valueOf(offset));
+			response.setHeader("X-Limit", String.valueOf(limit));
+			if (next != null) {
+				setNextCursorTrailer(response, next);
+			}
+		}
+		CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+		JsonStream stream = new JsonStream(out, 65536);
+		try {
+			if (format.isBinary()) {
+				BinaryEncoder encoder = BinaryEncoder.of(format, stream);
+				encoder.writeMapHeader(next == null ? 3 : 4);
+				encoder.writeString("offset"); encoder.writeLong(offset);
+				encoder.writeString("limit"); encoder.writeLong(limit);
+				encoder.writeString("data");
+				writer.write(stream);
+				if (next != null) {
+					encoder.writeString("next"); encoder.writeValue(next.get());
+				}
+			} else if (format.isEnveloped()) {
+				stream.writeObjectStart();
+				stream.writeObjectField("offset"); stream.writeVal(offset);
+				stream.writeMore();
+				stream.writeObjectField("limit"); stream.writeVal(limit);
+				stream.writeMore();
+				stream.writeObjectField("data");
+				writer.write(stream);
+				if (next != null) {
+					stream.writeMore();
+					stream.writeObjectField("next"); stream.writeVal(next.get());
+				}
+				stream.writeObjectEnd();
+			} else {
+				writer.write(stream);
+			}
+			long start = System.nanoTime();
+			stream.flush();
+			metrics.addSince(Phase.SERIALIZATION, start);
+		} catch (IOException | RuntimeException e) {
+			if (response.isCommitted()) {
+				throw new ResponseAbortedException(out.count, e);
+			}
+			throw e;
+		}
+		metrics.record(out.count);
+	}
+
+	private static void setNextCursorTrailer(HttpServletResponse response, Supplier<String> next) {
+		try {
+			response.setTrailerFields(() -> {
+				String cursor = next.get();
+				return cursor == null ? Map.of() : Map.of("X-Next-Cursor", cursor);
+			});
+			response.setHeader("Trailer", "X-Next-Cursor");
+		} catch (IllegalStateException e) {
+			/* Trailers need HTTP/1.1 chunked encoding or HTTP/2, the cursor is left out then */
+		}
+	}
+
+	/**
+	 * Trees are available as JSON and in the binary formats only. Accept headers asking for
+	 * others get JSON, while such a format parameter is an error.
+	 */
+	private static Format getFormat(HttpServletRequest request, String format, Representation repr, long limit) {
+		Format result = Format.get(format, request.getHeader("Accept"));
+		if (!repr.isFlat() && !result.supportsTrees()) {
+			if (format != null && !format.isBlank()) {
+				throw new SimpleException(ErrorCode.FORMAT_NOT_SUPPORTED, format);
+			}
+			return Format.JSON;
+		}
+		/* MessagePack arrays need their size up front, so a page is held in memory, see MessagePackRowWriter */
+		if (repr.isFlat() && result == Format.MSGPACK && limit <= 0) {
+			throw new SimpleException(ErrorCode.FORMAT_LIMIT_REQUIRED, result);
+		}
+		return result;
+	}
+
+	private static void serializeJsonToResponse(Object whatever, HttpServletResponse response, Map<String, Object> logging,
+			RequestMetrics metrics) throws IOException {
 		Timer timer = new Timer();
 		timer.start();
 		response.setContentType("application/json;charset=UTF-8");
-		JsonStream.serialize(whatever, response.getOutputStream());
-		logging.put("serialization_time", Long.valueOf(timer.stop()));
+		CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+		JsonStream.serialize(whatever, out);
+		long serializationTime = timer.stopNanos();
+		logging.put("serialization_time", Long.valueOf(serializationTime / 1000000));
+		metrics.add(Phase.SERIALIZATION, serializationTime);
+		metrics.record(out.count);
+	}
+
+	/**
+	 * Answer with 304 Not Modified, if the If-None-Match header has the current ETag of a
+	 * station type, station or datatype listing, see {@link ListingVersion}. Otherwise the
+	 * ETag gets set for the response, that follows.
+	 */
+	private static boolean notModified(HttpServletRequest request, HttpServletResponse response, Format format) {
+		ListingVersion version = DataFetcher.getListingVersion();
+		if (version == null) {
+			return false;
+		}
+		List<String> roles = new ArrayList<>(getRoles(request));
+		Collections.sort(roles);
+		String etag = version.etag(request.getRequestURI(), request.getQueryString(), format.name(), roles.toString());
+		return etag != null && new ServletWebRequest(request, response).checkNotModified(etag);
 	}
 
 	private static List<String> getRoles(HttpServletRequest request) {
@@ -0,0 +1,126 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.quota;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import io.github.bucket4j.Bucket;
+
+/**
+ * Rate limit buckets with an idle timeout and a maximum number of entries. Thread-safe.
+ *
+ * Entries are kept in access order, so the least recently used ones are the first to
+ * expire or to be evicted, both in constant time per lookup. A bucket, that has been
+ * idle longer than its refill period, is full again. Dropping it and creating a new one
+ * on the next request does not change any limit, as long as the idle timeout is longer
+ * than that period.
+ */
+public class BucketStore {
+
+	private static class Entry {
+		final Bucket bucket;
+		long lastAccess;
+
+		Entry(Bucket bucket, long lastAccess) {
+			this.bucket = bucket;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final int maxSize;
+	private final long idleNanos;
+	private final LongSupplier clock;
+	private final LinkedHashMap<String, Entry> buckets = new LinkedHashMap<>(256, 0.75f, true);
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public BucketStore(final int maxSize, final Duration idleTimeout) {
+		this(maxSize, idleTimeout, System::nanoTime);
+	}
+
+	/**
+	 * @param clock in nanoseconds, like {@link System#nanoTime}
+	 */
+	public BucketStore(final int maxSize, final Duration idleTimeout, final LongSupplier clock) {
+		if (maxSize <= 0 || idleTimeout.isNegative() || idleTimeout.isZero()) {
+			throw new RuntimeException("A BucketStore must have a positive size and idle timeout");
+		}
+		this.maxSize = maxSize;
+		this.idleNanos = idleTimeout.toNanos();
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the bucket of <code>key</code>, or a new one from <code>factory</code>, if it did
+	 *     not exist or has been idle for too long
+	 */
+	public Bucket resolve(final String key, final Function<String, Bucket> factory) {
+		long now = clock.getAsLong();
+		synchronized (buckets) {
+			expire(now);
+			Entry entry = buckets.get(key);
+			if (entry == null) {
+				entry = new Entry(factory.apply(key), now);
+				buckets.put(key, entry);
+				if (buckets.size() > maxSize) {
+					Iterator<Entry> it = buckets.values().iterator();
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+			entry.lastAccess = now;
+			return entry.bucket;
+		}
+	}
+
+	/* Idle entries are at the head, stop at the first one in use */
+	private void expire(long now) {
+		Iterator<Map.Entry<String, Entry>> it = buckets.entrySet().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().getValue().lastAccess < idleNanos) {
+				break;
+			}
+			it.remove();
+			expirations.incrementAndGet();
+		}
+	}
+
+	public int size() {
+		synchronized (buckets) {
+			return buckets.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return number of entries removed, because they have been idle for too long
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * @return number of entries removed, because the store was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BucketStore [size=" + size() + "/" + maxSize + ", expirations=" + getExpirations() + ", evictions="
+				+ getEvictions() + "]";
+	}
+}
@@ -0,0 +1,156 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.quota;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.jsoniter.JsonIterator;
+import com.jsoniter.any.Any;
+
+import com.opendatahub.api.timeseries.ninja.quota.PricingPlan.Policy;
+import com.opendatahub.api.timeseries.ninja.utils.Referer;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+import com.opendatahub.api.timeseries.ninja.utils.SecurityUtils;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.QueryExecutor;
+
+/**
+ * Implement a quota limit on the cost, that PostgreSQL estimates for a query, before it
+ * gets executed. Unlike the {@link HistoryLimit}, this also catches short ranges over
+ * many station and data types, and lets long ranges of a single timeseries pass.
+ *
+ * The estimate comes from a plain EXPLAIN, which plans the query without running it,
+ * in units of the planner's cost constants (sequential page reads by default).
+ */
+@Component
+public class CostLimit {
+	private static final Logger LOG = LoggerFactory.getLogger(CostLimit.class);
+
+	@Value("${ninja.quota.cost.guest:0}")
+	private long quotaGuest;
+
+	@Value("${ninja.quota.cost.referer:0}")
+	private long quotaReferer;
+
+	@Value("${ninja.quota.cost.basic:0}")
+	private long quotaBasic;
+
+	@Value("${ninja.quota.cost.advanced:0}")
+	private long quotaAdvanced;
+
+	@Value("${ninja.quota.cost.premium:0}")
+	private long quotaPremium;
+
+	@Value("${ninja.quota.cost.url}")
+	private String quotaUrl;
+
+	private Map<PricingPlan.Policy, Long> quotaMap;
+
+	@PostConstruct
+	public void initQuotaMap() {
+		quotaMap = new EnumMap<>(PricingPlan.Policy.class);
+
+		quotaMap.put(Policy.ANONYMOUS, quotaGuest);
+		quotaMap.put(Policy.REFERER, quotaReferer);
+		quotaMap.put(Policy.AUTHENTICATED_BASIC, quotaBasic);
+		quotaMap.put(Policy.AUTHENTICATED_ADVANCED, quotaAdvanced);
+		quotaMap.put(Policy.AUTHENTICATED_PREMIUM, quotaPremium);
+		quotaMap.put(Policy.NO_RESTRICTION, Long.valueOf(0));
+
+		LOG.debug("Loaded cost limit quota map: {}", quotaMap);
+	}
+
+	/**
+	 * The cost limit of the caller, to be checked once the query is known
+	 *
+	 * @param request HttpRequest of the call. Used to retrieve the caller authorization and role
+	 * @return null, if there is no limit for this caller
+	 */
+	public Budget resolve(HttpServletRequest request) {
+		List<String> roles = SecurityUtils.getRolesFromAuthentication(SecurityUtils.RoleType.QUOTA);
+		String referer = Referer.getReferer(request);
+		String user = SecurityUtils.getSubjectFromAuthentication();
+
+		PricingPlan plan = PricingPlan.resolvePlan(roles, user, referer, quotaMap);
+		if (plan.getLimit() <= 0) {
+			LOG.debug("No cost quota limit enabled for this role");
+			return null;
+		}
+		return new Budget(plan, quotaUrl);
+	}
+
+	public static final class Estimate {
+		public final double cost;
+		public final long rows;
+
+		Estimate(double cost, long rows) {
+			this.cost = cost;
+			this.rows = rows;
+		}
+	}
+
+	public static final class Budget {
+		private final PricingPlan plan;
+		private final String hint;
+
+		Budget(PricingPlan plan, String hint) {
+			this.plan = plan;
+			this.hint = hint;
+		}
+
+		public long getLimit() {
+			return plan.getLimit();
+		}
+
+		/**
+		 * Checks if the estimated cost of the query is within the limit of the caller
+		 *
+		 * @param metrics gets the time of the EXPLAIN, null for none
+		 * @return Optional that wraps a QuotaLimitException. <p>
+		 * This way the caller must do an explicit throw of the Exception and it's clear that an Exception is being thrown
+		 */
+		public Optional<QuotaLimitException> check(final String sql, final Map<String, Object> parameters,
+				RequestMetrics metrics) {
+			String json = QueryExecutor
+					.init()
+					.setMetrics(metrics)
+					.addParameters(parameters)
+					.buildSingleResultOrNull("explain (format json) " + sql, String.class);
+			Estimate estimate = parse(json);
+			LOG.debug("Estimated cost is {} for {} rows, limit is {}", estimate.cost, estimate.rows, plan.getLimit());
+
+			if (estimate.cost > plan.getLimit()) {
+				LOG.info("Caller hit cost limit with an estimate of {} for {} rows!", estimate.cost, estimate.rows);
+				return Optional.of(new QuotaLimitException(
+						String.format(
+								"The estimated cost of %.0f (about %d rows) exceeds the limit of %s. "
+										+ "Request fewer station or data types, a shorter date range, or use limit",
+								estimate.cost, estimate.rows, plan.getLimit()),
+						plan.toString(),
+						hint));
+			}
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @param json result of <code>EXPLAIN (FORMAT JSON)</code>
+	 * @return total cost and rows of the top plan node
+	 */
+	public static Estimate parse(final String json) {
+		Any top = JsonIterator.deserialize(json).get(0, "Plan");
+		return new Estimate(top.get("Total Cost").toDouble(), top.get("Plan Rows").toLong());
+	}
+}
@@ -9,8 +9,8 @@ import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
-import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -19,12 +19,18 @@ import com.jsoniter.output.JsonStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.ConsumptionProbe;
@@ -58,9 +64,37 @@ public class RateLimitInterceptor implements HandlerInterceptor {
 	@Value("${ninja.quota.url}")
     private String quotaUrl;
 
-	private static final Map<String, Bucket> cache = new ConcurrentHashMap<>();
+	@Value("${ninja.quota.buckets.max-size:100000}")
+	private int bucketsMaxSize;
+
+	@Value("${ninja.quota.buckets.idle-timeout-sec:60}")
+	private long bucketsIdleTimeout;
+
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry;
+
+	private BucketStore buckets;
+
+	@PostConstruct
+	public void initBucketStore() {
+		buckets = new BucketStore(bucketsMaxSize, Duration.ofSeconds(bucketsIdleTimeout));
+		if (meterRegistry != null) {
+			Gauge.builder("ninja.quota.buckets", buckets, BucketStore::size)
+				.description("Rate limit buckets in memory")
+				.register(meterRegistry);
+			FunctionCounter.builder("ninja.quota.buckets.removed", buckets, BucketStore::getExpirations)
+				.description("Rate limit buckets removed from memory")
+				.tag("reason", "idle")
+				.register(meterRegistry);
+			FunctionCounter.builder("ninja.quota.buckets.removed", buckets, BucketStore::getEvictions)
+				.description("Rate limit buckets removed from memory")
+				.tag("reason", "size")
+				.register(meterRegistry);
+		}
+		LOG.debug("Rate limit buckets: {}", buckets);
+	}
 
-    public static Bucket resolveBucket(PricingPlan limitation, String user, String referer, String ip, String path) {
+    public Bucket resolveBucket(PricingPlan limitation, String user, String referer, String ip, String path) {
 		StringJoiner cacheKey = new StringJoiner("+++");
 		switch (limitation.getPolicy()) {
 			case NO_RESTRICTION:
@@ -100,7 +134,7 @@ public class RateLimitInterceptor implements HandlerInterceptor {
 				cacheKey.add(path);
 				break;
 		}
-		return cache.computeIfAbsent(
+		return buckets.resolve(
 			cacheKey.toString(),
 			k -> {
 				return Bucket
@@ -123,7 +157,7 @@ public class RateLimitInterceptor implements HandlerInterceptor {
 		List<String> roles = SecurityUtils.getRolesFromAuthentication(SecurityUtils.RoleType.QUOTA);
 		String referer = Referer.getReferer(request);
 		String ip = request.getLocalAddr();
-		String path = request.getRequestURI();
+		String path = getRoute(request);
 		String user = SecurityUtils.getSubjectFromAuthentication();
 
 		LOG.debug("Rate Limiting Roles: {}", roles);
@@ -157,6 +191,13 @@ public class RateLimitInterceptor implements HandlerInterceptor {
 
 		response.addHeader("X-Rate-Limit-Remaining", "0");
 		response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+		if (meterRegistry != null) {
+			Counter.builder("ninja.quota.rejected")
+				.description("Requests rejected by the rate limit")
+				.tag("policy", plan.getPolicy().name())
+				.register(meterRegistry)
+				.increment();
+		}
 		JsonStream.setIndentionStep(2);
 		response.getWriter().write(
 			JsonStream.serialize(
@@ -172,6 +213,15 @@ public class RateLimitInterceptor implements HandlerInterceptor {
 		return false;
     }
 
+	/**
+	 * The route template, ex. /v2/{pathvar1}/{pathvar2}, instead of the URI with concrete
+	 * station types or dates, such that the number of buckets does not grow with them
+	 */
+	private static String getRoute(HttpServletRequest request) {
+		Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		return pattern == null ? request.getRequestURI() : pattern.toString();
+	}
+
 	private static Bandwidth getBandwidth(PricingPlan plan) {
 		long quota = plan.getLimit();
 		return Bandwidth.classic(
@@ -0,0 +1,88 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Base64;
+
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.ErrorCodeInterface;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
+
+/**
+ * Position inside a history result, ordered by (timestamp, timeseries id). Clients
+ * get it as an opaque string, and pass it back to continue after the last row of
+ * the previous page, without an offset.
+ */
+public final class HistoryCursor {
+
+	/* PostgreSQL's text output of a timestamptz, ex. "2024-01-15 10:30:00.123456+02" */
+	private static final DateTimeFormatter PG_TIMESTAMPTZ = new DateTimeFormatterBuilder()
+			.appendPattern("yyyy-MM-dd HH:mm:ss")
+			.optionalStart()
+			.appendFraction(ChronoField.NANO_OF_SECOND, 0, 6, true)
+			.optionalEnd()
+			.appendOffset("+HH:mm", "+00")
+			.toFormatter();
+
+	private enum ErrorCode implements ErrorCodeInterface {
+		INVALID_CURSOR("'%s' is not a valid cursor. Use the 'next' value of a previous response.");
+
+		private final String msg;
+
+		ErrorCode(final String msg) {
+			this.msg = msg;
+		}
+
+		@Override
+		public String getMsg() {
+			return "PARSING ERROR: " + msg;
+		}
+	}
+
+	private final String timestampText;
+	private final OffsetDateTime timestamp;
+	private final long timeseriesId;
+
+	/**
+	 * @param timestamp as text, like PostgreSQL prints a timestamptz
+	 * @param timeseriesId of the same row
+	 */
+	public HistoryCursor(final String timestamp, final long timeseriesId) {
+		this.timestampText = timestamp;
+		this.timestamp = OffsetDateTime.parse(timestamp, PG_TIMESTAMPTZ);
+		this.timeseriesId = timeseriesId;
+	}
+
+	public static HistoryCursor decode(final String cursor) {
+		try {
+			String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+			if (parts.length == 2) {
+				return new HistoryCursor(parts[0], Long.parseLong(parts[1]));
+			}
+		} catch (IllegalArgumentException | DateTimeException e) {
+			// handled below
+		}
+		throw new SimpleException(ErrorCode.INVALID_CURSOR, cursor);
+	}
+
+	public String encode() {
+		return Base64.getUrlEncoder()
+				.withoutPadding()
+				.encodeToString((timestampText + "|" + timeseriesId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public OffsetDateTime getTimestamp() {
+		return timestamp;
+	}
+
+	public long getTimeseriesId() {
+		return timeseriesId;
+	}
+}
@@ -0,0 +1,122 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Time spent in each phase of a single request, published as Micrometer meters once the
+ * response has been written. Streamed responses interleave the phases row by row, so each
+ * phase sums up its share. Queries running in parallel add up their times, such that
+ * phases may exceed the wall clock time.
+ *
+ * Meters, tagged by command and representation:
+ * <ul>
+ * <li>ninja.request.phase: timer, additionally tagged by phase</li>
+ * <li>ninja.request.rows: rows returned</li>
+ * <li>ninja.response.bytes: bytes of JSON written, before compression</li>
+ * </ul>
+ */
+public class RequestMetrics {
+
+	public enum Phase {
+		/* Where clause parsing, select expansion and SQL generation */
+		BUILD,
+		/* Waiting for a connection and the database, including fetching rows */
+		EXECUTION,
+		/* Decoding rows into maps */
+		MAPPING,
+		/* Building tree representations */
+		TREE,
+		/* Writing JSON into the response */
+		SERIALIZATION;
+
+		private final String tag = name().toLowerCase();
+	}
+
+	private static MeterRegistry registry;
+
+	private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+	private String command;
+	private Representation representation;
+	private long rows;
+
+	/**
+	 * @param meterRegistry where requests get published, null disables it
+	 */
+	public static void setRegistry(MeterRegistry meterRegistry) {
+		registry = meterRegistry;
+	}
+
+	public static boolean isEnabled() {
+		return registry != null;
+	}
+
+	public void add(Phase phase, long durationNanos) {
+		nanos.addAndGet(phase.ordinal(), durationNanos);
+	}
+
+	/**
+	 * Add the time since <code>startNanos</code>, a value of {@link System#nanoTime()}
+	 *
+	 * @return the current {@link System#nanoTime()}, to start the next measurement with
+	 */
+	public long addSince(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		nanos.addAndGet(phase.ordinal(), now - startNanos);
+		return now;
+	}
+
+	public long getNanos(Phase phase) {
+		return nanos.get(phase.ordinal());
+	}
+
+	public void setRequest(String command, Representation representation, long rows) {
+		this.command = command;
+		this.representation = representation;
+		this.rows = rows;
+	}
+
+	/**
+	 * Publish this request, if {@link #setRequest} has been called. Phases, that did not take
+	 * place, are left out.
+	 */
+	public void record(long bytes) {
+		MeterRegistry meterRegistry = registry;
+		if (meterRegistry == null || command == null) {
+			return;
+		}
+		String repr = representation == null ? "none" : representation.name().toLowerCase();
+		for (Phase phase : Phase.values()) {
+			long value = getNanos(phase);
+			if (value <= 0) {
+				continue;
+			}
+			io.micrometer.core.instrument.Timer
+				.builder("ninja.request.phase")
+				.description("Time spent in a phase of a request")
+				.tags("command", command, "representation", repr, "phase", phase.tag)
+				.register(meterRegistry)
+				.record(value, TimeUnit.NANOSECONDS);
+		}
+		DistributionSummary
+			.builder("ninja.request.rows")
+			.description("Rows returned by a request")
+			.tags("command", command, "representation", repr)
+			.register(meterRegistry)
+			.record(rows);
+		DistributionSummary
+			.builder("ninja.response.bytes")
+			.description("Bytes written by a request")
+			.baseUnit("bytes")
+			.tags("command", command, "representation", repr)
+			.register(meterRegistry)
+			.record(bytes);
+	}
+}
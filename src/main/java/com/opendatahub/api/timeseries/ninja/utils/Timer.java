@@ -16,4 +16,8 @@ public class Timer {
 		return (System.nanoTime() - time) / 1000000;
 	}
 
+	public long stopNanos() {
+		return System.nanoTime() - time;
+	}
+
 }
@@ -0,0 +1,33 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads of Java 21 and later, while the service still builds for Java 17. They
+ * get looked up at runtime, such that the same build runs on both.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+		// This is just an utility class
+	}
+
+	/**
+	 * @return an executor, that starts a new virtual thread for each task, or null, if the
+	 *     running JDK has no virtual threads, or only as preview feature
+	 */
+	public static ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+}
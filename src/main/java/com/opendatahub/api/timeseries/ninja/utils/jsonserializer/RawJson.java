@@ -0,0 +1,66 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.jsonserializer;
+
+import java.io.IOException;
+
+import com.jsoniter.JsonIterator;
+import com.jsoniter.any.Any;
+import com.jsoniter.output.JsonStream;
+import com.jsoniter.spi.Encoder;
+import com.jsoniter.spi.JsoniterSpi;
+
+/**
+ * An already valid JSON text, ex. of a jsonb column, which gets written verbatim by
+ * jsoniter. Use {@link #parse()} only if the structure is needed.
+ */
+public final class RawJson {
+
+	static {
+		/* Registered here, such that it is in place before the first instance gets encoded */
+		JsoniterSpi.registerTypeEncoder(RawJson.class, new Encoder.ReflectionEncoder() {
+			@Override
+			public void encode(Object obj, JsonStream stream) throws IOException {
+				stream.writeRaw(((RawJson) obj).json);
+			}
+
+			@Override
+			public Any wrap(Object obj) {
+				return ((RawJson) obj).parse();
+			}
+		});
+	}
+
+	private final String json;
+
+	/**
+	 * @param json must be valid, as returned by PostgreSQL for jsonb values
+	 */
+	public RawJson(final String json) {
+		this.json = json;
+	}
+
+	public Any parse() {
+		return JsonIterator.deserialize(json);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof RawJson && json.equals(((RawJson) obj).json);
+	}
+
+	@Override
+	public int hashCode() {
+		return json.hashCode();
+	}
+
+	/**
+	 * @return the JSON text
+	 */
+	@Override
+	public String toString() {
+		return json;
+	}
+}
@@ -4,6 +4,7 @@
 
 package com.opendatahub.api.timeseries.ninja.utils.querybuilder;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -18,28 +19,47 @@ import com.opendatahub.api.timeseries.ninja.utils.conditionals.ConditionalString
  * Create a SQL string, depending on given conditions, a select list, an optional where-clause and
  * a {@link SelectExpansion} definition.
  *
+ * If a {@link QueryPlanCache} is set up, builders created with {@link #initCached} look up the final
+ * SQL by request shape first. On a hit, all SQL building is skipped and only parameters get bound.
+ *
  * @author Peter Moser
  */
 public class QueryBuilder {
 
+	private static QueryPlanCache planCache = null;
+
 	private ConditionalStringBuilder sql = new ConditionalStringBuilder();
 	private SelectExpansion se;
 	private ConditionalMap parameters = new ConditionalMap();
 	private boolean groupByExpanded = false;
 
-	public QueryBuilder(final SelectExpansion selectExpansion, final String select, final String where, final boolean isDistinct, String... selectDefNames) {
+	/* Set on a plan cache hit, the SQL is known already */
+	private String plannedSql = null;
+
+	/* Set on a plan cache miss, to store the SQL once it has been built */
+	private String planKey = null;
+
+	private QueryBuilder(final SelectExpansion selectExpansion) {
 		if (selectExpansion == null) {
 			throw new RuntimeException("Missing Select Expansion.");
 		}
 		se = selectExpansion;
 		sql.setSeparator(" ");
+	}
+
+	public QueryBuilder(final SelectExpansion selectExpansion, final String select, final String where, final boolean isDistinct, String... selectDefNames) {
+		this(selectExpansion);
 		reset(select, where, isDistinct, selectDefNames);
 	}
 
 	public QueryBuilder reset(final String select, final String where, final boolean isDistinct, String... selectDefNames) {
 		se.setWhereClause(where);
 		se.setDistinct(isDistinct);
-		se.expand(select, selectDefNames);
+		if (isPlanned()) {
+			se.bindWhere(selectDefNames);
+		} else {
+			se.expand(select, selectDefNames);
+		}
 		groupByExpanded = false;
 		return this;
 	}
@@ -48,6 +68,65 @@ public class QueryBuilder {
 		return new QueryBuilder(selectExpansion, select, where, isDistinct, selectDefNames);
 	}
 
+	/**
+	 * Like {@link #init}, but reuse the SQL of a previous request with the same shape, if
+	 * a {@link QueryPlanCache} is set up. The shape consists of <code>shapeKey</code>, the
+	 * normalised select list, the structure of the where-clause without its literal values,
+	 * the distinct flag and the select definitions.
+	 *
+	 * The caller must encode everything else, that changes the SQL text, inside
+	 * <code>shapeKey</code>, for instance which optional SQL parts are conditionally
+	 * added. Parameter values must not be part of it.
+	 *
+	 * @param shapeKey everything that determines the SQL text, except select and where
+	 * @return {@link QueryBuilder}
+	 */
+	public static QueryBuilder initCached(final String shapeKey, SelectExpansion selectExpansion, final String select, final String where, final boolean isDistinct, String... selectDefNames) {
+		QueryPlanCache cache = planCache;
+		if (cache == null) {
+			return init(selectExpansion, select, where, isDistinct, selectDefNames);
+		}
+		QueryBuilder qb = new QueryBuilder(selectExpansion);
+		selectExpansion.setWhereClause(where);
+		String key = shapeKey
+			+ "|" + isDistinct
+			+ "|" + normalizeSelect(select)
+			+ "|" + String.join(",", selectDefNames)
+			+ "|" + selectExpansion.getWhereShape();
+		qb.plannedSql = cache.get(key);
+		if (qb.plannedSql == null) {
+			qb.planKey = key;
+		}
+		return qb.reset(select, where, isDistinct, selectDefNames);
+	}
+
+	private static String normalizeSelect(final String select) {
+		if (select == null) {
+			return "*";
+		}
+		String[] targets = select.split(",");
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = targets[i].trim();
+		}
+		Arrays.sort(targets);
+		return String.join(",", targets);
+	}
+
+	public static synchronized void setPlanCache(QueryPlanCache queryPlanCache) {
+		QueryBuilder.planCache = queryPlanCache;
+	}
+
+	public static QueryPlanCache getPlanCache() {
+		return planCache;
+	}
+
+	/**
+	 * @return true, if the SQL came from the {@link QueryPlanCache}
+	 */
+	public boolean isPlanned() {
+		return plannedSql != null;
+	}
+
 	/**
 	 * Set a parameter with <code>name</code> and <code>value</code> and add
 	 * <code>sqlPart</code> to the end of the SQL string, if the
@@ -116,6 +195,9 @@ public class QueryBuilder {
 	 * @return {@link QueryBuilder}
 	 */
 	public QueryBuilder addSql(String sqlPart) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.add(sqlPart);
 		return this;
 	}
@@ -128,16 +210,25 @@ public class QueryBuilder {
 	 * @return {@link QueryBuilder}
 	 */
 	public QueryBuilder addSqlIf(String sqlPart, boolean condition) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.addIf(sqlPart, condition);
 		return this;
 	}
 
 	public QueryBuilder addSqlIfAlias(String sqlPart, String alias) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.addIf(sqlPart, se.getUsedTargetNames().contains(alias));
 		return this;
 	}
 
 	public QueryBuilder addSqlIfDefinitionAnd(String sqlPart, String selectDefName, boolean condition) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.addIf(sqlPart, condition && se.getUsedDefNames().contains(selectDefName));
 		return this;
 	}
@@ -155,6 +246,9 @@ public class QueryBuilder {
 	 * @return {@link QueryBuilder}
 	 */
 	public QueryBuilder addSqlIfNotNull(String sqlPart, Object object) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.addIfNotNull(sqlPart, object);
 		return this;
 	}
@@ -166,6 +260,9 @@ public class QueryBuilder {
 	 * @return {@link QueryBuilder}
 	 */
 	public QueryBuilder addSql(String... sqlPart) {
+		if (isPlanned()) {
+			return this;
+		}
 		sql.add(sqlPart);
 		return this;
 	}
@@ -189,6 +286,9 @@ public class QueryBuilder {
 	}
 
 	public QueryBuilder expandSelectPrefix(String prefix, boolean condition, final String... selectDef) {
+		if (isPlanned()) {
+			return this;
+		}
 		StringJoiner sj = new StringJoiner(", ");
 		for (String expansion : se.getExpansion(selectDef).values()) {
 			sj.add(expansion);
@@ -230,7 +330,15 @@ public class QueryBuilder {
 	}
 
 	public String getSql() {
-		return sql.toString().trim();
+		if (isPlanned()) {
+			return plannedSql;
+		}
+		String result = sql.toString().trim();
+		if (planKey != null) {
+			planCache.put(planKey, result);
+			planKey = null;
+		}
+		return result;
 	}
 
 	public SelectExpansion getSelectExpansion() {
@@ -0,0 +1,89 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.querybuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of compiled SQL templates, keyed by a normalised request
+ * shape. Two requests with the same shape differ only in their bound parameters,
+ * so the SQL text can be reused as it is. Thread-safe.
+ *
+ * @see QueryBuilder#initCached
+ */
+public class QueryPlanCache {
+
+	private final int maxSize;
+	private final Map<String, String> plans;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public QueryPlanCache(final int maxSize) {
+		if (maxSize <= 0) {
+			throw new RuntimeException("A QueryPlanCache must have a positive size");
+		}
+		this.maxSize = maxSize;
+		/* Access-ordered, such that the eldest entry is the least recently used one */
+		this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > QueryPlanCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached SQL for this shape, or null on a miss
+	 */
+	public String get(final String shapeKey) {
+		String sql;
+		synchronized (plans) {
+			sql = plans.get(shapeKey);
+		}
+		if (sql == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return sql;
+	}
+
+	public void put(final String shapeKey, final String sql) {
+		synchronized (plans) {
+			plans.put(shapeKey, sql);
+		}
+	}
+
+	public int size() {
+		synchronized (plans) {
+			return plans.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void clear() {
+		synchronized (plans) {
+			plans.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "QueryPlanCache [size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+	}
+}
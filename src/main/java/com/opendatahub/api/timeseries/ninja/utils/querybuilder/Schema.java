@@ -5,32 +5,49 @@
 package com.opendatahub.api.timeseries.ninja.utils.querybuilder;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.LookUp;
 import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.LookUpType;
 
 /**
  * Schema
+ *
+ * A schema can be frozen with {@link #freeze()}, afterwards it is read-only and
+ * safe to be shared between threads.
  */
 public class Schema {
 	public static record ExitPoint(String exitPoint, boolean includeExitPoint) {
 	};
 
+	private static record Hierarchy(List<List<String>> levels, List<String> triggerKeys) {
+	};
+
+	private static record HierarchyKey(String entryPoint, Map<String, ExitPoint> exitPoints) {
+	};
+
 	private boolean dirty = true;
+	private boolean frozen = false;
 
 	/* We use a tree map here, because we want to have elements naturally sorted */
 	private Map<String, TargetDefList> schema = new TreeMap<>();
 	private Map<String, String> targetDefNameToAliasMap = new TreeMap<>();
 	private Map<String, List<TargetDef>> aliasOrNameToTargetDefMap = new TreeMap<>();
-	private List<List<String>> hierarchy = new ArrayList<>();
-	private List<String> hierarchyTriggerKeys = new ArrayList<>();
+
+	/* Only used on frozen schemas, because otherwise the hierarchy could still change */
+	private final Map<HierarchyKey, Hierarchy> hierarchyCache = new ConcurrentHashMap<>();
 
 	public Schema add(final TargetDefList targetDefList) {
+		if (frozen) {
+			throw new RuntimeException("A frozen schema cannot be changed");
+		}
 		if (targetDefList == null) {
 			throw new RuntimeException("A Schema only contains non-null TargetDefLists");
 		}
@@ -129,6 +146,12 @@ public class Schema {
 	}
 
 	public Schema compile() {
+		if (!dirty) {
+			return this;
+		}
+		targetDefNameToAliasMap.clear();
+		aliasOrNameToTargetDefMap.clear();
+
 		for (TargetDefList targetDefList : schema.values()) {
 			for (TargetDef targetDef : targetDefList.getAll().values()) {
 				if (targetDef.hasAlias()) {
@@ -149,24 +172,55 @@ public class Schema {
 		return this;
 	}
 
-	// XXX Cache results
+	/**
+	 * Compile this schema and make it read-only. A frozen schema can be shared
+	 * between threads, and caches its hierarchies.
+	 *
+	 * @return this {@link Schema}
+	 */
+	public Schema freeze() {
+		compile();
+		schema = Collections.unmodifiableMap(schema);
+		targetDefNameToAliasMap = Collections.unmodifiableMap(targetDefNameToAliasMap);
+		aliasOrNameToTargetDefMap = Collections.unmodifiableMap(aliasOrNameToTargetDefMap);
+		frozen = true;
+		return this;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private Hierarchy hierarchy(String entryPoint, Map<String, ExitPoint> exitPoints) {
+		Map<String, ExitPoint> exits = exitPoints == null ? new HashMap<>() : new HashMap<>(exitPoints);
+		if (!frozen) {
+			return buildHierarchy(entryPoint, exits);
+		}
+		return hierarchyCache.computeIfAbsent(new HierarchyKey(entryPoint, exits),
+			k -> buildHierarchy(k.entryPoint(), k.exitPoints()));
+	}
+
+	private Hierarchy buildHierarchy(String entryPoint, Map<String, ExitPoint> exitPoints) {
+		List<List<String>> levels = new ArrayList<>();
+		List<String> triggerKeys = new ArrayList<>();
+		buildLevelRec(get(entryPoint), exitPoints, 0, levels, triggerKeys);
+		List<List<String>> frozenLevels = new ArrayList<>();
+		for (List<String> level : levels) {
+			frozenLevels.add(Collections.unmodifiableList(level));
+		}
+		return new Hierarchy(Collections.unmodifiableList(frozenLevels), Collections.unmodifiableList(triggerKeys));
+	}
+
 	public List<List<String>> getHierarchy(String entryPoint, Map<String, ExitPoint> exitPoints) {
-		hierarchy.clear();
-		hierarchyTriggerKeys.clear();
-		buildLevelRec(get(entryPoint), exitPoints, 0);
-		return hierarchy;
+		return hierarchy(entryPoint, exitPoints).levels();
 	}
 
 	public List<List<String>> getHierarchy(String entryPoint) {
 		return getHierarchy(entryPoint, null);
 	}
 
-	// XXX Cache results
 	public List<String> getHierarchyTriggerKeys(String entryPoint, Map<String, ExitPoint> exitPoints) {
-		hierarchy.clear();
-		hierarchyTriggerKeys.clear();
-		buildLevelRec(get(entryPoint), exitPoints, 0);
-		return hierarchyTriggerKeys;
+		return hierarchy(entryPoint, exitPoints).triggerKeys();
 	}
 
 	public List<String> getHierarchyTriggerKeys(String entryPoint) {
@@ -184,7 +238,8 @@ public class Schema {
 		}
 	}
 
-	private void buildLevelRec(TargetDefList entryPoint, Map<String, ExitPoint> exitPoints, int curLevel) {
+	private static void buildLevelRec(TargetDefList entryPoint, Map<String, ExitPoint> exitPoints, int curLevel,
+			List<List<String>> hierarchy, List<String> hierarchyTriggerKeys) {
 		List<String> level = hierarchy.size() > curLevel ? hierarchy.get(curLevel) : new ArrayList<>();
 		level.add(entryPoint.getName());
 
@@ -209,7 +264,7 @@ public class Schema {
 						// return point for non-inclusive exit points. The subtree is completely ignored
 						continue;
 					}
-					buildLevelRec(tdl, exitPoints, curLevel);
+					buildLevelRec(tdl, exitPoints, curLevel, hierarchy, hierarchyTriggerKeys);
 				}
 				curLevel--;
 			}
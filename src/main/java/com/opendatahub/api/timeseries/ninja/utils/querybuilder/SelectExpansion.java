@@ -121,28 +121,63 @@ public class SelectExpansion {
 	private Set<String> usedTargetDefListNames = new TreeSet<>();
 	private Map<String, List<WhereClauseTarget>> usedJSONAliasesInWhere = new TreeMap<>();
 	private Map<String, WhereClauseOperator> whereClauseOperatorMap = new TreeMap<>();
+	private boolean sharedOperators = false;
 
 	private Map<String, Object> whereParameters = null;
 	private String whereSQL = null;
 	private String whereClause = null;
+	private Token parsedWhere = null;
+	private String parsedWhereClause = null;
 	private boolean dirty = true;	// TODO Move dirty flags to Schema, or do we need it also here?
 	private boolean isDistinct = false;
 
+	public SelectExpansion() {
+		super();
+	}
+
+	/**
+	 * Create a per-request expansion on top of a frozen schema and a shared
+	 * operator table. Neither gets copied nor compiled again, so this is cheap.
+	 *
+	 * @param schema a frozen {@link Schema}, see {@link Schema#freeze()}
+	 * @param operators a where-clause operator table, that must not change anymore
+	 */
+	public SelectExpansion(final Schema schema, final Map<String, WhereClauseOperator> operators) {
+		if (schema == null) {
+			throw new SimpleException(ErrorCode.SCHEMA_NULL);
+		}
+		if (!schema.isFrozen()) {
+			throw new RuntimeException("A shared schema must be frozen");
+		}
+		this.schema = schema;
+		this.whereClauseOperatorMap = operators;
+		this.sharedOperators = true;
+	}
+
 	public void addOperator(String tokenType, String operator, String sqlSnippet) {
 		addOperator(tokenType, operator, sqlSnippet, null);
 	}
 
 	public void addOperator(String tokenType, String operator, String sqlSnippet, Consumer check) {
+		if (sharedOperators) {
+			/* Copy on write, never touch a shared operator table */
+			whereClauseOperatorMap = new TreeMap<>(whereClauseOperatorMap);
+			sharedOperators = false;
+		}
 		String opName = tokenType.toUpperCase() + "/" + operator.toUpperCase();
 		whereClauseOperatorMap.put(opName, new WhereClauseOperator(opName, sqlSnippet, check));
 	}
 
+	public Map<String, WhereClauseOperator> getOperators() {
+		return whereClauseOperatorMap;
+	}
+
 	public SelectExpansion setSchema(final Schema schema) {
 		if (schema == null) {
 			throw new SimpleException(ErrorCode.SCHEMA_NULL);
 		}
 
-		schema.compile(); // XXX remove this and add a dirty flag to Schema
+		schema.compile();
 		this.schema = schema;
 		dirty = true;
 		return this;
@@ -176,22 +211,13 @@ public class SelectExpansion {
 	}
 
 	private void _expandWhere(String where, Set<String> allowedTargetDefs) {
-		if (where == null || where.isEmpty()) {
+		Token whereAST = parseWhere(where);
+		if (whereAST == null) {
 			whereSQL = null;
 			whereParameters = null;
 			return;
 		}
 
-		WhereClauseParser whereParser = new WhereClauseParser(where);
-		Token whereAST;
-		try {
-			whereAST = whereParser.parse();
-		} catch (SimpleException e) {
-			e.setDescription("Syntax error in WHERE-clause");
-			e.addData("hint", "You need to escape the following characters ()', within the value part of your filters");
-			throw e;
-		}
-
 		StringBuilder sbFull = new StringBuilder();
 		whereParameters = new TreeMap<>();
 
@@ -259,12 +285,84 @@ public class SelectExpansion {
 		whereSQL = sbFull.toString();
 	}
 
-	private Pattern slicePattern = Pattern.compile("(\\d*)(:?)(\\d*)");
+	/**
+	 * Parse the where-clause, or return the cached AST, if we parsed the same
+	 * clause already.
+	 */
+	private Token parseWhere(String where) {
+		if (where == null || where.isEmpty()) {
+			return null;
+		}
+		if (parsedWhere != null && where.equals(parsedWhereClause)) {
+			return parsedWhere;
+		}
 
-	private String whereClauseItem(String column, String alias, String operator, Token clauseValueToken, Token jsonSel) {
-		operator = operator.toUpperCase();
+		WhereClauseParser whereParser = new WhereClauseParser(where);
+		try {
+			parsedWhere = whereParser.parse();
+			parsedWhereClause = where;
+		} catch (SimpleException e) {
+			e.setDescription("Syntax error in WHERE-clause");
+			e.addData("hint", "You need to escape the following characters ()', within the value part of your filters");
+			throw e;
+		}
+		return parsedWhere;
+	}
 
-		/* Search for a definition of this operator for a the given value input type (list, null or values) */
+	/**
+	 * Describe the structure of the current where-clause without its literal
+	 * values: Aliases, JSON selectors, operators and value types stay, values
+	 * get dropped. Two where-clauses with the same shape produce the same SQL
+	 * and differ only in their bound parameters.
+	 *
+	 * @return the where-clause shape, or an empty string if there is none
+	 */
+	public String getWhereShape() {
+		Token ast = parseWhere(whereClause);
+		if (ast == null) {
+			return "";
+		}
+		StringBuilder shape = new StringBuilder();
+		ast.walker(new ConsumerExtended() {
+
+			@Override
+			public boolean middle(Token t) {
+				if (t.is("ALIAS") || t.is("OP") || t.is("JSONSEL")) {
+					shape.append(t.getName()).append('=').append(t.getValue()).append(';');
+				} else {
+					shape.append(t.getName()).append(';');
+				}
+				return true;
+			}
+
+			@Override
+			public boolean before(Token t) {
+				shape.append(t.getName()).append('{');
+				if (t.is("CLAUSE")) {
+					/*
+					 * Slices of list values (ex., %v[1:3]) become SQL null literals
+					 * if out of bounds, hence the list length is part of the shape
+					 */
+					Token valueToken = t.getChild(t.getChildCount() - 1);
+					WhereClauseOperator op = whereClauseOperatorMap.get(
+						operatorKey(t.getChild("OP").getValue().toUpperCase(), valueToken, t.getChild("JSONSEL")));
+					if (op != null && valueToken.is("LIST") && op.getSqlSnippet().contains("%v[")) {
+						shape.append('#').append(valueToken.getChildCount()).append(';');
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean after(Token t) {
+				shape.append('}');
+				return true;
+			}
+		});
+		return shape.toString();
+	}
+
+	private static String typePrefix(Token clauseValueToken, Token jsonSel) {
 		StringJoiner typePrefixJoiner = new StringJoiner("/");
 		if (jsonSel != null) {
 			typePrefixJoiner.add("JSON");
@@ -274,9 +372,22 @@ public class SelectExpansion {
 		if (listElementTypes != null) {
 			typePrefixJoiner.add(listElementTypes.toUpperCase());
 		}
-		String typePrefix = typePrefixJoiner.toString();
+		return typePrefixJoiner.toString();
+	}
+
+	private static String operatorKey(String operator, Token clauseValueToken, Token jsonSel) {
+		return typePrefix(clauseValueToken, jsonSel) + "/" + operator;
+	}
 
-		WhereClauseOperator whereClauseOperator = whereClauseOperatorMap.get(typePrefix + "/" + operator);
+	private static final Pattern slicePattern = Pattern.compile("(\\d*)(:?)(\\d*)");
+
+	private String whereClauseItem(String column, String alias, String operator, Token clauseValueToken, Token jsonSel) {
+		operator = operator.toUpperCase();
+
+		/* Search for a definition of this operator for a the given value input type (list, null or values) */
+		String typePrefix = typePrefix(clauseValueToken, jsonSel);
+
+		WhereClauseOperator whereClauseOperator = whereClauseOperatorMap.get(operatorKey(operator, clauseValueToken, jsonSel));
 		if (whereClauseOperator == null) {
 			List<String> validOperators = new ArrayList<>();
 			for (String key : whereClauseOperatorMap.keySet()) {
@@ -571,6 +682,33 @@ public class SelectExpansion {
 		_expandWhere(whereClause, targetListNames);
 	}
 
+	/**
+	 * Process only the where-clause and bind its parameters, without expanding
+	 * the select target list. Use this if the final SQL is already known, and
+	 * only the where-clause values changed. Afterwards, expansion getters only
+	 * reflect the where-clause targets.
+	 *
+	 * @param targetDefListNames allowed definitions for where-clause aliases
+	 */
+	public void bindWhere(String... targetDefListNames) {
+		Set<String> targetListNames = new HashSet<>(Arrays.asList(targetDefListNames));
+		if (targetListNames.isEmpty()) {
+			throw new SimpleException(ErrorCode.EXPAND_INVALID_DATA);
+		}
+		if (schema == null) {
+			throw new SimpleException(ErrorCode.SCHEMA_NULL);
+		}
+		usedTargetDefNames.clear();
+		usedTargetDefs.clear();
+		usedTargetDefListNames.clear();
+		expandedSelects.clear();
+		usedJSONAliasesInWhere.clear();
+		groupByCandidates.clear();
+		dirty = false;
+
+		_expandWhere(whereClause, targetListNames);
+	}
+
 	public List<String> getUsedTargetNames() {
 		if (dirty) {
 			throw new SimpleException(ErrorCode.DIRTY_STATE);
@@ -0,0 +1,195 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A slice of the connection pool for one class of workload, such that a burst of heavy
+ * requests of one class cannot take all connections away from the others. Each query
+ * holds a permit for as long as it holds its connection, including the time its rows get
+ * streamed to the client. Queries wait for a permit in arrival order, up to a timeout.
+ *
+ * Queries of {@link MergingQueryExecutor} threads are bounded by their own thread budget
+ * instead, since waiting for permits while holding others could dead-lock. Their request
+ * holds a single permit for all of them, taken before the threads, as for the single
+ * query they replace.
+ *
+ * A bulkhead for all workloads together, see {@link #setGlobal}, bounds the queries of
+ * the whole service. Request threads do not bound them anymore, if they are virtual.
+ *
+ * Meters, tagged by workload, or "all" for the global bulkhead:
+ * <ul>
+ * <li>ninja.bulkhead.active: permits in use</li>
+ * <li>ninja.bulkhead.waiting: queries waiting for a permit</li>
+ * <li>ninja.bulkhead.wait: timer of the time waited for a permit</li>
+ * <li>ninja.bulkhead.rejected: queries, that did not get a permit in time</li>
+ * </ul>
+ */
+public class Bulkhead {
+
+	public enum Workload {
+		/* Latest measurements */
+		LATEST,
+		/* Measurement and metadata history */
+		HISTORY,
+		/* Stations, types and edges */
+		METADATA,
+		/* Events and event origins */
+		EVENTS;
+
+		private final String tag = name().toLowerCase();
+	}
+
+	public static class FullException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		FullException(String name, long timeoutMs) {
+			super(String.format("Too many %s requests in progress, no database connection available after %d ms. Retry later.",
+					name, timeoutMs));
+		}
+	}
+
+	private static final String GLOBAL = "all";
+
+	private static volatile Map<Workload, Bulkhead> bulkheads = new EnumMap<>(Workload.class);
+	private static volatile Bulkhead global;
+
+	private final String name;
+	private final int size;
+	private final long timeoutMs;
+	private final Semaphore permits;
+	private final Timer waitTimer;
+	private final Counter rejected;
+
+	/**
+	 * @param size maximum number of queries running at once
+	 * @param timeoutMs maximum time to wait for a permit, 0 to fail immediately
+	 * @param registry where the saturation gets published, null for none
+	 */
+	public Bulkhead(Workload workload, int size, long timeoutMs, MeterRegistry registry) {
+		this(workload.tag, size, timeoutMs, registry);
+	}
+
+	/**
+	 * A bulkhead for all workloads together, see {@link #setGlobal}
+	 */
+	public Bulkhead(int size, long timeoutMs, MeterRegistry registry) {
+		this(GLOBAL, size, timeoutMs, registry);
+	}
+
+	private Bulkhead(String name, int size, long timeoutMs, MeterRegistry registry) {
+		this.name = name;
+		this.size = size;
+		this.timeoutMs = timeoutMs;
+		this.permits = new Semaphore(size, true);
+		if (registry == null) {
+			this.waitTimer = null;
+			this.rejected = null;
+			return;
+		}
+		Gauge.builder("ninja.bulkhead.active", permits, p -> size - p.availablePermits())
+			.description("Queries holding a permit of the bulkhead")
+			.tag("workload", name)
+			.register(registry);
+		Gauge.builder("ninja.bulkhead.waiting", permits, Semaphore::getQueueLength)
+			.description("Queries waiting for a permit of the bulkhead")
+			.tag("workload", name)
+			.register(registry);
+		this.waitTimer = Timer.builder("ninja.bulkhead.wait")
+			.description("Time waited for a permit of the bulkhead")
+			.tag("workload", name)
+			.register(registry);
+		this.rejected = Counter.builder("ninja.bulkhead.rejected")
+			.description("Queries, that did not get a permit of the bulkhead in time")
+			.tag("workload", name)
+			.register(registry);
+	}
+
+	/**
+	 * Use <code>bulkhead</code> for its workload from now on, null removes the limit
+	 */
+	public static synchronized void set(Workload workload, Bulkhead bulkhead) {
+		Map<Workload, Bulkhead> copy = new EnumMap<>(bulkheads);
+		if (bulkhead == null) {
+			copy.remove(workload);
+		} else {
+			copy.put(workload, bulkhead);
+		}
+		bulkheads = copy;
+	}
+
+	/**
+	 * @return null, if the workload is not limited
+	 */
+	public static Bulkhead get(Workload workload) {
+		return bulkheads.get(workload);
+	}
+
+	/**
+	 * Use <code>bulkhead</code> for all queries from now on, in addition to the one of
+	 * their workload, null removes the limit
+	 */
+	public static void setGlobal(Bulkhead bulkhead) {
+		global = bulkhead;
+	}
+
+	/**
+	 * @return null, if the queries of all workloads together are not limited
+	 */
+	public static Bulkhead getGlobal() {
+		return global;
+	}
+
+	/**
+	 * Wait for a permit, which must be given back with {@link #release()}
+	 *
+	 * @throws FullException if no permit got free within the timeout
+	 */
+	public void acquire() {
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if (waitTimer != null) {
+			waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+		if (!acquired) {
+			if (rejected != null) {
+				rejected.increment();
+			}
+			throw new FullException(name, timeoutMs);
+		}
+	}
+
+	public void release() {
+		permits.release();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Bulkhead [name=" + name + ", size=" + size + ", timeoutMs=" + timeoutMs + "]";
+	}
+}
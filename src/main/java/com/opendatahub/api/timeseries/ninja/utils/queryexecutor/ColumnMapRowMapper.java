@@ -8,10 +8,13 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.DateTimeException;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.postgis.PGgeometry;
@@ -19,29 +22,63 @@ import org.postgresql.util.PGobject;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.lang.Nullable;
-import org.springframework.util.LinkedCaseInsensitiveMap;
 
-import com.jsoniter.JsonIterator;
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
 
+/**
+ * Map each row to a map of column names and values. Column names, alias replacements and
+ * how to decode each column get resolved once per {@link ResultSet}, such that the loop
+ * over the rows works with column indexes only.
+ */
 public class ColumnMapRowMapper implements RowMapper<Map<String, Object>> {
 
 	private boolean ignoreNull = false;
-	private ZoneId zoneId = ZoneOffset.UTC;
+	private TimestampFormatter timestampFormatter = TimestampFormatter.of(ZoneOffset.UTC);
 	private static Map<String, String> targetDefNameToAliasMap = null;
 
-	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSZ");
+	private enum Decoder {
+		DOUBLE, STRING, TIMESTAMP, JSONB, GEOMETRY, TEXT, OTHER
+	}
+
+	private static final class Column {
+		final int index;
+		final String name;
+		final Decoder decoder;
+
+		/* Index of the name within the distinct column names */
+		final int position;
+
+		/* Another column with the same alias comes earlier, keep the first non-null value */
+		final boolean merge;
+
+		Column(int index, String name, Decoder decoder, int position, boolean merge) {
+			this.index = index;
+			this.name = name;
+			this.decoder = decoder;
+			this.position = position;
+			this.merge = merge;
+		}
+	}
+
+	/* Column descriptors of the result set, that has been resolved last */
+	private ResultSet resolvedResultSet;
+	private Column[] columns;
+	private String[] names;
+	private int mapCapacity;
 
 	public void setIgnoreNull(boolean ignoreNull) {
 		this.ignoreNull = ignoreNull;
 	}
 
 	public void setTimeZone(String zone) {
+		ZoneId zoneId;
 		try {
-			this.zoneId = ZoneId.of(zone);
+			zoneId = ZoneId.of(zone);
 		} catch (DateTimeException e) {
 			zone = zone.replace(" ", "+");
-			this.zoneId = ZoneId.of(zone);
+			zoneId = ZoneId.of(zone);
 		}
+		this.timestampFormatter = TimestampFormatter.of(zoneId);
 	}
 
 	public static synchronized void setTargetDefNameToAliasMap(Map<String, String> map) {
@@ -51,43 +88,154 @@ public class ColumnMapRowMapper implements RowMapper<Map<String, Object>> {
 	// FIXME Create a mapRow for tree building, otherwise we build a map first and then a tree
 	@Override
 	public Map<String, Object> mapRow(ResultSet rs, int rowNum) throws SQLException {
-		ResultSetMetaData rsmd = rs.getMetaData();
-		int columnCount = rsmd.getColumnCount();
-		Map<String, Object> mapOfColumnValues = createColumnMap(columnCount);
-		for (int i = 1; i <= columnCount; i++) {
-			Object newValue = getColumnValue(rs, i);
+		if (rs != resolvedResultSet) {
+			resolveColumns(rs);
+		}
+		Map<String, Object> mapOfColumnValues = createColumnMap(mapCapacity);
+		for (Column column : columns) {
+			Object newValue = decode(rs, column);
 			if (this.ignoreNull && newValue == null)
 				continue;
 
+			if (column.merge && mapOfColumnValues.containsKey(column.name)) {
+				if (newValue != null && mapOfColumnValues.get(column.name) == null) {
+					mapOfColumnValues.put(column.name, newValue);
+				}
+			} else {
+				mapOfColumnValues.put(column.name, newValue);
+			}
+		}
+		return mapOfColumnValues.isEmpty() ? null : mapOfColumnValues;
+	}
+
+	/**
+	 * @return distinct column names of the rows, in the order of the result set, as keys
+	 *     of {@link #mapRow(ResultSet, int)} or positions of {@link #mapRow(ResultSet, Object[])}
+	 */
+	public String[] getColumnNames(ResultSet rs) throws SQLException {
+		if (rs != resolvedResultSet) {
+			resolveColumns(rs);
+		}
+		return names;
+	}
+
+	/**
+	 * Like {@link #mapRow(ResultSet, int)}, but write the values at the positions of
+	 * {@link #getColumnNames}, without creating a map. Null values keep their position.
+	 *
+	 * @param values to be reused for each row
+	 * @return false, if null values get ignored and all of them are null
+	 */
+	public boolean mapRow(ResultSet rs, Object[] values) throws SQLException {
+		if (rs != resolvedResultSet) {
+			resolveColumns(rs);
+		}
+		Arrays.fill(values, null);
+		boolean empty = true;
+		for (Column column : columns) {
+			Object newValue = decode(rs, column);
+			if (newValue != null) {
+				empty = false;
+			}
+			if (!column.merge || values[column.position] == null) {
+				values[column.position] = newValue;
+			}
+		}
+		return columns.length > 0 && !(this.ignoreNull && empty);
+	}
+
+	private void resolveColumns(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int columnCount = rsmd.getColumnCount();
+		columns = new Column[columnCount];
+		Map<String, Integer> positions = new HashMap<>();
+		for (int i = 1; i <= columnCount; i++) {
 			String column = JdbcUtils.lookupColumnName(rsmd, i);
-			String replacementColumn = targetDefNameToAliasMap.get(column);
+			String replacementColumn = targetDefNameToAliasMap == null ? null : targetDefNameToAliasMap.get(column);
+			String name = replacementColumn == null ? column : replacementColumn;
+			Integer position = positions.get(name);
+			boolean first = position == null;
+			if (first) {
+				position = positions.size();
+				positions.put(name, position);
+			}
+			boolean merge = replacementColumn != null && !first;
+			columns[i - 1] = new Column(i, name, decoderOf(rsmd, i), position, merge);
+		}
+		names = new String[positions.size()];
+		for (Map.Entry<String, Integer> position : positions.entrySet()) {
+			names[position.getValue()] = position.getKey();
+		}
+		mapCapacity = (int) (columnCount / 0.75f) + 1;
+		resolvedResultSet = rs;
+	}
 
-			if (replacementColumn == null) {
-				mapOfColumnValues.put(column, newValue);
-			} else {
-				if (mapOfColumnValues.containsKey(replacementColumn)) {
-					Object oldValue = mapOfColumnValues.get(replacementColumn);
-					if (oldValue == null && newValue != null) {
-						mapOfColumnValues.put(replacementColumn, newValue);
-					}
-				} else {
-					mapOfColumnValues.put(replacementColumn, newValue);
+	private static Decoder decoderOf(ResultSetMetaData rsmd, int index) throws SQLException {
+		switch (cleanPostgresType(rsmd.getColumnTypeName(index))) {
+			case "jsonb":
+				return Decoder.JSONB;
+			case "geometry":
+				return Decoder.GEOMETRY;
+			case "tsrange":
+				return Decoder.TEXT;
+			default:
+				break;
+		}
+		switch (rsmd.getColumnType(index)) {
+			case Types.DOUBLE:
+				return Decoder.DOUBLE;
+			case Types.VARCHAR:
+			case Types.CHAR:
+			case Types.LONGVARCHAR:
+				return Decoder.STRING;
+			case Types.TIMESTAMP:
+			case Types.TIMESTAMP_WITH_TIMEZONE:
+				return Decoder.TIMESTAMP;
+			default:
+				return Decoder.OTHER;
+		}
+	}
+
+	private Object decode(ResultSet rs, Column column) throws SQLException {
+		int index = column.index;
+		switch (column.decoder) {
+			case DOUBLE: {
+				double value = rs.getDouble(index);
+				return rs.wasNull() ? null : Double.valueOf(value);
+			}
+			case STRING:
+			case TEXT:
+				return rs.getString(index);
+			case TIMESTAMP: {
+				Timestamp value = rs.getTimestamp(index);
+				return value == null ? null : timestampFormatter.format(value);
+			}
+			case JSONB: {
+				String value = rs.getString(index);
+				/* This is a proper JSON null value, since a string would be ""null"" instead. */
+				if (value == null || value.equalsIgnoreCase("null")) {
+					return null;
 				}
+				return new RawJson(value);
+			}
+			case GEOMETRY: {
+				String value = rs.getString(index);
+				return value == null ? null : PGgeometry.geomFromString(value);
 			}
+			default:
+				return getColumnValue(rs, index);
 		}
-		return mapOfColumnValues.isEmpty() ? null : mapOfColumnValues;
 	}
 
 	/**
 	 * Create a Map instance to be used as column map.
-	 * <p>By default, a linked case-insensitive Map will be created.
-	 * @param columnCount the column count, to be used as initial
-	 * capacity for the Map
+	 * <p>Column names come from the select expansion, so an insertion-ordered map
+	 * with exact keys suffices.
+	 * @param capacity initial capacity for the Map, such that it does not need to grow
 	 * @return the new Map instance
-	 * @see org.springframework.util.LinkedCaseInsensitiveMap
 	 */
-	protected Map<String, Object> createColumnMap(int columnCount) {
-		return new LinkedCaseInsensitiveMap<>(columnCount);
+	protected Map<String, Object> createColumnMap(int capacity) {
+		return new LinkedHashMap<>(capacity);
 	}
 
 	private static String cleanPostgresType(String type) {
@@ -119,12 +267,11 @@ public class ColumnMapRowMapper implements RowMapper<Map<String, Object>> {
 				case "geometry":
 					return PGgeometry.geomFromString(pgObj.getValue());
 				case "jsonb":
-					// FIXME Return a proper map
 					/* This is a proper JSON null value, since a string would be ""null"" instead. */
 					if (pgObj.getValue().equalsIgnoreCase("null")) {
 						return null;
 					}
-					return JsonIterator.deserialize(pgObj.getValue());
+					return new RawJson(pgObj.getValue());
 				case "tsrange":
 					String value = pgObj.getValue();
 					return value;
@@ -132,8 +279,7 @@ public class ColumnMapRowMapper implements RowMapper<Map<String, Object>> {
 					throw new RuntimeException("PGobject type " + pgObjType + " not supported!");
 			}
 		} else if (obj instanceof Timestamp) {
-			Timestamp timestampObj = (Timestamp) obj;
-			return DATE_FORMAT.format(timestampObj.toInstant().atZone(zoneId));
+			return timestampFormatter.format((Timestamp) obj);
 		}
 
 		return JdbcUtils.getResultSetValue(rs, index);
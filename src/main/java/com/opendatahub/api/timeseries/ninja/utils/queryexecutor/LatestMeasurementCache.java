@@ -0,0 +1,292 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead.Workload;
+
+/**
+ * Results of latest measurement queries, with a bounded staleness. Thread-safe.
+ *
+ * Every half <code>maxStalenessMillis</code>, a background thread started with
+ * {@link #start()} polls the station types, that got new measurements since the last poll.
+ * Only results of these station types are dropped, while results of all station types are
+ * dropped on any change. Requests never wait for a poll. If the last successful poll began
+ * more than <code>maxStalenessMillis</code> ago, results are loaded without the cache, such
+ * that a result lags behind the database by at most <code>maxStalenessMillis</code>.
+ *
+ * Results are keyed by their SQL text and parameters, which include the ACL rules of the
+ * requesting roles. Stations, types or metadata that change without a new measurement, are
+ * not noticed until the next measurement arrives.
+ */
+public class LatestMeasurementCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LatestMeasurementCache.class);
+
+	/*
+	 * Only measurements created since the last poll get read, and then joined with their
+	 * station. The rollup row without station type has the newest of all. The window overlaps
+	 * the last one by a minute, such that transactions, that commit late with an older
+	 * created_on, are still noticed. Station types found again there have an unchanged newest
+	 * created_on, and do not count as changed.
+	 */
+	private static final String SINCE = " where created_on > :since::timestamptz - interval '1 minute'";
+	private static final String POLL_SQL = "select coalesce(s.stationtype, '*') as stationtype, "
+			+ "max(m.created_on)::text as created_on from ("
+			+ "select timeseries_id, created_on from measurement" + SINCE
+			+ " union all select timeseries_id, created_on from measurementstring" + SINCE
+			+ " union all select timeseries_id, created_on from measurementjson" + SINCE
+			+ ") m join timeseries ts on ts.id = m.timeseries_id "
+			+ "join station s on s.id = ts.station_id "
+			+ "group by rollup (s.stationtype)";
+
+	private static final long NEVER = Long.MIN_VALUE;
+
+	/* Generation key of results, that do not depend on a list of station types */
+	private static final String ALL = "*";
+
+	private static class Entry {
+		final Generations generations;
+		final List<Map<String, Object>> rows;
+
+		Entry(Generations generations, List<Map<String, Object>> rows) {
+			this.generations = generations;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Immutable change counters: one per station type, one for any change, and one for
+	 * failed polls. Unknown station types have not changed yet.
+	 */
+	private static class Generations {
+		final long failures;
+		final Map<String, Long> changes;
+
+		Generations(long failures, Map<String, Long> changes) {
+			this.failures = failures;
+			this.changes = changes;
+		}
+
+		long of(String stationType) {
+			return changes.getOrDefault(stationType, 0L);
+		}
+
+		/**
+		 * @return true, if nothing of <code>stationTypes</code> changed between these and <code>current</code>
+		 */
+		boolean sameAs(Generations current, Set<String> stationTypes) {
+			if (failures != current.failures) {
+				return false;
+			}
+			for (String stationType : stationTypes) {
+				if (of(stationType) != current.of(stationType)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final long maxStalenessMillis;
+	private final long maxRows;
+	private final Function<String, Map<String, String>> poll;
+	private final LongSupplier clock;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long rows = 0;
+
+	private final Object pollLock = new Object();
+	/* Start of the last successful poll, or NEVER */
+	private volatile long lastPoll = NEVER;
+	private volatile Generations generations = new Generations(0, Map.of());
+	private final Map<String, String> lastSeen = new HashMap<>();
+	private String since = null;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxStalenessMillis how old a cached result may get
+	 * @param maxRows over all cached results, least recently used ones get evicted first
+	 */
+	public LatestMeasurementCache(final long maxStalenessMillis, final long maxRows) {
+		this(maxStalenessMillis, maxRows, LatestMeasurementCache::pollDatabase, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param poll gets the newest <code>created_on</code> of the previous poll, null for the
+	 *     first one, and returns the newest <code>created_on</code> per station type, that got
+	 *     measurements since then, and of all of them with key "*"
+	 * @param clock in milliseconds, like {@link System#currentTimeMillis}
+	 */
+	public LatestMeasurementCache(final long maxStalenessMillis, final long maxRows,
+			final Function<String, Map<String, String>> poll, final LongSupplier clock) {
+		if (maxStalenessMillis <= 0 || maxRows <= 0) {
+			throw new RuntimeException("A LatestMeasurementCache must have a positive staleness and size");
+		}
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.maxRows = maxRows;
+		this.poll = poll;
+		this.clock = clock;
+	}
+
+	/**
+	 * Poll on a daemon thread, twice per <code>maxStalenessMillis</code>
+	 */
+	public LatestMeasurementCache start() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ninja-latestcache-");
+		threadFactory.setDaemon(true);
+		Executors.newSingleThreadScheduledExecutor(threadFactory)
+				.scheduleWithFixedDelay(this::refresh, 0, Math.max(1, maxStalenessMillis / 2), TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * @param sql of the latest measurement query
+	 * @param parameters bound to <code>sql</code>
+	 * @param variant anything else, that changes the rows, ex. time zone or null handling
+	 * @param stationTypes the only station types, that the rows belong to, or null for all
+	 * @param loader executes the query on a miss
+	 * @return read-only rows, either cached or from <code>loader</code>
+	 */
+	public List<Map<String, Object>> get(final String sql, final Map<String, Object> parameters,
+			final String variant, final Set<String> stationTypes, final Supplier<List<Map<String, Object>>> loader) {
+		long polled = lastPoll;
+		if (polled == NEVER || clock.getAsLong() - polled > maxStalenessMillis) {
+			/* The poller is behind, nothing can be trusted */
+			misses.incrementAndGet();
+			return Collections.unmodifiableList(loader.get());
+		}
+
+		String key = variant + "|" + QueryExecutor.key(sql, parameters);
+		Set<String> dependencies = stationTypes == null ? Set.of(ALL) : stationTypes;
+		/* Take the generations before loading, such that a change during the query invalidates it */
+		Generations current = generations;
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.generations.sameAs(current, dependencies)) {
+			hits.incrementAndGet();
+			return entry.rows;
+		}
+		misses.incrementAndGet();
+
+		List<Map<String, Object>> result = Collections.unmodifiableList(loader.get());
+		put(key, new Entry(current, result));
+		return result;
+	}
+
+	private void put(final String key, final Entry entry) {
+		if (entry.rows.size() > maxRows) {
+			return;
+		}
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				rows -= old.rows.size();
+			}
+			rows += entry.rows.size();
+			Iterator<Entry> it = entries.values().iterator();
+			while (rows > maxRows && it.hasNext()) {
+				rows -= it.next().rows.size();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Poll the station types with new measurements, and drop their results. Called by the
+	 * thread of {@link #start()}.
+	 */
+	public void refresh() {
+		synchronized (pollLock) {
+			long now = clock.getAsLong();
+			Generations old = generations;
+			try {
+				Map<String, String> newest = poll.apply(since);
+				Map<String, Long> changes = new HashMap<>(old.changes);
+				boolean changed = false;
+				for (Map.Entry<String, String> type : newest.entrySet()) {
+					if (ALL.equals(type.getKey()) || type.getValue() == null) {
+						continue;
+					}
+					if (!type.getValue().equals(lastSeen.put(type.getKey(), type.getValue()))) {
+						changes.merge(type.getKey(), 1L, Long::sum);
+						changed = true;
+					}
+				}
+				if (changed) {
+					changes.merge(ALL, 1L, Long::sum);
+					generations = new Generations(old.failures, changes);
+				}
+				if (newest.get(ALL) != null) {
+					since = newest.get(ALL);
+				}
+				lastPoll = now;
+			} catch (RuntimeException e) {
+				/* The next successful poll covers the same measurements again */
+				LOG.warn("Polling latest measurements failed, dropping cached results", e);
+				generations = new Generations(old.failures + 1, old.changes);
+			}
+		}
+	}
+
+	private static Map<String, String> pollDatabase(final String since) {
+		Map<String, String> result = new HashMap<>();
+		List<Map<String, Object>> rows = QueryExecutor
+				.init()
+				.setBulkhead(Bulkhead.get(Workload.LATEST))
+				.addParameters(Map.of("since", since == null ? "-infinity" : since))
+				.build(POLL_SQL, false, "UTC");
+		for (Map<String, Object> row : rows) {
+			result.put((String) row.get("stationtype"), (String) row.get("created_on"));
+		}
+		return result;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			rows = 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LatestMeasurementCache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+	}
+}
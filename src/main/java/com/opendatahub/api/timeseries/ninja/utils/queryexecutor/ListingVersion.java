@@ -0,0 +1,124 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Version of the station, type and timeseries tables, that station type, station and
+ * datatype listings are made of. Used as strong ETag, such that clients polling these
+ * listings get a "304 Not Modified" without running their query. Thread-safe.
+ *
+ * At most once per <code>maxStalenessMillis</code>, row counts and a checksum over the ids
+ * and row versions (xmin) of these tables get polled. Any insert, update or delete changes
+ * the version, also on read replicas. Unlike the newest transaction id, the checksum does
+ * not rely on ids growing, which stops to hold after their wraparound. Metadata changes
+ * are noticed, because stations and types point to their newest metadata row. A listing
+ * can hence lag behind the database by at most <code>maxStalenessMillis</code>, as with
+ * the {@link LatestMeasurementCache}.
+ */
+public class ListingVersion {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ListingVersion.class);
+
+	/*
+	 * Every update gives a row a new xmin, and hence a new hash. Timeseries rows do not
+	 * change in ways the listings show, new ones get a new id
+	 */
+	private static final String POLL_SQL = "select concat_ws(':', "
+			+ "(select count(*) || '.' || coalesce(sum(hashtext(id || '.' || xmin::text)), 0) from station), "
+			+ "(select count(*) || '.' || coalesce(sum(hashtext(id || '.' || xmin::text)), 0) from type), "
+			+ "(select count(*) || '.' || coalesce(max(id), 0) from timeseries))";
+
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final long maxStalenessMillis;
+	private final Supplier<String> poll;
+	private final LongSupplier clock;
+
+	private final Object pollLock = new Object();
+	private volatile long lastPoll = NEVER;
+	private volatile String version;
+
+	/**
+	 * @param maxStalenessMillis how old the version may get, before the database gets polled again
+	 */
+	public ListingVersion(final long maxStalenessMillis) {
+		this(maxStalenessMillis, () -> QueryExecutor
+				.init()
+				.buildSingleResultOrNull(POLL_SQL, String.class), System::currentTimeMillis);
+	}
+
+	/**
+	 * @param poll returns the current version, called at most once per <code>maxStalenessMillis</code>
+	 * @param clock in milliseconds, like {@link System#currentTimeMillis}
+	 */
+	public ListingVersion(final long maxStalenessMillis, final Supplier<String> poll, final LongSupplier clock) {
+		if (maxStalenessMillis <= 0) {
+			throw new RuntimeException("A ListingVersion must have a positive staleness");
+		}
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.poll = poll;
+		this.clock = clock;
+	}
+
+	/**
+	 * @param variant everything, that changes the response besides the tables, ex. path,
+	 *     query string, format and roles
+	 * @return quoted strong ETag, or null if the version is unknown, since polling failed
+	 */
+	public String etag(final String... variant) {
+		pollIfStale();
+		String current = version;
+		if (current == null) {
+			return null;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(current.getBytes(StandardCharsets.UTF_8));
+			for (String part : variant) {
+				digest.update((byte) '\n');
+				if (part != null) {
+					digest.update(part.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			return "\"" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void pollIfStale() {
+		if (lastPoll != NEVER && clock.getAsLong() - lastPoll < maxStalenessMillis) {
+			return;
+		}
+		synchronized (pollLock) {
+			long now = clock.getAsLong();
+			if (lastPoll != NEVER && now - lastPoll < maxStalenessMillis) {
+				return;
+			}
+			try {
+				version = poll.get();
+			} catch (RuntimeException e) {
+				LOG.warn("Polling the listing version failed, no ETags until the next poll", e);
+				version = null;
+			}
+			lastPoll = now;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ListingVersion [version=" + version + "]";
+	}
+}
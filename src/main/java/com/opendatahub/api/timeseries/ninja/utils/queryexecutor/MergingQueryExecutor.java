@@ -0,0 +1,399 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+
+/**
+ * Execute queries in parallel on separate connections, and either merge their rows
+ * into a single ordered stream (k-way merge), or concatenate them in the order the
+ * queries got added.
+ *
+ * Each query gets read by a thread of the given executor into a bounded queue,
+ * such that memory stays bounded even if one query is much faster than the others.
+ * Rows leave the queue as soon as they got consumed. The queries do not share a
+ * snapshot, so rows written while they start may be seen by one query and not by
+ * another.
+ *
+ * Threads are limited by permits, which must be acquired for all threads of an
+ * instance at once with {@link #tryAcquire()}. A request, that waited for a thread
+ * while holding another one, could otherwise dead-lock with a request doing the same.
+ * When a query ends, its thread continues with the next one that has not started yet.
+ *
+ * Once the consumer is done, or failed, the queries still running get cancelled, also
+ * while they wait for the database.
+ */
+public class MergingQueryExecutor {
+
+	/**
+	 * Executes the query of a source, and hands its rows over to the consumer
+	 */
+	@FunctionalInterface
+	public interface Query {
+		/**
+		 * @param onStatement must get the statement before it gets executed, such that it can
+		 *     be cancelled; throws a {@link CancellationException} if that happened already
+		 */
+		void execute(String sql, Map<String, Object> parameters, boolean ignoreNull, String timeZone,
+				Consumer<Statement> onStatement, QueryExecutor.RowConsumer consumer) throws IOException;
+	}
+
+	private static final int QUEUE_SIZE = 1024;
+	private static final Object END = new Object();
+
+	private static final class Failure {
+		final Throwable cause;
+
+		Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+
+	private static final class Source {
+		final String sql;
+		final Map<String, Object> parameters;
+		final BlockingQueue<Object> queue;
+
+		/* Statement of the running query, to be cancelled from the consuming thread */
+		volatile Statement statement;
+
+		Source(String sql, Map<String, Object> parameters, int queueSize) {
+			this.sql = sql;
+			this.parameters = parameters;
+			this.queue = new LinkedBlockingQueue<>(queueSize);
+		}
+	}
+
+	/* Current row of a source, ordered by row and then by source */
+	private static final class Head {
+		final int source;
+		Map<String, Object> row;
+
+		Head(int source, Map<String, Object> row) {
+			this.source = source;
+			this.row = row;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxThreads;
+	private final int queueSize;
+	private final Query query;
+	private final List<Source> sources = new ArrayList<>();
+	private volatile boolean cancelled = false;
+	private boolean ignoreNull;
+	private String timeZone;
+	private RequestMetrics metrics;
+
+	/* Number of sources handed over to a thread, guarded by this */
+	private int started = 0;
+
+	/**
+	 * One thread per query, as needed by {@link #buildAndConsume}
+	 *
+	 * @param executor must not queue tasks, ex. a cached thread pool
+	 * @param permits maximum number of threads used by all instances together
+	 */
+	public MergingQueryExecutor(final ExecutorService executor, final Semaphore permits) {
+		this(executor, permits, Integer.MAX_VALUE, QUEUE_SIZE);
+	}
+
+	/**
+	 * @param maxThreads maximum number of queries running at once, for {@link #buildAndConcat}
+	 * @param queueSize maximum number of rows read ahead per query
+	 */
+	public MergingQueryExecutor(final ExecutorService executor, final Semaphore permits, int maxThreads, int queueSize) {
+		this(executor, permits, maxThreads, queueSize, null);
+	}
+
+	/**
+	 * @param query executes the queries, null for the database
+	 */
+	public MergingQueryExecutor(final ExecutorService executor, final Semaphore permits, int maxThreads, int queueSize,
+			final Query query) {
+		this.executor = executor;
+		this.permits = permits;
+		this.maxThreads = maxThreads;
+		this.queueSize = queueSize;
+		this.query = query == null ? this::executeQuery : query;
+	}
+
+	public MergingQueryExecutor addQuery(final String sql, final Map<String, Object> parameters) {
+		sources.add(new Source(sql, parameters, queueSize));
+		return this;
+	}
+
+	public int size() {
+		return sources.size();
+	}
+
+	/**
+	 * @param metrics gets the execution and mapping times of all queries, null for none
+	 */
+	public MergingQueryExecutor setMetrics(RequestMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Reserve the threads of this instance, without waiting
+	 *
+	 * @return false, if not enough threads are available; execute the queries differently then
+	 */
+	public boolean tryAcquire() {
+		return permits.tryAcquire(threads());
+	}
+
+	private int threads() {
+		return Math.min(maxThreads, sources.size());
+	}
+
+	/**
+	 * Execute all queries, after {@link #tryAcquire()} succeeded, and hand their rows over
+	 * to <code>consumer</code> in the order given by <code>order</code>. Each query must
+	 * return its rows in that order already. Rows that compare equal keep the order in
+	 * which the queries got added.
+	 *
+	 * @param offset number of merged rows to skip, negative for none
+	 * @param limit maximum number of rows passed to the consumer, non-positive for all
+	 * @return number of rows passed to the consumer
+	 */
+	public int buildAndConsume(boolean ignoreNull, String timeZone, Comparator<Map<String, Object>> order,
+			long offset, long limit, QueryExecutor.RowConsumer consumer) throws IOException {
+		if (threads() < sources.size()) {
+			permits.release(threads());
+			throw new IllegalStateException("A merge needs one thread per query");
+		}
+		start(ignoreNull, timeZone);
+
+		Comparator<Head> headOrder = Comparator
+				.<Head, Map<String, Object>>comparing(h -> h.row, order)
+				.thenComparingInt(h -> h.source);
+		PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, sources.size()), headOrder);
+		int count = 0;
+		long skipped = 0;
+		try {
+			for (int i = 0; i < sources.size(); i++) {
+				Map<String, Object> row = next(sources.get(i));
+				if (row != null) {
+					heads.add(new Head(i, row));
+				}
+			}
+			while (!heads.isEmpty() && (limit <= 0 || count < limit)) {
+				Head head = heads.poll();
+				if (skipped < offset) {
+					skipped++;
+				} else {
+					consumer.accept(head.row);
+					count++;
+				}
+				head.row = next(sources.get(head.source));
+				if (head.row != null) {
+					heads.add(head);
+				}
+			}
+		} finally {
+			/* Stop queries that are still running, ex. after the limit or a failure */
+			cancel();
+		}
+		return count;
+	}
+
+	/**
+	 * Execute all queries, after {@link #tryAcquire()} succeeded, and hand their rows over
+	 * to <code>consumer</code>, first all rows of the first query, then of the second, and
+	 * so on. Later queries read ahead while the earlier ones get consumed.
+	 *
+	 * @param offset number of concatenated rows to skip, negative for none
+	 * @param limit maximum number of rows passed to the consumer, non-positive for all
+	 * @return number of rows passed to the consumer
+	 */
+	public int buildAndConcat(boolean ignoreNull, String timeZone, long offset, long limit,
+			QueryExecutor.RowConsumer consumer) throws IOException {
+		start(ignoreNull, timeZone);
+
+		int count = 0;
+		long skipped = 0;
+		try {
+			for (Source source : sources) {
+				Map<String, Object> row;
+				while ((limit <= 0 || count < limit) && (row = next(source)) != null) {
+					if (skipped < offset) {
+						skipped++;
+					} else {
+						consumer.accept(row);
+						count++;
+					}
+				}
+			}
+		} finally {
+			/* Stop queries that are still running, ex. after the limit or a failure */
+			cancel();
+		}
+		return count;
+	}
+
+	private void start(boolean ignoreNull, String timeZone) {
+		this.ignoreNull = ignoreNull;
+		this.timeZone = timeZone;
+		for (int i = threads(); i > 0; i--) {
+			startNext();
+		}
+	}
+
+	/**
+	 * Hand an acquired permit over to the next source, or release it, if there is none
+	 */
+	private void startNext() {
+		Source source;
+		synchronized (this) {
+			if (cancelled || started == sources.size()) {
+				permits.release();
+				return;
+			}
+			source = sources.get(started++);
+		}
+		try {
+			executor.execute(() -> read(source));
+		} catch (RuntimeException e) {
+			/* The queue is still empty, and the consumer gets the failure */
+			source.queue.offer(new Failure(e));
+			permits.release();
+		}
+	}
+
+	private void executeQuery(String sql, Map<String, Object> parameters, boolean ignoreNull, String timeZone,
+			Consumer<Statement> onStatement, QueryExecutor.RowConsumer consumer) throws IOException {
+		QueryExecutor
+				.init()
+				.setMetrics(metrics)
+				.setStatementListener(onStatement)
+				.addParameters(parameters)
+				.buildAndConsume(sql, ignoreNull, timeZone, consumer);
+	}
+
+	private void read(Source source) {
+		try {
+			query.execute(source.sql, source.parameters, ignoreNull, timeZone,
+					statement -> running(source, statement), row -> put(source, row));
+			put(source, END);
+		} catch (CancellationException e) {
+			/* Nobody reads this source anymore */
+		} catch (Throwable e) {
+			try {
+				put(source, new Failure(e));
+			} catch (CancellationException | InterruptedIOException e2) {
+				/* Nobody reads this source anymore */
+			}
+		} finally {
+			source.statement = null;
+			startNext();
+		}
+	}
+
+	private void running(Source source, Statement statement) {
+		source.statement = statement;
+		/* Either this sees the flag, or cancel sees the statement */
+		if (cancelled) {
+			throw new CancellationException();
+		}
+	}
+
+	private void cancel() {
+		cancelled = true;
+		for (Source source : sources) {
+			Statement statement = source.statement;
+			if (statement != null) {
+				try {
+					statement.cancel();
+				} catch (SQLException e) {
+					/* The query ended meanwhile */
+				}
+			}
+		}
+	}
+
+	private void put(Source source, Object item) throws InterruptedIOException {
+		try {
+			do {
+				if (cancelled) {
+					throw new CancellationException();
+				}
+			} while (!source.queue.offer(item, 100, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * @return the next row of <code>source</code>, or null at its end
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> next(Source source) throws IOException {
+		Object item;
+		try {
+			item = source.queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (item == END) {
+			return null;
+		}
+		if (item instanceof Failure) {
+			Throwable cause = ((Failure) item).cause;
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		return (Map<String, Object>) item;
+	}
+
+	/**
+	 * Compare strings like PostgreSQL with the "C" collation on a UTF-8 database, that
+	 * is, by code points. {@link String#compareTo} compares UTF-16 units instead, which
+	 * differs for characters outside the Basic Multilingual Plane.
+	 */
+	public static int compareCodePoints(final String a, final String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int ca = a.codePointAt(i);
+			int cb = b.codePointAt(j);
+			if (ca != cb) {
+				return Integer.compare(ca, cb);
+			}
+			i += Character.charCount(ca);
+			j += Character.charCount(cb);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+}
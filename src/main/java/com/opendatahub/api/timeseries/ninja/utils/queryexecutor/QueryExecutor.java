@@ -5,18 +5,46 @@
 package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
 
 import java.io.IOException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.SqlParameter;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.jdbc.support.JdbcUtils;
 
 import com.jsoniter.output.JsonStream;
 
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics.Phase;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.JsonArrayRowWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.PositionalRowWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.ResultSetWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.RowWriter;
+
 public class QueryExecutor {
 	private static NamedParameterJdbcTemplate npjt;
+	private static SlowQueryLog slowQueryLog;
 	private MapSqlParameterSource parameters = new MapSqlParameterSource();
+	private RequestMetrics metrics;
+	private Bulkhead bulkhead;
+	private boolean bounded = false;
+	private Consumer<Statement> statementListener;
 
 	/**
 	 * Create a new {@link QueryExecutor} instance
@@ -47,58 +75,361 @@ public class QueryExecutor {
 		return QueryExecutor.init();
 	}
 
+	/**
+	 * @param log gets all queries slower than its threshold, null disables it
+	 */
+	public static void setSlowQueryLog(SlowQueryLog log) {
+		slowQueryLog = log;
+	}
+
+	public static SlowQueryLog getSlowQueryLog() {
+		return slowQueryLog;
+	}
+
+	private void checkSlow(final String sql, long durationNanos) {
+		SlowQueryLog log = slowQueryLog;
+		if (log != null) {
+			log.check(sql, parameters.getValues(), durationNanos);
+		}
+	}
+
+
+	/**
+	 * Identity of a query, made of its SQL text and bound parameters, to be used as cache key
+	 */
+	public static String key(final String sql, final Map<String, Object> parameters) {
+		Map<String, String> params = new TreeMap<>();
+		for (Map.Entry<String, Object> param : parameters.entrySet()) {
+			Object value = param.getValue();
+			if (value instanceof Collection) {
+				/* Sets of station or data types, make their order stable */
+				value = new TreeSet<>(((Collection<?>) value).stream().map(String::valueOf).collect(Collectors.toList()));
+			}
+			params.put(param.getKey(), Objects.toString(value));
+		}
+		return sql + "|" + params;
+	}
 
 	public QueryExecutor addParameters(Map<String, Object> parameters) {
 		this.parameters.addValues(parameters);
 		return this;
 	}
 
+	/**
+	 * @param metrics gets the execution and mapping times of streamed queries, null for none
+	 */
+	public QueryExecutor setMetrics(RequestMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Bound the executions by the bulkhead of their workload and by the global one. Without
+	 * calling this, executions are unbounded, as for the threads of {@link MergingQueryExecutor},
+	 * whose request holds a permit for them, see {@link #runBounded}.
+	 *
+	 * @param bulkhead gives a permit to each execution, null if the workload is unbounded
+	 */
+	public QueryExecutor setBulkhead(Bulkhead bulkhead) {
+		this.bulkhead = bulkhead;
+		this.bounded = true;
+		return this;
+	}
+
+	/**
+	 * @param listener gets the statement of each streamed execution before it runs, such
+	 *     that another thread can cancel it, null for none
+	 */
+	public QueryExecutor setStatementListener(Consumer<Statement> listener) {
+		this.statementListener = listener;
+		return this;
+	}
+
+	@FunctionalInterface
+	public interface BoundedCall<T> {
+		T call() throws IOException;
+	}
+
+	/**
+	 * Hold a permit of the bulkhead and of the global one while <code>call</code> runs, as
+	 * for a single execution. Meant for the queries of a {@link MergingQueryExecutor}, which
+	 * take no permits themselves: The permit must be taken before their threads, such that
+	 * the request never waits for one while holding others.
+	 */
+	public <T> T runBounded(BoundedCall<T> call) throws IOException {
+		Bulkhead global = acquire();
+		try {
+			return call.call();
+		} finally {
+			release(global);
+		}
+	}
+
+	/**
+	 * @return the global bulkhead, if it gave a permit too, to be passed to {@link #release}
+	 */
+	private Bulkhead acquire() {
+		if (!bounded) {
+			return null;
+		}
+		Bulkhead global = Bulkhead.getGlobal();
+		if (bulkhead != null) {
+			bulkhead.acquire();
+		}
+		if (global != null) {
+			try {
+				global.acquire();
+			} catch (RuntimeException e) {
+				if (bulkhead != null) {
+					bulkhead.release();
+				}
+				throw e;
+			}
+		}
+		return global;
+	}
+
+	private void release(Bulkhead global) {
+		if (!bounded) {
+			return;
+		}
+		if (global != null) {
+			global.release();
+		}
+		if (bulkhead != null) {
+			bulkhead.release();
+		}
+	}
+
 	/**
 	 * Build the current query and execute it via {@link NamedParameterJdbcTemplate#query}
 	 *
 	 * @return A list of (key, value) pairs
 	 */
 	public List<Map<String, Object>> build(final String sql, boolean ignoreNull, String timeZone) {
-		ColumnMapRowMapper mapper = new ColumnMapRowMapper();
-		mapper.setIgnoreNull(ignoreNull);
-		mapper.setTimeZone(timeZone);
-		return npjt.query(sql, parameters, new RowMapperResultSetExtractor<>(mapper));
+		ColumnMapRowMapper mapper = mapper(ignoreNull, timeZone);
+		Bulkhead global = acquire();
+		long start = System.nanoTime();
+		List<Map<String, Object>> result;
+		try {
+			result = npjt.query(sql, parameters, new RowMapperResultSetExtractor<>(mapper));
+		} finally {
+			release(global);
+		}
+		long duration = System.nanoTime() - start;
+		if (metrics != null) {
+			metrics.add(Phase.EXECUTION, duration);
+		}
+		checkSlow(sql, duration);
+		return result;
+	}
+
+	@FunctionalInterface
+	public interface RowConsumer {
+		void accept(Map<String, Object> row) throws IOException;
 	}
 
 	public int buildAndStream(final String sql, boolean ignoreNull, String timeZone, JsonStream jsonStream) throws IOException {
+		return buildAndStream(sql, ignoreNull, timeZone, new JsonArrayRowWriter(jsonStream));
+	}
+
+	/**
+	 * Build the current query, execute it, and write each row with <code>writer</code>,
+	 * while reading the result set. The writer gets the result set itself, with the column
+	 * types of the database.
+	 *
+	 * @return number of rows written
+	 */
+	public int buildAndStream(final String sql, ResultSetWriter writer) throws IOException {
+		writer.start();
+		consume(sql, new RowSource<ResultSet>() {
+			@Override
+			public void open(ResultSet rs) throws SQLException, IOException {
+				writer.columns(rs.getMetaData());
+			}
+
+			@Override
+			public ResultSet map(ResultSet rs) {
+				return rs;
+			}
+		}, rs -> {
+			long start = metrics == null ? 0 : System.nanoTime();
+			writer.write(rs);
+			if (metrics != null) metrics.addSince(Phase.SERIALIZATION, start);
+		});
+		writer.end();
+		return writer.getCount();
+	}
+
+	/**
+	 * Build the current query, execute it, and write each row with <code>writer</code>,
+	 * while reading the result set. Writers, that take positional rows, get the values
+	 * straight from the result set, without a map per row.
+	 *
+	 * @return number of rows written
+	 */
+	public int buildAndStream(final String sql, boolean ignoreNull, String timeZone, RowWriter writer) throws IOException {
+		writer.start();
+		if (writer instanceof PositionalRowWriter) {
+			PositionalRowWriter positional = (PositionalRowWriter) writer;
+			ColumnMapRowMapper mapper = mapper(ignoreNull, timeZone);
+			consume(sql, new RowSource<Object[]>() {
+				private Object[] values;
+
+				@Override
+				public void open(ResultSet rs) throws SQLException, IOException {
+					String[] names = mapper.getColumnNames(rs);
+					values = new Object[names.length];
+					positional.columns(names);
+				}
+
+				@Override
+				public Object[] map(ResultSet rs) throws SQLException {
+					return mapper.mapRow(rs, values) ? values : null;
+				}
+			}, values -> {
+				long start = metrics == null ? 0 : System.nanoTime();
+				positional.write(values);
+				if (metrics != null) metrics.addSince(Phase.SERIALIZATION, start);
+			});
+		} else {
+			buildAndConsume(sql, ignoreNull, timeZone, row -> {
+				long start = metrics == null ? 0 : System.nanoTime();
+				writer.write(row);
+				if (metrics != null) metrics.addSince(Phase.SERIALIZATION, start);
+			});
+		}
+		writer.end();
+		return writer.getCount();
+	}
+
+	/**
+	 * Build the current query, execute it, and hand each row over to <code>consumer</code>,
+	 * while reading the result set. Rows are not collected in memory.
+	 *
+	 * With metrics, the time spent in the consumer is left to the consumer, and the rest
+	 * gets split into mapping and execution. The slow query log gets the time without the
+	 * consumer as well, such that slow clients do not make queries look slow.
+	 *
+	 * @return number of rows passed to the consumer
+	 */
+	public int buildAndConsume(final String sql, boolean ignoreNull, String timeZone, RowConsumer consumer) throws IOException {
+		ColumnMapRowMapper mapper = mapper(ignoreNull, timeZone);
+		return consume(sql, rs -> mapper.mapRow(rs, 0), consumer::accept);
+	}
+
+	private static ColumnMapRowMapper mapper(boolean ignoreNull, String timeZone) {
 		ColumnMapRowMapper mapper = new ColumnMapRowMapper();
 		mapper.setIgnoreNull(ignoreNull);
 		mapper.setTimeZone(timeZone);
+		return mapper;
+	}
+
+	/* Turns the current row of a result set into the row type of the consumer */
+	private interface RowSource<T> {
+		/**
+		 * Called once before the first row, also if there are none
+		 */
+		default void open(ResultSet rs) throws SQLException, IOException {
+		}
+
+		/**
+		 * @return null, if the row gets skipped
+		 */
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	private interface Sink<T> {
+		void accept(T row) throws SQLException, IOException;
+	}
+
+	private <T> int consume(final String sql, RowSource<T> source, Sink<T> sink) throws IOException {
+		boolean timed = metrics != null || slowQueryLog != null;
+		Bulkhead global = acquire();
+		long start = System.nanoTime();
+		/* Nanoseconds spent in mapping and in the consumer */
+		long[] spent = {0, 0};
 		try {
-			Integer count = npjt.query(sql, parameters, (ResultSet rs) -> {
+			ResultSetExtractor<Integer> extractor = (ResultSet rs) -> {
 				try {
-					jsonStream.writeArrayStart();
+					source.open(rs);
 					int c = 0;
 					while (rs.next()) {
-						Map<String, Object> row = mapper.mapRow(rs, c);
+						long t0 = timed ? System.nanoTime() : 0;
+						T row = source.map(rs);
+						long t1 = timed ? System.nanoTime() : 0;
 						if (row != null) {
-							if (c > 0) jsonStream.writeMore();
-							jsonStream.writeVal(row);
+							sink.accept(row);
 							c++;
 						}
+						if (timed) {
+							spent[0] += t1 - t0;
+							spent[1] += System.nanoTime() - t1;
+						}
 					}
-					jsonStream.writeArrayEnd();
 					return c;
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
-			});
+			};
+			Integer count = statementListener == null
+					? npjt.query(sql, parameters, extractor)
+					: npjt.getJdbcTemplate().query(statementCreator(sql), extractor);
+			long duration = System.nanoTime() - start - spent[1];
+			if (metrics != null) {
+				metrics.add(Phase.MAPPING, spent[0]);
+				metrics.add(Phase.EXECUTION, duration - spent[0]);
+			}
+			checkSlow(sql, duration);
 			return count == null ? 0 : count;
 		} catch (RuntimeException e) {
 			if (e.getCause() instanceof IOException) {
 				throw (IOException) e.getCause();
 			}
 			throw e;
+		} finally {
+			release(global);
 		}
 	}
 
+	/**
+	 * Like the one of {@link NamedParameterJdbcTemplate}, but hand the statement over to the
+	 * listener, before it gets executed
+	 */
+	private PreparedStatementCreator statementCreator(final String sql) {
+		ParsedSql parsedSql = NamedParameterUtils.parseSqlStatement(sql);
+		String sqlToUse = NamedParameterUtils.substituteNamedParameters(parsedSql, parameters);
+		List<SqlParameter> declaredParameters = NamedParameterUtils.buildSqlParameterList(parsedSql, parameters);
+		Object[] values = NamedParameterUtils.buildValueArray(parsedSql, parameters, null);
+		PreparedStatementCreator creator = new PreparedStatementCreatorFactory(sqlToUse, declaredParameters)
+				.newPreparedStatementCreator(values);
+		return con -> {
+			PreparedStatement ps = creator.createPreparedStatement(con);
+			try {
+				statementListener.accept(ps);
+			} catch (RuntimeException e) {
+				JdbcUtils.closeStatement(ps);
+				throw e;
+			}
+			return ps;
+		};
+	}
+
 	public <T> List<T> build(final String sql, Class<T> resultClass) {
-		return npjt.queryForList(sql, parameters, resultClass);
+		Bulkhead global = acquire();
+		long start = System.nanoTime();
+		List<T> result;
+		try {
+			result = npjt.queryForList(sql, parameters, resultClass);
+		} finally {
+			release(global);
+		}
+		long duration = System.nanoTime() - start;
+		if (metrics != null) {
+			metrics.add(Phase.EXECUTION, duration);
+		}
+		checkSlow(sql, duration);
+		return result;
 	}
 
 	/**
@@ -0,0 +1,68 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps a serialized result in memory for identical requests of a {@link SingleFlight}, up
+ * to a maximum size. Bigger results get written into the response of the executing request
+ * only. As soon as the maximum size is exceeded, <code>onOverflow</code> gets called, such
+ * that the waiting requests can run their own query, instead of waiting until the executing
+ * client has downloaded the whole response. Not thread-safe.
+ */
+public class SharedResultBuffer extends OutputStream {
+
+	private final OutputStream target;
+	private final int maxSize;
+	private final Runnable onOverflow;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * @param target response of the executing request
+	 * @param onOverflow called once, before the first byte gets written into <code>target</code>
+	 */
+	public SharedResultBuffer(final OutputStream target, final int maxSize, final Runnable onOverflow) {
+		this.target = target;
+		this.maxSize = maxSize;
+		this.onOverflow = onOverflow;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (buffer != null && buffer.size() + len > maxSize) {
+			ByteArrayOutputStream buffered = buffer;
+			buffer = null;
+			onOverflow.run();
+			buffered.writeTo(target);
+		}
+		if (buffer == null) {
+			target.write(b, off, len);
+		} else {
+			buffer.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffer == null) {
+			target.flush();
+		}
+	}
+
+	/**
+	 * @return the whole result, or null if it got too big and was written into the target
+	 */
+	public byte[] toByteArray() {
+		return buffer == null ? null : buffer.toByteArray();
+	}
+}
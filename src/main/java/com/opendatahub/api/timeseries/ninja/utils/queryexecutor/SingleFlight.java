@@ -0,0 +1,118 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Coalesce identical concurrent calls: The first caller of a key executes it, and all
+ * callers, that arrive with the same key while it is running, wait for its result instead
+ * of executing it again. Nothing gets cached after the call has finished. Thread-safe.
+ */
+public class SingleFlight<T> {
+
+	@FunctionalInterface
+	public interface Call<T> {
+		T call() throws IOException;
+	}
+
+	/**
+	 * Call, that can release the waiting callers before it returns
+	 */
+	@FunctionalInterface
+	public interface SharingCall<T> {
+		/**
+		 * @param share gives its argument to the waiting callers right away. Callers, that
+		 *     arrive afterwards, execute their own call. Whatever happens in this call later
+		 *     on, including exceptions, stays with the executing caller.
+		 */
+		T call(Consumer<T> share) throws IOException;
+	}
+
+	private final Map<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * @return the result of <code>call</code>, or the result of an identical call in flight
+	 */
+	public T execute(final String key, final Call<T> call) throws IOException {
+		return execute(key, share -> call.call());
+	}
+
+	/**
+	 * @return the result of <code>call</code>, or the result, that an identical call in flight
+	 *     has returned or shared
+	 */
+	public T execute(final String key, final SharingCall<T> call) throws IOException {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		CompletableFuture<T> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			shared.incrementAndGet();
+			return await(running);
+		}
+
+		executed.incrementAndGet();
+		try {
+			T result = call.call(value -> {
+				inFlight.remove(key, future);
+				future.complete(value);
+			});
+			future.complete(result);
+			return result;
+		} catch (Throwable e) {
+			/* Also errors, otherwise waiters would never be released, unless shared before */
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	private static <T> T await(final CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an identical query", e);
+		} catch (ExecutionException e) {
+			/* Waiters get the same error as the caller, that executed it */
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	public long getShared() {
+		return shared.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SingleFlight [inFlight=" + inFlight() + ", executed=" + getExecuted() + ", shared=" + getShared() + "]";
+	}
+}
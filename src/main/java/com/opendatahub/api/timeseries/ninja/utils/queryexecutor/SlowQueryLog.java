@@ -0,0 +1,163 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+/**
+ * The last slow queries with their bound parameters, and for a sample of them the plan of
+ * <code>EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON)</code>. Explaining executes the query again,
+ * so it happens on a single background thread with its own connection, and samples get
+ * dropped while it is busy. Thread-safe.
+ */
+public class SlowQueryLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+	public static final class Entry {
+		private final Instant time;
+		private final long durationMs;
+		private final String sql;
+		private final Map<String, String> parameters;
+		private volatile String plan;
+		private volatile String planError;
+
+		Entry(Instant time, long durationMs, String sql, Map<String, String> parameters) {
+			this.time = time;
+			this.durationMs = durationMs;
+			this.sql = sql;
+			this.parameters = parameters;
+		}
+
+		public String getTime() {
+			return time.toString();
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * @return JSON plan of PostgreSQL, null if not sampled or not yet explained
+		 */
+		@JsonRawValue
+		public String getPlan() {
+			return plan;
+		}
+
+		public String getPlanError() {
+			return planError;
+		}
+	}
+
+	private final NamedParameterJdbcTemplate npjt;
+	private final long thresholdNanos;
+	private final double explainSampleRate;
+	private final int capacity;
+	private final Deque<Entry> entries;
+	private final ThreadPoolExecutor explainer;
+
+	/**
+	 * @param thresholdMs queries taking longer get recorded
+	 * @param explainSampleRate share of recorded queries, between 0 and 1, that get explained
+	 * @param capacity number of queries kept, older ones get dropped
+	 */
+	public SlowQueryLog(NamedParameterJdbcTemplate npjt, long thresholdMs, double explainSampleRate, int capacity) {
+		this.npjt = npjt;
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+		this.explainSampleRate = explainSampleRate;
+		this.capacity = capacity;
+		this.entries = new ArrayDeque<>(capacity);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ninja-explain-");
+		threadFactory.setDaemon(true);
+		this.explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(4),
+				threadFactory, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * Record the query, if it took longer than the threshold
+	 */
+	public void check(final String sql, final Map<String, Object> parameters, long durationNanos) {
+		if (durationNanos <= thresholdNanos) {
+			return;
+		}
+		Map<String, String> params = new TreeMap<>();
+		for (Map.Entry<String, Object> param : parameters.entrySet()) {
+			params.put(param.getKey(), Objects.toString(param.getValue()));
+		}
+		Entry entry = new Entry(Instant.now(), TimeUnit.NANOSECONDS.toMillis(durationNanos), sql,
+				Collections.unmodifiableMap(params));
+		synchronized (entries) {
+			if (capacity <= 0) {
+				return;
+			}
+			if (entries.size() == capacity) {
+				entries.removeFirst();
+			}
+			entries.addLast(entry);
+		}
+		LOG.info("Slow query of {} ms: {}", entry.durationMs, sql);
+
+		if (explainSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < explainSampleRate) {
+			Map<String, Object> values = new TreeMap<>(parameters);
+			explainer.execute(() -> explain(entry, values));
+		}
+	}
+
+	private void explain(Entry entry, Map<String, Object> parameters) {
+		try {
+			entry.plan = npjt.queryForObject("explain (analyze, buffers, format json) " + entry.sql, parameters,
+					String.class);
+		} catch (RuntimeException e) {
+			entry.planError = e.getMessage();
+			LOG.warn("Unable to explain slow query", e);
+		}
+	}
+
+	/**
+	 * @return recorded queries, the newest first
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> result;
+		synchronized (entries) {
+			result = new ArrayList<>(entries);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "SlowQueryLog [thresholdMs=" + TimeUnit.NANOSECONDS.toMillis(thresholdNanos) + ", explainSampleRate="
+				+ explainSampleRate + ", capacity=" + capacity + "]";
+	}
+}
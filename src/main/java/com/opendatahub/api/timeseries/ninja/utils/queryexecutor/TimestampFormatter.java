@@ -0,0 +1,154 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.queryexecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Format timestamps as <code>yyyy-MM-dd HH:mm:ss.SSSZ</code>, ex. "2024-01-15 10:30:00.123+0100",
+ * exactly like a {@link DateTimeFormatter} with that pattern, but without intermediate objects.
+ *
+ * The offset of the last formatted instant gets cached together with the period it is valid for,
+ * that is, until the previous and next transition of the zone. Consecutive timestamps of a history
+ * request mostly fall into the same period. Thread-safe, one instance per zone.
+ */
+public final class TimestampFormatter {
+
+	private static final int LENGTH = 28;
+
+	private static final DateTimeFormatter FALLBACK = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSZ");
+	private static final Map<ZoneId, TimestampFormatter> FORMATTERS = new ConcurrentHashMap<>();
+
+	/* An offset and the epoch seconds [from, to) it is valid for */
+	private static final class Window {
+		final long from;
+		final long to;
+		final int offset;
+
+		Window(long from, long to, int offset) {
+			this.from = from;
+			this.to = to;
+			this.offset = offset;
+		}
+	}
+
+	private final ZoneId zoneId;
+	private final ZoneRules rules;
+	private volatile Window window;
+
+	private TimestampFormatter(final ZoneId zoneId) {
+		this.zoneId = zoneId;
+		this.rules = zoneId.getRules();
+		this.window = rules.isFixedOffset()
+				? new Window(Long.MIN_VALUE, Long.MAX_VALUE, rules.getOffset(Instant.EPOCH).getTotalSeconds())
+				: new Window(0, 0, 0);
+	}
+
+	public static TimestampFormatter of(final ZoneId zoneId) {
+		return FORMATTERS.computeIfAbsent(zoneId, TimestampFormatter::new);
+	}
+
+	public String format(final Timestamp timestamp) {
+		byte[] buf = new byte[LENGTH];
+		int len = format(timestamp, buf, 0);
+		if (len < 0) {
+			return FALLBACK.format(timestamp.toInstant().atZone(zoneId));
+		}
+		return new String(buf, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Write the formatted timestamp as ASCII into <code>buf</code>, which must have
+	 * {@link #LENGTH} bytes left after <code>pos</code>.
+	 *
+	 * @return number of bytes written, or -1 if this timestamp needs the
+	 *     {@link DateTimeFormatter}: years outside 1..9999 or offsets with seconds
+	 */
+	private int format(final Timestamp timestamp, final byte[] buf, final int pos) {
+		long epochSecond = Math.floorDiv(timestamp.getTime(), 1000);
+		int millis = timestamp.getNanos() / 1_000_000;
+
+		int offset = offsetAt(epochSecond);
+		if (offset % 60 != 0) {
+			return -1;
+		}
+
+		long localSecond = epochSecond + offset;
+		long epochDay = Math.floorDiv(localSecond, 86400);
+		int secondOfDay = (int) Math.floorMod(localSecond, 86400);
+
+		/* Civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html */
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		if (year < 1 || year > 9999) {
+			return -1;
+		}
+
+		int p = pos;
+		p = digits(buf, p, (int) year / 100);
+		p = digits(buf, p, (int) year % 100);
+		buf[p++] = '-';
+		p = digits(buf, p, month);
+		buf[p++] = '-';
+		p = digits(buf, p, day);
+		buf[p++] = ' ';
+		p = digits(buf, p, secondOfDay / 3600);
+		buf[p++] = ':';
+		p = digits(buf, p, secondOfDay / 60 % 60);
+		buf[p++] = ':';
+		p = digits(buf, p, secondOfDay % 60);
+		buf[p++] = '.';
+		buf[p++] = (byte) ('0' + millis / 100);
+		p = digits(buf, p, millis % 100);
+		buf[p++] = (byte) (offset < 0 ? '-' : '+');
+		int offsetMinutes = Math.abs(offset) / 60;
+		p = digits(buf, p, offsetMinutes / 60);
+		p = digits(buf, p, offsetMinutes % 60);
+		return p - pos;
+	}
+
+	private int offsetAt(final long epochSecond) {
+		Window w = window;
+		if (epochSecond >= w.from && epochSecond < w.to) {
+			return w.offset;
+		}
+		Instant instant = Instant.ofEpochSecond(epochSecond);
+		/* Transitions up to and including this second */
+		ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochSecond(epochSecond + 1));
+		ZoneOffsetTransition next = rules.nextTransition(instant);
+		w = new Window(
+				previous == null ? Long.MIN_VALUE : previous.toEpochSecond(),
+				next == null ? Long.MAX_VALUE : next.toEpochSecond(),
+				rules.getOffset(instant).getTotalSeconds());
+		window = w;
+		return w.offset;
+	}
+
+	private static int digits(final byte[] buf, int p, final int value) {
+		buf[p++] = (byte) ('0' + value / 10);
+		buf[p++] = (byte) ('0' + value % 10);
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		return "TimestampFormatter [zone=" + zoneId + "]";
+	}
+}
@@ -6,6 +6,7 @@ package com.opendatahub.api.timeseries.ninja.utils.resultbuilder;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -76,9 +77,61 @@ public class ResultBuilder {
 	 * @param maxAllowedSizeInMB
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	public static Map<String, Object> build(ResultBuilderConfig config, List<Map<String, Object>> queryResult) {
-		AtomicLong size = new AtomicLong(0);
+		return build(config, queryResult, new AtomicLong(0));
+	}
+
+	/**
+	 * Build a tree representation, and add its estimated size to <code>size</code>. The
+	 * maximum allowed size is checked against the total, such that consecutive calls can
+	 * share a single limit.
+	 */
+	static Map<String, Object> build(ResultBuilderConfig config, List<Map<String, Object>> queryResult, AtomicLong size) {
+		return build(config, queryResult, size, null);
+	}
+
+	/**
+	 * Targets of each hierarchy level, for records with exactly the given column names.
+	 * Parsing them is costly compared to building a small tree, so callers that build
+	 * many trees of the same result set should keep it.
+	 */
+	static final class Catalog {
+		private final Set<String> columns;
+		private final Map<String, List<Target>> targets = new HashMap<>();
+
+		Catalog(ResultBuilderConfig config, List<List<String>> hierarchy, Map<String, Object> rec) {
+			columns = new HashSet<>(rec.keySet());
+			for (List<String> targetDefListNames : hierarchy) {
+				for (String targetDefListName : targetDefListNames) {
+					Set<String> targetDefNames = config.schema.getOrNull(targetDefListName).getFinalNames();
+					List<Target> currentTargetList = new ArrayList<>();
+					for (String targetName : rec.keySet()) {
+						Target target = new Target(targetName);
+						if (targetDefNames.contains(target.getName())) {
+							currentTargetList.add(target);
+							targets.putIfAbsent(targetDefListName, currentTargetList);
+						}
+					}
+				}
+			}
+		}
+
+		Catalog(ResultBuilderConfig config, Map<String, Object> rec) {
+			this(config, config.schema.getHierarchy(config.entryPoint, config.exitPoints), rec);
+		}
+
+		boolean matches(Map<String, Object> rec) {
+			return columns.equals(rec.keySet());
+		}
+	}
+
+	/**
+	 * Same as {@link #build(ResultBuilderConfig, List, AtomicLong)}, but reuses the
+	 * <code>catalog</code>, if it matches the columns of the records
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> build(ResultBuilderConfig config, List<Map<String, Object>> queryResult, AtomicLong size,
+			Catalog catalog) {
 		long maxAllowedSize = config.maxAllowedSizeInMB > 0 ? config.maxAllowedSizeInMB * 1000000 : 0;
 
 		if (queryResult == null || queryResult.isEmpty()) {
@@ -87,7 +140,6 @@ public class ResultBuilder {
 
 		List<String> currValues = new ArrayList<>();
 		List<String> prevValues = new ArrayList<>();
-		Map<String, List<Target>> catalog = new HashMap<>();
 		Map<String, Object> result = new HashMap<>();
 
 		// Should be present inside the definition, just entrypoint needed
@@ -112,19 +164,11 @@ public class ResultBuilder {
 
 		// create catalog of Targets, since each record in this result set contains
 		// exactly the same names
-		for (List<String> targetDefListNames : hierarchy) {
-			for (String targetDefListName : targetDefListNames) {
-				Set<String> targetDefNames = config.schema.getOrNull(targetDefListName).getFinalNames();
-				List<Target> currentTargetList = new ArrayList<>();
-				for (String targetName : firstResultRecord.keySet()) {
-					Target target = new Target(targetName);
-					if (targetDefNames.contains(target.getName())) {
-						currentTargetList.add(target);
-						catalog.putIfAbsent(targetDefListName, currentTargetList);
-						cache.putIfAbsent(targetDefListName, new HashMap<>());
-					}
-				}
-			}
+		if (catalog == null || !catalog.matches(firstResultRecord)) {
+			catalog = new Catalog(config, hierarchy, firstResultRecord);
+		}
+		for (String targetDefListName : catalog.targets.keySet()) {
+			cache.put(targetDefListName, new HashMap<>());
 		}
 
 		// We should check for all these prerequisites before starting the record loop
@@ -140,7 +184,7 @@ public class ResultBuilder {
 
 			for (int level = renewLevel; level <= maxLevel; level++) {
 				for (String targetDefListName : hierarchy.get(level)) {
-					Map<String, Object> curObject = makeObj(catalog.get(targetDefListName), rec, config.showNull, size);
+					Map<String, Object> curObject = makeObj(catalog.targets.get(targetDefListName), rec, config.showNull, size);
 					cache.put(targetDefListName, curObject);
 				}
 			}
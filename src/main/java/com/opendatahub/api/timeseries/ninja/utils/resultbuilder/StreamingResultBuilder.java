@@ -0,0 +1,298 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.resultbuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jsoniter.output.JsonStream;
+
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics.Phase;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.BinaryEncoder;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
+
+/**
+ * Write a tree representation into a {@link JsonStream}, while records arrive.
+ *
+ * The outer levels of the hierarchy, that form a chain of MAP look-ups (ex.,
+ * stationtype and station), get opened and closed as soon as their trigger key
+ * values change. Only the records of one entry of the innermost such level are
+ * kept, and built with {@link ResultBuilder#build}. Memory stays bounded by the
+ * biggest entry of that level, instead of the whole response.
+ *
+ * Records must be ordered by the trigger keys of these levels, otherwise an
+ * entry would be written twice. The queries of the tree representations
+ * already have such an "order by".
+ *
+ * With a {@link BinaryEncoder}, the tree gets built at once and encoded at the end,
+ * because binary maps need their size before the first entry.
+ *
+ * With a maximum response size, the streamed levels get written into memory, and
+ * copied into the stream on {@link #finish()}. Nothing reaches the client before
+ * the size is known to fit, such that exceeding it still gives a proper error
+ * response, instead of a truncated tree.
+ */
+public class StreamingResultBuilder {
+
+	private final ResultBuilderConfig config;
+	private final JsonStream stream;
+	private final JsonStream target;
+	private final SizeLimitedBuffer buffer;
+	private final RequestMetrics metrics;
+	private final BinaryEncoder encoder;
+	private final AtomicLong size = new AtomicLong(0);
+
+	/* Trigger keys and look-ups of the levels, that can be written while streaming */
+	private final List<String> keys = new ArrayList<>();
+	private final List<LookUp> lookUps = new ArrayList<>();
+
+	/* Parsed targets, shared by all entries as long as the columns stay the same */
+	private ResultBuilder.Catalog catalog;
+
+	/* Records of the current entry, with their trigger key values */
+	private final List<Map<String, Object>> group = new ArrayList<>();
+	private final List<String> groupValues = new ArrayList<>();
+
+	/* Trigger key values of the outer entries, that are currently open in the stream */
+	private final List<String> openValues = new ArrayList<>();
+
+	/* One flag per open JSON object, true if it has fields already */
+	private final Deque<Boolean> hasFields = new ArrayDeque<>();
+
+	public StreamingResultBuilder(ResultBuilderConfig config, JsonStream stream) throws IOException {
+		this(config, stream, null);
+	}
+
+	/**
+	 * @param metrics gets the tree building and serialization times, null for none
+	 */
+	public StreamingResultBuilder(ResultBuilderConfig config, JsonStream stream, RequestMetrics metrics) throws IOException {
+		this(config, stream, metrics, null);
+	}
+
+	/**
+	 * @param encoder writes the tree in a binary format into the stream, null for JSON
+	 */
+	public StreamingResultBuilder(ResultBuilderConfig config, JsonStream stream, RequestMetrics metrics,
+			BinaryEncoder encoder) throws IOException {
+		this.config = config;
+		this.target = stream;
+		this.metrics = metrics;
+		this.encoder = encoder;
+		if (encoder != null || config.maxAllowedSizeInMB <= 0) {
+			/* Binary trees get checked while building, before any byte gets encoded */
+			this.stream = stream;
+			this.buffer = null;
+		} else {
+			this.buffer = new SizeLimitedBuffer(config.maxAllowedSizeInMB);
+			this.stream = new JsonStream(buffer, 65536);
+		}
+		if (encoder != null) {
+			/* No level gets streamed, see finish */
+			return;
+		}
+
+		List<List<String>> hierarchy = config.schema.getHierarchy(config.entryPoint, config.exitPoints);
+		List<String> triggerKeys = config.schema.getHierarchyTriggerKeys(config.entryPoint, config.exitPoints);
+		String parentDefListName = null;
+		for (int i = 0; i < hierarchy.size() && i < triggerKeys.size(); i++) {
+			List<String> level = hierarchy.get(i);
+			if (level.size() != 1) {
+				break;
+			}
+			LookUp lookup = config.schema.get(level.get(0)).getLookUp();
+			if (lookup.getType() != LookUpType.MAP
+					|| !triggerKeys.get(i).equals(lookup.getMapTypeKey())
+					|| !Objects.equals(parentDefListName, lookup.getParentDefListName())
+					|| (i > 0 && lookup.getParentTargetName() == null)) {
+				break;
+			}
+			keys.add(lookup.getMapTypeKey());
+			lookUps.add(lookup);
+			parentDefListName = level.get(0);
+		}
+
+		if (!keys.isEmpty()) {
+			this.stream.writeObjectStart();
+			hasFields.push(false);
+		}
+	}
+
+	public void add(Map<String, Object> rec) throws IOException {
+		List<String> values = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			Object value = rec.get(key);
+			if (!(value instanceof String)) {
+				throw new SimpleException(ResultBuilder.ErrorCode.WRONG_TREE_BUILDING_KEY_TYPE, key);
+			}
+			values.add((String) value);
+		}
+		if (!group.isEmpty() && !values.equals(groupValues)) {
+			flush();
+		}
+		if (group.isEmpty()) {
+			groupValues.clear();
+			groupValues.addAll(values);
+		}
+		group.add(rec);
+	}
+
+	/**
+	 * Write the remaining records, and close all open objects
+	 */
+	public void finish() throws IOException {
+		if (keys.isEmpty()) {
+			/* Nothing to stream, fall back to building the whole tree at once */
+			long start = System.nanoTime();
+			Map<String, Object> tree = ResultBuilder.build(config, group, size);
+			group.clear();
+			start = addSince(Phase.TREE, start);
+			if (encoder == null) {
+				target.writeVal(tree);
+			} else {
+				encoder.writeValue(tree);
+			}
+			addSince(Phase.SERIALIZATION, start);
+			return;
+		}
+		if (!group.isEmpty()) {
+			flush();
+		}
+		while (!openValues.isEmpty()) {
+			closeLevel();
+		}
+		stream.writeObjectEnd();
+		if (buffer != null) {
+			stream.flush();
+			buffer.writeTo(target);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void flush() throws IOException {
+		long start = System.nanoTime();
+		if (catalog == null || !catalog.matches(group.get(0))) {
+			catalog = new ResultBuilder.Catalog(config, group.get(0));
+		}
+		Map<String, Object> tree = ResultBuilder.build(config, group, size, catalog);
+		group.clear();
+		start = addSince(Phase.TREE, start);
+
+		/* Find the objects of the current entry, one per streamed level */
+		int depth = keys.size();
+		List<Map<String, Object>> objects = new ArrayList<>(depth);
+		Map<String, Object> children = tree;
+		for (int i = 0; i < depth; i++) {
+			Map<String, Object> obj = (Map<String, Object>) children.get(groupValues.get(i));
+			objects.add(obj);
+			if (i + 1 < depth) {
+				children = (Map<String, Object>) obj.get(lookUps.get(i + 1).getParentTargetName());
+			}
+		}
+
+		int common = 0;
+		while (common < openValues.size() && openValues.get(common).equals(groupValues.get(common))) {
+			common++;
+		}
+		while (openValues.size() > common) {
+			closeLevel();
+		}
+		for (int i = openValues.size(); i < depth - 1; i++) {
+			openLevel(i, objects.get(i));
+		}
+		writeField(groupValues.get(depth - 1));
+		stream.writeVal(objects.get(depth - 1));
+		addSince(Phase.SERIALIZATION, start);
+	}
+
+	private long addSince(Phase phase, long start) {
+		return metrics == null ? start : metrics.addSince(phase, start);
+	}
+
+	/**
+	 * Write all fields of an outer object, except its child map, which stays open
+	 * for the entries that follow
+	 */
+	private void openLevel(int level, Map<String, Object> obj) throws IOException {
+		writeField(groupValues.get(level));
+		stream.writeObjectStart();
+		hasFields.push(false);
+
+		String childName = lookUps.get(level + 1).getParentTargetName();
+		for (Entry<String, Object> entry : obj.entrySet()) {
+			if (entry.getKey().equals(childName)) {
+				continue;
+			}
+			writeField(entry.getKey());
+			stream.writeVal(entry.getValue());
+		}
+
+		writeField(childName);
+		stream.writeObjectStart();
+		hasFields.push(false);
+		openValues.add(groupValues.get(level));
+	}
+
+	private void closeLevel() throws IOException {
+		stream.writeObjectEnd();
+		hasFields.pop();
+		stream.writeObjectEnd();
+		hasFields.pop();
+		openValues.remove(openValues.size() - 1);
+	}
+
+	private void writeField(String name) throws IOException {
+		if (hasFields.peek()) {
+			stream.writeMore();
+		} else {
+			hasFields.pop();
+			hasFields.push(true);
+			stream.writeIndention();
+		}
+		stream.writeObjectField(name);
+	}
+
+	/**
+	 * Keeps a streamed tree in memory, until it is complete. Fails as soon as it gets
+	 * bigger than allowed, instead of growing further.
+	 */
+	private static class SizeLimitedBuffer extends ByteArrayOutputStream {
+
+		private final int maxAllowedSizeInMB;
+		private final long maxAllowedSize;
+
+		SizeLimitedBuffer(int maxAllowedSizeInMB) {
+			this.maxAllowedSizeInMB = maxAllowedSizeInMB;
+			this.maxAllowedSize = maxAllowedSizeInMB * 1000000L;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			checkSize(1);
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			checkSize(len);
+			super.write(b, off, len);
+		}
+
+		private void checkSize(int len) {
+			if (count + (long) len > maxAllowedSize) {
+				throw new SimpleException(ResultBuilder.ErrorCode.RESPONSE_SIZE, maxAllowedSizeInMB);
+			}
+		}
+	}
+}
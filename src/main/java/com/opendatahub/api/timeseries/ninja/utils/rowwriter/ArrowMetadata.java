@@ -0,0 +1,328 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FlatBuffers metadata of the Arrow IPC messages, that {@link ArrowRowWriter} writes, see
+ * Message.fbs and Schema.fbs of https://github.com/apache/arrow/tree/main/format.
+ *
+ * FlatBuffers get usually built back to front by generated code. These few tables get
+ * written front to back instead, each object after the one that refers to it, such that
+ * all offsets point forward, as the format requires.
+ */
+final class ArrowMetadata {
+
+	/* MetadataVersion.V5 */
+	private static final int VERSION = 4;
+
+	/* MessageHeader union */
+	static final int SCHEMA = 1;
+	static final int DICTIONARY_BATCH = 2;
+	static final int RECORD_BATCH = 3;
+
+	/* Type union */
+	private static final int TYPE_INT = 2;
+	private static final int TYPE_FLOATING_POINT = 3;
+	private static final int TYPE_UTF8 = 5;
+	private static final int TYPE_BOOL = 6;
+	private static final int TYPE_TIMESTAMP = 10;
+
+	/* Precision.DOUBLE and TimeUnit.MICROSECOND */
+	private static final int DOUBLE = 2;
+	private static final int MICROSECOND = 2;
+
+	enum Type {
+		INT64, FLOAT64, BOOL, UTF8, TIMESTAMP
+	}
+
+	static final class Field {
+		final String name;
+		final Type type;
+		/* Id of the dictionary of UTF8 fields, negative if not encoded */
+		final long dictionaryId;
+
+		Field(String name, Type type, long dictionaryId) {
+			this.name = name;
+			this.type = type;
+			this.dictionaryId = dictionaryId;
+		}
+	}
+
+	private ArrowMetadata() {
+	}
+
+	static byte[] schema(final List<Field> fields) {
+		List<Node> nodes = new ArrayList<>(fields.size());
+		for (Field field : fields) {
+			Table f = new Table()
+				.offset(0, new Str(field.name))
+				.scalar(1, 1, 1)
+				.scalar(2, 1, typeId(field.type))
+				.offset(3, type(field.type))
+				.offset(5, new Vector(new ArrayList<>()));
+			if (field.dictionaryId >= 0) {
+				f.offset(4, new Table()
+					.scalar(0, 8, field.dictionaryId)
+					.offset(1, new Table().scalar(0, 4, 32).scalar(1, 1, 1)));
+			}
+			nodes.add(f);
+		}
+		Table schema = new Table().offset(1, new Vector(nodes));
+		return message(SCHEMA, schema, 0);
+	}
+
+	/**
+	 * @param nodes length and null count of each field
+	 * @param buffers offset and length of each buffer within the body
+	 */
+	static byte[] recordBatch(long length, long[] nodes, long[] buffers, long bodyLength) {
+		return message(RECORD_BATCH, batch(length, nodes, buffers), bodyLength);
+	}
+
+	static byte[] dictionaryBatch(long id, boolean delta, long length, long[] nodes, long[] buffers, long bodyLength) {
+		Table dictionary = new Table()
+			.scalar(0, 8, id)
+			.offset(1, batch(length, nodes, buffers))
+			.scalar(2, 1, delta ? 1 : 0);
+		return message(DICTIONARY_BATCH, dictionary, bodyLength);
+	}
+
+	private static Table batch(long length, long[] nodes, long[] buffers) {
+		return new Table()
+			.scalar(0, 8, length)
+			.offset(1, new Structs(nodes))
+			.offset(2, new Structs(buffers));
+	}
+
+	private static byte[] message(int headerType, Table header, long bodyLength) {
+		Table message = new Table()
+			.scalar(0, 2, VERSION)
+			.scalar(1, 1, headerType)
+			.offset(2, header)
+			.scalar(3, 8, bodyLength);
+		Out out = new Out();
+		out.put(4, 0);
+		int root = message.write(out);
+		out.set(0, 4, root);
+		return out.toByteArray();
+	}
+
+	private static int typeId(Type type) {
+		switch (type) {
+			case INT64:
+				return TYPE_INT;
+			case FLOAT64:
+				return TYPE_FLOATING_POINT;
+			case BOOL:
+				return TYPE_BOOL;
+			case TIMESTAMP:
+				return TYPE_TIMESTAMP;
+			case UTF8:
+			default:
+				return TYPE_UTF8;
+		}
+	}
+
+	private static Table type(Type type) {
+		switch (type) {
+			case INT64:
+				return new Table().scalar(0, 4, 64).scalar(1, 1, 1);
+			case FLOAT64:
+				return new Table().scalar(0, 2, DOUBLE);
+			case TIMESTAMP:
+				return new Table().scalar(0, 2, MICROSECOND).offset(1, new Str("UTC"));
+			case BOOL:
+			case UTF8:
+			default:
+				return new Table();
+		}
+	}
+
+	/* Little endian output, that grows as needed */
+	private static final class Out {
+		private byte[] buf = new byte[512];
+		private int pos = 0;
+
+		void put(int size, long value) {
+			reserve(size);
+			set(pos - size, size, value);
+		}
+
+		void set(int at, int size, long value) {
+			for (int i = 0; i < size; i++) {
+				buf[at + i] = (byte) (value >>> (8 * i));
+			}
+		}
+
+		void bytes(byte[] value) {
+			reserve(value.length);
+			System.arraycopy(value, 0, buf, pos - value.length, value.length);
+		}
+
+		/* Zero padding up to a multiple of alignment, plus skew */
+		void align(int alignment, int skew) {
+			while ((pos + skew) % alignment != 0) {
+				put(1, 0);
+			}
+		}
+
+		void reserve(int size) {
+			if (pos + size > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + size));
+			}
+			pos += size;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, pos);
+		}
+	}
+
+	private interface Node {
+		/**
+		 * @return position, that offsets to this object refer to
+		 */
+		int write(Out out);
+	}
+
+	private static final class Str implements Node {
+		private final byte[] value;
+
+		Str(String value) {
+			this.value = value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public int write(Out out) {
+			out.align(4, 0);
+			int position = out.pos;
+			out.put(4, value.length);
+			out.bytes(value);
+			out.put(1, 0);
+			return position;
+		}
+	}
+
+	/* Vector of tables */
+	private static final class Vector implements Node {
+		private final List<Node> elements;
+
+		Vector(List<Node> elements) {
+			this.elements = elements;
+		}
+
+		@Override
+		public int write(Out out) {
+			out.align(4, 0);
+			int position = out.pos;
+			out.put(4, elements.size());
+			out.reserve(4 * elements.size());
+			for (int i = 0; i < elements.size(); i++) {
+				int field = position + 4 + 4 * i;
+				out.set(field, 4, elements.get(i).write(out) - field);
+			}
+			return position;
+		}
+	}
+
+	/* Vector of structs made of two longs, as FieldNode and Buffer */
+	private static final class Structs implements Node {
+		private final long[] values;
+
+		Structs(long[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public int write(Out out) {
+			/* The elements after the length must be aligned to 8 */
+			out.align(8, 4);
+			int position = out.pos;
+			out.put(4, values.length / 2);
+			for (long value : values) {
+				out.put(8, value);
+			}
+			return position;
+		}
+	}
+
+	private static final class Table implements Node {
+		private final List<int[]> scalars = new ArrayList<>();
+		private final List<Long> values = new ArrayList<>();
+		private final List<Integer> offsetSlots = new ArrayList<>();
+		private final List<Node> children = new ArrayList<>();
+
+		Table scalar(int slot, int size, long value) {
+			scalars.add(new int[] { slot, size });
+			values.add(value);
+			return this;
+		}
+
+		Table offset(int slot, Node child) {
+			offsetSlots.add(slot);
+			children.add(child);
+			return this;
+		}
+
+		@Override
+		public int write(Out out) {
+			int slotCount = 0;
+			for (int[] scalar : scalars) {
+				slotCount = Math.max(slotCount, scalar[0] + 1);
+			}
+			for (int slot : offsetSlots) {
+				slotCount = Math.max(slotCount, slot + 1);
+			}
+
+			/* Lay out the fields by descending size after the vtable offset, each aligned to its size */
+			int[] fieldOffsets = new int[slotCount];
+			int size = 4;
+			int alignment = 4;
+			for (int fieldSize : new int[] { 8, 4, 2, 1 }) {
+				for (int[] scalar : scalars) {
+					if (scalar[1] == fieldSize) {
+						size = (size + fieldSize - 1) / fieldSize * fieldSize;
+						fieldOffsets[scalar[0]] = size;
+						size += fieldSize;
+						alignment = Math.max(alignment, fieldSize);
+					}
+				}
+				if (fieldSize == 4) {
+					for (int slot : offsetSlots) {
+						fieldOffsets[slot] = size;
+						size += 4;
+					}
+				}
+			}
+
+			out.align(2, 0);
+			int vtable = out.pos;
+			out.put(2, 4 + 2 * slotCount);
+			out.put(2, size);
+			for (int fieldOffset : fieldOffsets) {
+				out.put(2, fieldOffset);
+			}
+
+			out.align(alignment, 0);
+			int table = out.pos;
+			out.reserve(size);
+			out.set(table, 4, table - vtable);
+			for (int i = 0; i < scalars.size(); i++) {
+				int[] scalar = scalars.get(i);
+				out.set(table + fieldOffsets[scalar[0]], scalar[1], values.get(i));
+			}
+			for (int i = 0; i < children.size(); i++) {
+				int field = table + fieldOffsets[offsetSlots.get(i)];
+				out.set(field, 4, children.get(i).write(out) - field);
+			}
+			return table;
+		}
+	}
+}
@@ -0,0 +1,525 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgis.PGgeometry;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * Apache Arrow IPC stream, see https://arrow.apache.org/docs/format/Columnar.html#ipc-streaming-format:
+ * the schema, then record batches of up to {@link #BATCH_ROWS} rows, each written as soon
+ * as it is full, and the end-of-stream marker.
+ *
+ * Columns keep the types of the database: float64 for double precision, int64 for
+ * integers, bool, timestamp in microseconds and UTC, and strings. Strings of varchar
+ * columns are dictionary encoded, such that repeated station codes and type names get sent
+ * once. Their dictionaries grow with a delta before each batch, and get replaced once they
+ * hold more than {@link #DICTIONARY_LIMIT} values, to bound memory. JSON and geometries
+ * (as EWKT) are plain strings.
+ *
+ * Rows get read straight from the result set, so aliases are not merged, ex.
+ * <code>mvalue_double</code>, <code>mvalue_string</code> and <code>mvalue_json</code> stay
+ * separate columns with their own types.
+ */
+public class ArrowRowWriter extends ResultSetWriter {
+
+	static final int BATCH_ROWS = 4096;
+	static final int DICTIONARY_LIMIT = 65536;
+
+	private static final byte[] CONTINUATION = { -1, -1, -1, -1 };
+	private static final byte[] END_OF_STREAM = { -1, -1, -1, -1, 0, 0, 0, 0 };
+	private static final byte[] PADDING = new byte[8];
+
+	private final Body body = new Body();
+	private Column[] columns;
+	private int rows = 0;
+
+	public ArrowRowWriter(final JsonStream stream) {
+		super(stream);
+	}
+
+	@Override
+	public void start() {
+		/* The schema comes with the column types */
+	}
+
+	@Override
+	public void columns(final ResultSetMetaData metaData) throws SQLException, IOException {
+		int columnCount = metaData.getColumnCount();
+		columns = new Column[columnCount];
+		List<ArrowMetadata.Field> fields = new ArrayList<>(columnCount);
+		long dictionaryId = 0;
+		for (int i = 1; i <= columnCount; i++) {
+			Column column = column(metaData, i, dictionaryId);
+			if (column.dictionaryId() >= 0) {
+				dictionaryId++;
+			}
+			columns[i - 1] = column;
+			fields.add(new ArrowMetadata.Field(JdbcUtils.lookupColumnName(metaData, i), column.type, column.dictionaryId()));
+		}
+		writeMessage(ArrowMetadata.schema(fields), false);
+	}
+
+	@Override
+	protected void writeRow(final ResultSet rs, boolean first) throws SQLException, IOException {
+		for (Column column : columns) {
+			column.append(rs, rows);
+		}
+		if (++rows == BATCH_ROWS) {
+			writeBatch();
+		}
+	}
+
+	@Override
+	public void end() throws IOException {
+		if (columns == null) {
+			/* Nothing has been read, send an empty schema */
+			columns = new Column[0];
+			writeMessage(ArrowMetadata.schema(new ArrayList<>()), false);
+		}
+		if (rows > 0) {
+			writeBatch();
+		}
+		stream.write(END_OF_STREAM);
+	}
+
+	private void writeBatch() throws IOException {
+		for (Column column : columns) {
+			if (column instanceof DictionaryColumn) {
+				((DictionaryColumn) column).writeDictionary(this);
+			}
+		}
+		body.reset();
+		for (Column column : columns) {
+			column.writeTo(body);
+		}
+		writeMessage(ArrowMetadata.recordBatch(rows, body.nodes(), body.buffers(), body.length()), true);
+		for (Column column : columns) {
+			column.reset();
+		}
+		rows = 0;
+	}
+
+	/**
+	 * Encapsulated message: continuation marker, size of the metadata padded to 8 bytes,
+	 * metadata, and the body, if any
+	 */
+	private void writeMessage(byte[] metadata, boolean withBody) throws IOException {
+		int padding = (8 - metadata.length % 8) % 8;
+		int size = metadata.length + padding;
+		stream.write(CONTINUATION);
+		stream.write(new byte[] { (byte) size, (byte) (size >>> 8), (byte) (size >>> 16), (byte) (size >>> 24) });
+		stream.write(metadata);
+		stream.write(PADDING, 0, padding);
+		if (withBody) {
+			stream.write(body.buf, 0, body.pos);
+		}
+	}
+
+	private static Column column(ResultSetMetaData metaData, int index, long dictionaryId) throws SQLException {
+		String typeName = metaData.getColumnTypeName(index).toLowerCase();
+		if (typeName.contains("geometry")) {
+			return new StringColumn(index, StringColumn.GEOMETRY);
+		}
+		if (typeName.contains("json")) {
+			return new StringColumn(index, StringColumn.JSON);
+		}
+		switch (metaData.getColumnType(index)) {
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+				return new DoubleColumn(index);
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return new LongColumn(index);
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return new BoolColumn(index);
+			case Types.TIMESTAMP:
+			case Types.TIMESTAMP_WITH_TIMEZONE:
+				return new TimestampColumn(index);
+			case Types.VARCHAR:
+			case Types.CHAR:
+			case Types.LONGVARCHAR:
+				return new DictionaryColumn(index, dictionaryId);
+			default:
+				return new StringColumn(index, StringColumn.TEXT);
+		}
+	}
+
+	/* Body of a message: little endian buffers, each padded to 8 bytes, with their field nodes */
+	private static final class Body {
+		private byte[] buf = new byte[65536];
+		private int pos = 0;
+		private final List<Long> nodes = new ArrayList<>();
+		private final List<Long> buffers = new ArrayList<>();
+
+		void reset() {
+			pos = 0;
+			nodes.clear();
+			buffers.clear();
+		}
+
+		void node(long length, long nullCount) {
+			nodes.add(length);
+			nodes.add(nullCount);
+		}
+
+		void emptyBuffer() {
+			buffers.add((long) pos);
+			buffers.add(0L);
+		}
+
+		void buffer(byte[] bytes, int length) {
+			ensure(length + 8);
+			System.arraycopy(bytes, 0, buf, pos, length);
+			end(pos, length);
+		}
+
+		void buffer(int[] values, int length) {
+			ensure(4 * length + 8);
+			int start = pos;
+			for (int i = 0; i < length; i++) {
+				put(4, values[i]);
+			}
+			end(start, pos - start);
+		}
+
+		void buffer(long[] values, int length) {
+			ensure(8 * length);
+			int start = pos;
+			for (int i = 0; i < length; i++) {
+				put(8, values[i]);
+			}
+			end(start, pos - start);
+		}
+
+		private void put(int size, long value) {
+			for (int i = 0; i < size; i++) {
+				buf[pos++] = (byte) (value >>> (8 * i));
+			}
+		}
+
+		private void end(int start, int length) {
+			buffers.add((long) start);
+			buffers.add((long) length);
+			pos = start + (length + 7) / 8 * 8;
+			Arrays.fill(buf, start + length, pos, (byte) 0);
+		}
+
+		private void ensure(int size) {
+			if (pos + size > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + size));
+			}
+		}
+
+		long[] nodes() {
+			return nodes.stream().mapToLong(Long::longValue).toArray();
+		}
+
+		long[] buffers() {
+			return buffers.stream().mapToLong(Long::longValue).toArray();
+		}
+
+		long length() {
+			return pos;
+		}
+	}
+
+	/* Values of one column for the current batch */
+	private abstract static class Column {
+		final int index;
+		final ArrowMetadata.Type type;
+		private final byte[] validity = new byte[BATCH_ROWS / 8];
+		private int length = 0;
+		private int nullCount = 0;
+
+		Column(int index, ArrowMetadata.Type type) {
+			this.index = index;
+			this.type = type;
+		}
+
+		void append(ResultSet rs, int row) throws SQLException {
+			if (read(rs, row)) {
+				validity[row >> 3] |= 1 << (row & 7);
+			} else {
+				nullCount++;
+			}
+			length++;
+		}
+
+		/**
+		 * Read the value of the current row of <code>rs</code> as value number <code>row</code>
+		 *
+		 * @return false, if it is null
+		 */
+		abstract boolean read(ResultSet rs, int row) throws SQLException;
+
+		void writeTo(Body body) {
+			body.node(length, nullCount);
+			if (nullCount == 0) {
+				body.emptyBuffer();
+			} else {
+				body.buffer(validity, (length + 7) / 8);
+			}
+			writeValues(body, length);
+		}
+
+		abstract void writeValues(Body body, int length);
+
+		void reset() {
+			Arrays.fill(validity, (byte) 0);
+			length = 0;
+			nullCount = 0;
+		}
+
+		long dictionaryId() {
+			return -1;
+		}
+	}
+
+	private static final class DoubleColumn extends Column {
+		private final long[] values = new long[BATCH_ROWS];
+
+		DoubleColumn(int index) {
+			super(index, ArrowMetadata.Type.FLOAT64);
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			double value = rs.getDouble(index);
+			values[row] = Double.doubleToRawLongBits(value);
+			return !rs.wasNull();
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			body.buffer(values, length);
+		}
+	}
+
+	private static final class LongColumn extends Column {
+		private final long[] values = new long[BATCH_ROWS];
+
+		LongColumn(int index) {
+			super(index, ArrowMetadata.Type.INT64);
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			values[row] = rs.getLong(index);
+			return !rs.wasNull();
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			body.buffer(values, length);
+		}
+	}
+
+	private static final class TimestampColumn extends Column {
+		private final long[] values = new long[BATCH_ROWS];
+
+		TimestampColumn(int index) {
+			super(index, ArrowMetadata.Type.TIMESTAMP);
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			Timestamp value = rs.getTimestamp(index);
+			if (value == null) {
+				values[row] = 0;
+				return false;
+			}
+			values[row] = Math.floorDiv(value.getTime(), 1000) * 1_000_000 + value.getNanos() / 1000;
+			return true;
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			body.buffer(values, length);
+		}
+	}
+
+	private static final class BoolColumn extends Column {
+		private final byte[] values = new byte[BATCH_ROWS / 8];
+
+		BoolColumn(int index) {
+			super(index, ArrowMetadata.Type.BOOL);
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			if (rs.getBoolean(index)) {
+				values[row >> 3] |= 1 << (row & 7);
+			}
+			return !rs.wasNull();
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			body.buffer(values, (length + 7) / 8);
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			Arrays.fill(values, (byte) 0);
+		}
+	}
+
+	/* Offsets and UTF-8 data of strings */
+	private static final class Utf8 {
+		private final int[] offsets = new int[BATCH_ROWS + 1];
+		private byte[] data = new byte[BATCH_ROWS * 16];
+		private int count = 0;
+
+		void add(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			int end = offsets[count];
+			if (end + bytes.length > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, end + bytes.length));
+			}
+			System.arraycopy(bytes, 0, data, end, bytes.length);
+			offsets[++count] = end + bytes.length;
+		}
+
+		void addNull() {
+			offsets[count + 1] = offsets[count];
+			count++;
+		}
+
+		void writeTo(Body body) {
+			body.buffer(offsets, count + 1);
+			body.buffer(data, offsets[count]);
+		}
+
+		void reset() {
+			count = 0;
+		}
+	}
+
+	private static final class StringColumn extends Column {
+		static final int TEXT = 0;
+		static final int JSON = 1;
+		static final int GEOMETRY = 2;
+
+		private final int kind;
+		private final Utf8 values = new Utf8();
+
+		StringColumn(int index, int kind) {
+			super(index, ArrowMetadata.Type.UTF8);
+			this.kind = kind;
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			String value = rs.getString(index);
+			/* A JSON null, as the JSON representations have it */
+			if (value == null || (kind == JSON && value.equalsIgnoreCase("null"))) {
+				values.addNull();
+				return false;
+			}
+			values.add(kind == GEOMETRY ? PGgeometry.geomFromString(value).toString() : value);
+			return true;
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			values.writeTo(body);
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			values.reset();
+		}
+	}
+
+	private static final class DictionaryColumn extends Column {
+		private final long id;
+		private final int[] indices = new int[BATCH_ROWS];
+		private final Map<String, Integer> dictionary = new HashMap<>();
+		/* Values added to the dictionary since it has been written last */
+		private final Utf8 added = new Utf8();
+		private boolean delta = false;
+
+		DictionaryColumn(int index, long id) {
+			super(index, ArrowMetadata.Type.UTF8);
+			this.id = id;
+		}
+
+		@Override
+		long dictionaryId() {
+			return id;
+		}
+
+		@Override
+		boolean read(ResultSet rs, int row) throws SQLException {
+			String value = rs.getString(index);
+			if (value == null) {
+				indices[row] = 0;
+				return false;
+			}
+			Integer position = dictionary.get(value);
+			if (position == null) {
+				position = dictionary.size();
+				dictionary.put(value, position);
+				added.add(value);
+			}
+			indices[row] = position;
+			return true;
+		}
+
+		/**
+		 * Write the added values as delta, or the whole dictionary, if it is new
+		 */
+		void writeDictionary(ArrowRowWriter writer) throws IOException {
+			if (delta && added.count == 0) {
+				return;
+			}
+			Body body = writer.body;
+			body.reset();
+			body.node(added.count, 0);
+			body.emptyBuffer();
+			added.writeTo(body);
+			writer.writeMessage(ArrowMetadata.dictionaryBatch(id, delta, added.count, body.nodes(), body.buffers(),
+					body.length()), true);
+			added.reset();
+			delta = true;
+		}
+
+		@Override
+		void writeValues(Body body, int length) {
+			body.buffer(indices, length);
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			if (dictionary.size() > DICTIONARY_LIMIT) {
+				dictionary.clear();
+				delta = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.postgis.Point;
+
+import com.jsoniter.any.Any;
+
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
+
+/**
+ * Writes the values of the JSON representations in a binary format, with the same
+ * structure: maps, arrays, strings, numbers, booleans and null. Doubles get written as
+ * 64 bit floats, instead of decimal text. Values of jsonb columns get converted, instead
+ * of being sent as JSON text, and points become maps of srid, x and y, as in JSON.
+ */
+public abstract class BinaryEncoder {
+
+	protected final OutputStream out;
+
+	protected BinaryEncoder(final OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return null, if the format is not binary
+	 */
+	public static BinaryEncoder of(final Format format, final OutputStream out) {
+		switch (format) {
+			case MSGPACK:
+				return new MessagePackEncoder(out);
+			case CBOR:
+				return new CborEncoder(out);
+			default:
+				return null;
+		}
+	}
+
+	public abstract void writeMapHeader(int size) throws IOException;
+
+	public abstract void writeArrayHeader(int size) throws IOException;
+
+	public abstract void writeNull() throws IOException;
+
+	public abstract void writeBoolean(boolean value) throws IOException;
+
+	public abstract void writeLong(long value) throws IOException;
+
+	public abstract void writeDouble(double value) throws IOException;
+
+	public abstract void writeString(final String value) throws IOException;
+
+	public void writeValue(final Object value) throws IOException {
+		if (value == null) {
+			writeNull();
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+			writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof BigInteger) {
+			BigInteger big = (BigInteger) value;
+			if (big.bitLength() < 64) {
+				writeLong(big.longValue());
+			} else {
+				writeDouble(big.doubleValue());
+			}
+		} else if (value instanceof Number) {
+			writeLong(((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			writeBoolean((Boolean) value);
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeMapHeader(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			writeArrayHeader(collection.size());
+			for (Object item : collection) {
+				writeValue(item);
+			}
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			writeArrayHeader(array.length);
+			for (Object item : array) {
+				writeValue(item);
+			}
+		} else if (value instanceof RawJson) {
+			writeAny(((RawJson) value).parse());
+		} else if (value instanceof Any) {
+			writeAny((Any) value);
+		} else if (value instanceof Point) {
+			Point point = (Point) value;
+			writeMapHeader(3);
+			writeString("srid");
+			writeLong(point.getSrid());
+			writeString("x");
+			writeDouble(point.getX());
+			writeString("y");
+			writeDouble(point.getY());
+		} else {
+			writeString(value.toString());
+		}
+	}
+
+	private void writeAny(final Any any) throws IOException {
+		switch (any.valueType()) {
+			case OBJECT: {
+				Map<String, Any> map = any.asMap();
+				writeMapHeader(map.size());
+				for (Map.Entry<String, Any> entry : map.entrySet()) {
+					writeString(entry.getKey());
+					writeAny(entry.getValue());
+				}
+				break;
+			}
+			case ARRAY: {
+				List<Any> list = any.asList();
+				writeArrayHeader(list.size());
+				for (Any item : list) {
+					writeAny(item);
+				}
+				break;
+			}
+			case STRING:
+				writeString(any.toString());
+				break;
+			case NUMBER: {
+				String number = any.toString();
+				if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+					writeValue(new BigInteger(number));
+				} else {
+					writeDouble(Double.parseDouble(number));
+				}
+				break;
+			}
+			case BOOLEAN:
+				writeBoolean(any.toBoolean());
+				break;
+			default:
+				writeNull();
+		}
+	}
+
+	protected static byte[] utf8(final String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/* Big endian, as both formats have it */
+	protected void writeBigEndian(long value, int size) throws IOException {
+		for (int i = size - 1; i >= 0; i--) {
+			out.write((int) (value >>> (8 * i)));
+		}
+	}
+}
@@ -0,0 +1,97 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CBOR, see RFC 8949. Unlike MessagePack, arrays can be written before their size is
+ * known, see {@link #writeArrayStart()}.
+ */
+public class CborEncoder extends BinaryEncoder {
+
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1;
+	private static final int TEXT = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+
+	public CborEncoder(final OutputStream out) {
+		super(out);
+	}
+
+	private void writeHeader(int major, long argument) throws IOException {
+		int type = major << 5;
+		if (argument < 24) {
+			out.write(type | (int) argument);
+		} else if (argument < 0x100) {
+			out.write(type | 24);
+			writeBigEndian(argument, 1);
+		} else if (argument < 0x10000) {
+			out.write(type | 25);
+			writeBigEndian(argument, 2);
+		} else if (argument < 0x100000000L) {
+			out.write(type | 26);
+			writeBigEndian(argument, 4);
+		} else {
+			out.write(type | 27);
+			writeBigEndian(argument, 8);
+		}
+	}
+
+	@Override
+	public void writeMapHeader(int size) throws IOException {
+		writeHeader(MAP, size);
+	}
+
+	@Override
+	public void writeArrayHeader(int size) throws IOException {
+		writeHeader(ARRAY, size);
+	}
+
+	/**
+	 * Start an array of indefinite length, to be ended with {@link #writeBreak()}
+	 */
+	public void writeArrayStart() throws IOException {
+		out.write((ARRAY << 5) | 31);
+	}
+
+	public void writeBreak() throws IOException {
+		out.write(0xff);
+	}
+
+	@Override
+	public void writeNull() throws IOException {
+		out.write(0xf6);
+	}
+
+	@Override
+	public void writeBoolean(boolean value) throws IOException {
+		out.write(value ? 0xf5 : 0xf4);
+	}
+
+	@Override
+	public void writeLong(long value) throws IOException {
+		if (value >= 0) {
+			writeHeader(UNSIGNED, value);
+		} else {
+			writeHeader(NEGATIVE, -1 - value);
+		}
+	}
+
+	@Override
+	public void writeDouble(double value) throws IOException {
+		out.write(0xfb);
+		writeBigEndian(Double.doubleToLongBits(value), 8);
+	}
+
+	@Override
+	public void writeString(final String value) throws IOException {
+		byte[] bytes = utf8(value);
+		writeHeader(TEXT, bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,39 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * CBOR array of row maps. The array has an indefinite length, such that rows get written
+ * as they come, as with JSON.
+ */
+public class CborRowWriter extends RowWriter {
+
+	private final CborEncoder encoder;
+
+	public CborRowWriter(final JsonStream stream) {
+		super(stream);
+		this.encoder = new CborEncoder(stream);
+	}
+
+	@Override
+	public void start() throws IOException {
+		encoder.writeArrayStart();
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		encoder.writeValue(row);
+	}
+
+	@Override
+	public void end() throws IOException {
+		encoder.writeBreak();
+	}
+}
@@ -0,0 +1,95 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * A JSON object with the column names once, and each row as array of values in that
+ * order: <code>{"columns":["mvalue",...],"rows":[[1.5,...],...]}</code>. Null values
+ * keep their position.
+ *
+ * Rows given as maps define the columns with the first row, such that they are empty, if
+ * there are no rows. Positional rows get them from {@link #columns} in any case.
+ */
+public class ColumnarRowWriter extends PositionalRowWriter {
+
+	private String[] header;
+
+	public ColumnarRowWriter(final JsonStream stream) {
+		super(stream);
+	}
+
+	@Override
+	public void start() {
+		/* The object starts with the column names */
+	}
+
+	@Override
+	public void columns(final String[] names) throws IOException {
+		if (header != null) {
+			return;
+		}
+		header = names.clone();
+		stream.writeObjectStart();
+		stream.writeObjectField("columns");
+		stream.writeArrayStart();
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) {
+				stream.writeMore();
+			}
+			stream.writeVal(header[i]);
+		}
+		stream.writeArrayEnd();
+		stream.writeMore();
+		stream.writeObjectField("rows");
+		stream.writeArrayStart();
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		if (header == null) {
+			columns(row.keySet().toArray(new String[0]));
+		}
+		if (!first) {
+			stream.writeMore();
+		}
+		stream.writeArrayStart();
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) {
+				stream.writeMore();
+			}
+			stream.writeVal(row.get(header[i]));
+		}
+		stream.writeArrayEnd();
+	}
+
+	@Override
+	protected void writeRow(final Object[] values, boolean first) throws IOException {
+		if (!first) {
+			stream.writeMore();
+		}
+		stream.writeArrayStart();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				stream.writeMore();
+			}
+			stream.writeVal(values[i]);
+		}
+		stream.writeArrayEnd();
+	}
+
+	@Override
+	public void end() throws IOException {
+		if (header == null) {
+			columns(new String[0]);
+		}
+		stream.writeArrayEnd();
+		stream.writeObjectEnd();
+	}
+}
@@ -0,0 +1,40 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * Comma separated values, see RFC 4180: cells with commas, quotes or line breaks get
+ * quoted, and quotes within them doubled. Lines end with CRLF.
+ */
+public class CsvRowWriter extends DelimitedRowWriter {
+
+	public CsvRowWriter(final JsonStream stream) {
+		super(stream, ',', "\r\n");
+	}
+
+	@Override
+	protected void appendCell(StringBuilder line, final String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+}
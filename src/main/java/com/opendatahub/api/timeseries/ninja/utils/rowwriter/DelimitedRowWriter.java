@@ -0,0 +1,111 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
+
+/**
+ * Rows as lines of delimited text cells, after a header line with the column names. The
+ * columns are fixed by the header, so null values become empty cells. JSON values, ex. of
+ * jsonb columns or geometries, become cells with their JSON text.
+ *
+ * Rows given as maps define the header with the first row, such that there is none, if
+ * there are no rows. Positional rows get it from {@link #columns} in any case.
+ */
+public abstract class DelimitedRowWriter extends PositionalRowWriter {
+
+	private final char delimiter;
+	private final String lineEnd;
+	private final StringBuilder line = new StringBuilder(256);
+	private String[] header;
+
+	protected DelimitedRowWriter(final JsonStream stream, char delimiter, final String lineEnd) {
+		super(stream);
+		this.delimiter = delimiter;
+		this.lineEnd = lineEnd;
+	}
+
+	@Override
+	public void start() {
+		/* The header comes with the column names */
+	}
+
+	@Override
+	public void columns(final String[] names) throws IOException {
+		if (header != null) {
+			return;
+		}
+		header = names.clone();
+		line.setLength(0);
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) {
+				line.append(delimiter);
+			}
+			appendCell(line, header[i]);
+		}
+		writeLine();
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		if (header == null) {
+			columns(row.keySet().toArray(new String[0]));
+		}
+		line.setLength(0);
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) {
+				line.append(delimiter);
+			}
+			appendValue(row.get(header[i]));
+		}
+		writeLine();
+	}
+
+	@Override
+	protected void writeRow(final Object[] values, boolean first) throws IOException {
+		line.setLength(0);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				line.append(delimiter);
+			}
+			appendValue(values[i]);
+		}
+		writeLine();
+	}
+
+	@Override
+	public void end() {
+		/* No framing around the rows */
+	}
+
+	private void appendValue(final Object value) {
+		if (value == null) {
+			return;
+		}
+		if (value instanceof Number || value instanceof Boolean) {
+			line.append(value);
+		} else if (value instanceof String || value instanceof RawJson) {
+			appendCell(line, value.toString());
+		} else {
+			appendCell(line, JsonStream.serialize(value));
+		}
+	}
+
+	private void writeLine() throws IOException {
+		line.append(lineEnd);
+		stream.write(line.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Append <code>value</code> as a single cell, escaped as needed by the format
+	 */
+	protected abstract void appendCell(StringBuilder line, final String value);
+}
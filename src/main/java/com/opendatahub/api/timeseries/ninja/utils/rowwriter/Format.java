@@ -0,0 +1,144 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.ErrorCodeInterface;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
+
+/**
+ * Output format of flat representations, chosen with the <code>format</code> parameter or
+ * the <code>Accept</code> header. Only JSON, columnar JSON and the binary formats wrap the
+ * rows into an object with offset, limit and next cursor, the others send them as response
+ * headers instead. Trees are available as JSON and in the binary formats only.
+ */
+public enum Format {
+
+	JSON("application/json", "application/json;charset=UTF-8"),
+	NDJSON("application/x-ndjson", "application/x-ndjson"),
+	CSV("text/csv", "text/csv;charset=UTF-8"),
+	TSV("text/tab-separated-values", "text/tab-separated-values;charset=UTF-8"),
+	/* Plain JSON as well, so only the format parameter chooses it, the Accept header gives JSON */
+	COLUMNAR("application/json", "application/json;charset=UTF-8"),
+	ARROW("application/vnd.apache.arrow.stream", "application/vnd.apache.arrow.stream"),
+	MSGPACK("application/msgpack", "application/msgpack"),
+	CBOR("application/cbor", "application/cbor");
+
+	private enum ErrorCode implements ErrorCodeInterface {
+		WRONG_FORMAT("Please choose one of %s as format. '%s' is not allowed.");
+
+		private final String msg;
+
+		ErrorCode(final String msg) {
+			this.msg = msg;
+		}
+
+		@Override
+		public String getMsg() {
+			return "PARSING ERROR: " + msg;
+		}
+	}
+
+	/* Media types, as listed in the produces attribute of request mappings */
+	public static final String MEDIA_TYPE_JSON = "application/json;charset=UTF-8";
+	public static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+	public static final String MEDIA_TYPE_CSV = "text/csv;charset=UTF-8";
+	public static final String MEDIA_TYPE_TSV = "text/tab-separated-values;charset=UTF-8";
+	public static final String MEDIA_TYPE_ARROW = "application/vnd.apache.arrow.stream";
+	public static final String MEDIA_TYPE_MSGPACK = "application/msgpack";
+	public static final String MEDIA_TYPE_CBOR = "application/cbor";
+
+	private final String mediaType;
+	private final String contentType;
+
+	Format(String mediaType, String contentType) {
+		this.mediaType = mediaType;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * @param format value of the format parameter, wins over <code>accept</code> if given
+	 * @param accept value of the Accept header, the first supported media type wins, JSON
+	 *     if none or null
+	 */
+	public static Format get(final String format, final String accept) {
+		if (format != null && !format.isBlank()) {
+			for (Format value : values()) {
+				if (value.name().equalsIgnoreCase(format.trim())) {
+					return value;
+				}
+			}
+			throw new SimpleException(ErrorCode.WRONG_FORMAT, names(), format);
+		}
+		if (accept != null) {
+			for (String range : accept.split(",")) {
+				String type = range.split(";", 2)[0].trim();
+				for (Format value : values()) {
+					if (value.mediaType.equalsIgnoreCase(type)) {
+						return value;
+					}
+				}
+			}
+		}
+		return JSON;
+	}
+
+	private static String names() {
+		StringBuilder result = new StringBuilder();
+		for (Format value : values()) {
+			if (result.length() > 0) {
+				result.append(", ");
+			}
+			result.append("'").append(value).append("'");
+		}
+		return result.toString();
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return true, if the rows get wrapped into a JSON object with pagination fields, or into its
+	 *     binary equivalent
+	 */
+	public boolean isEnveloped() {
+		return this == JSON || this == COLUMNAR || isBinary();
+	}
+
+	/**
+	 * @return true, if the JSON structure gets written with a {@link BinaryEncoder}
+	 */
+	public boolean isBinary() {
+		return this == MSGPACK || this == CBOR;
+	}
+
+	/**
+	 * @return true, if tree representations can be written in this format
+	 */
+	public boolean supportsTrees() {
+		return this == JSON || isBinary();
+	}
+
+	/**
+	 * @return true, if each row has the same columns, such that null values cannot be left out
+	 */
+	public boolean isTabular() {
+		return this == CSV || this == TSV || this == COLUMNAR || this == ARROW;
+	}
+
+	/**
+	 * @return true, if rows get written with the column types of the database, straight
+	 *     from the result set of a single query by a {@link ResultSetWriter}, such that they
+	 *     cannot be merged or cached
+	 */
+	public boolean isTyped() {
+		return this == ARROW;
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,38 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * A JSON array of row objects
+ */
+public class JsonArrayRowWriter extends RowWriter {
+
+	public JsonArrayRowWriter(final JsonStream stream) {
+		super(stream);
+	}
+
+	@Override
+	public void start() throws IOException {
+		stream.writeArrayStart();
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		if (!first) {
+			stream.writeMore();
+		}
+		stream.writeVal(row);
+	}
+
+	@Override
+	public void end() throws IOException {
+		stream.writeArrayEnd();
+	}
+}
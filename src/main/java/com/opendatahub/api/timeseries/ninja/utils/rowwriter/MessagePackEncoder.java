@@ -0,0 +1,95 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * MessagePack, see https://github.com/msgpack/msgpack/blob/master/spec.md. Each value gets
+ * the smallest encoding, that fits it.
+ */
+public class MessagePackEncoder extends BinaryEncoder {
+
+	public MessagePackEncoder(final OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void writeMapHeader(int size) throws IOException {
+		writeHeader(size, 0x80, 0xde, 0xdf);
+	}
+
+	@Override
+	public void writeArrayHeader(int size) throws IOException {
+		writeHeader(size, 0x90, 0xdc, 0xdd);
+	}
+
+	private void writeHeader(int size, int fix, int marker16, int marker32) throws IOException {
+		if (size < 16) {
+			out.write(fix | size);
+		} else if (size < 0x10000) {
+			out.write(marker16);
+			writeBigEndian(size, 2);
+		} else {
+			out.write(marker32);
+			writeBigEndian(size, 4);
+		}
+	}
+
+	@Override
+	public void writeNull() throws IOException {
+		out.write(0xc0);
+	}
+
+	@Override
+	public void writeBoolean(boolean value) throws IOException {
+		out.write(value ? 0xc3 : 0xc2);
+	}
+
+	@Override
+	public void writeLong(long value) throws IOException {
+		if (value >= -32 && value < 128) {
+			/* Positive and negative fixint */
+			out.write((int) value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			out.write(0xd0);
+			writeBigEndian(value, 1);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			out.write(0xd1);
+			writeBigEndian(value, 2);
+		} else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+			out.write(0xd2);
+			writeBigEndian(value, 4);
+		} else {
+			out.write(0xd3);
+			writeBigEndian(value, 8);
+		}
+	}
+
+	@Override
+	public void writeDouble(double value) throws IOException {
+		out.write(0xcb);
+		writeBigEndian(Double.doubleToLongBits(value), 8);
+	}
+
+	@Override
+	public void writeString(final String value) throws IOException {
+		byte[] bytes = utf8(value);
+		if (bytes.length < 32) {
+			out.write(0xa0 | bytes.length);
+		} else if (bytes.length < 0x100) {
+			out.write(0xd9);
+			writeBigEndian(bytes.length, 1);
+		} else if (bytes.length < 0x10000) {
+			out.write(0xda);
+			writeBigEndian(bytes.length, 2);
+		} else {
+			out.write(0xdb);
+			writeBigEndian(bytes.length, 4);
+		}
+		out.write(bytes);
+	}
+}
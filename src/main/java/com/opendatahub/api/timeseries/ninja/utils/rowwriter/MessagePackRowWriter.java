@@ -0,0 +1,42 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * MessagePack array of row maps. Arrays need their size up front, so the rows of the page
+ * get encoded into a buffer, that is written after the array header at the end. Pages
+ * without a limit get rejected by the controller, such that the buffer stays bounded.
+ */
+public class MessagePackRowWriter extends RowWriter {
+
+	private final ByteArrayOutputStream rows = new ByteArrayOutputStream();
+	private final MessagePackEncoder encoder = new MessagePackEncoder(rows);
+
+	public MessagePackRowWriter(final JsonStream stream) {
+		super(stream);
+	}
+
+	@Override
+	public void start() {
+		/* The header needs the row count, see end */
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		encoder.writeValue(row);
+	}
+
+	@Override
+	public void end() throws IOException {
+		new MessagePackEncoder(stream).writeArrayHeader(getCount());
+		rows.writeTo(stream);
+	}
+}
@@ -0,0 +1,43 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+import com.jsoniter.spi.Config;
+
+/**
+ * Newline delimited JSON, see https://github.com/ndjson/ndjson-spec: one row object per
+ * line, such that clients can process rows while they arrive. Rows get written without
+ * indention, and JSON strings escape line breaks.
+ */
+public class NdjsonRowWriter extends RowWriter {
+
+	public NdjsonRowWriter(final JsonStream stream) {
+		super(stream);
+		Config config = stream.currentConfig();
+		if (config.indentionStep() > 0) {
+			stream.configCache = config.copyBuilder().indentionStep(0).build();
+		}
+	}
+
+	@Override
+	public void start() {
+		/* No framing around the rows */
+	}
+
+	@Override
+	protected void writeRow(final Map<String, Object> row, boolean first) throws IOException {
+		stream.writeVal(row);
+		stream.write('\n');
+	}
+
+	@Override
+	public void end() {
+		/* No framing around the rows */
+	}
+}
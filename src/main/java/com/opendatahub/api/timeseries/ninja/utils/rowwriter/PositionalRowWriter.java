@@ -0,0 +1,36 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * {@link RowWriter}, that takes rows by position as well, see {@link #columns} and
+ * {@link #write(Object[])}. Rows can then be read from the result set without a map per row.
+ */
+public abstract class PositionalRowWriter extends RowWriter {
+
+	protected PositionalRowWriter(final JsonStream stream) {
+		super(stream);
+	}
+
+	/**
+	 * Called once before the first positional row, also if there are none
+	 *
+	 * @param names of the columns, in the order of the values of each row
+	 */
+	public abstract void columns(final String[] names) throws IOException;
+
+	/**
+	 * @param values of a row, in the order of {@link #columns}, may be reused for the next row
+	 */
+	public void write(final Object[] values) throws IOException {
+		writeRow(values, nextRow());
+	}
+
+	protected abstract void writeRow(final Object[] values, boolean first) throws IOException;
+}
@@ -0,0 +1,71 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * Writes the rows of a flat representation in a typed {@link Format}, read straight from
+ * the result set of a single query, with the column types of the database. Unlike a
+ * {@link RowWriter}, it does not take rows as maps, so it cannot be used for rows, that
+ * got merged, cached or shared.
+ */
+public abstract class ResultSetWriter {
+
+	protected final JsonStream stream;
+	private int count = 0;
+
+	protected ResultSetWriter(final JsonStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if <code>format</code> is not typed, see {@link RowWriter#of}
+	 */
+	public static ResultSetWriter of(final Format format, final JsonStream stream) {
+		switch (format) {
+			case ARROW:
+				return new ArrowRowWriter(stream);
+			default:
+				throw new IllegalArgumentException("The format " + format + " takes rows as maps");
+		}
+	}
+
+	/**
+	 * Called once before the first row
+	 */
+	public abstract void start() throws IOException;
+
+	/**
+	 * Called once before the first row of the result set, also if there are none
+	 */
+	public abstract void columns(final ResultSetMetaData metaData) throws SQLException, IOException;
+
+	/**
+	 * @param rs positioned at the row to be written
+	 */
+	public void write(final ResultSet rs) throws SQLException, IOException {
+		writeRow(rs, count++ == 0);
+	}
+
+	protected abstract void writeRow(final ResultSet rs, boolean first) throws SQLException, IOException;
+
+	/**
+	 * Called once after the last row, also if there are none
+	 */
+	public abstract void end() throws IOException;
+
+	/**
+	 * @return number of rows written
+	 */
+	public int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,83 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * Writes the rows of a flat representation in one {@link Format}, one by one as they
+ * come from the database, or from a merge or cache. Typed formats have a
+ * {@link ResultSetWriter} instead. The {@link JsonStream} is used as buffered output stream by
+ * formats, that are not JSON.
+ */
+public abstract class RowWriter {
+
+	protected final JsonStream stream;
+	private int count = 0;
+
+	protected RowWriter(final JsonStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if <code>format</code> is typed, see {@link ResultSetWriter#of}
+	 */
+	public static RowWriter of(final Format format, final JsonStream stream) {
+		switch (format) {
+			case NDJSON:
+				return new NdjsonRowWriter(stream);
+			case CSV:
+				return new CsvRowWriter(stream);
+			case TSV:
+				return new TsvRowWriter(stream);
+			case COLUMNAR:
+				return new ColumnarRowWriter(stream);
+			case ARROW:
+				throw new IllegalArgumentException("The format " + format + " reads result sets, see ResultSetWriter");
+			case MSGPACK:
+				return new MessagePackRowWriter(stream);
+			case CBOR:
+				return new CborRowWriter(stream);
+			case JSON:
+			default:
+				return new JsonArrayRowWriter(stream);
+		}
+	}
+
+	/**
+	 * Called once before the first row
+	 */
+	public abstract void start() throws IOException;
+
+	public void write(final Map<String, Object> row) throws IOException {
+		writeRow(row, nextRow());
+	}
+
+	/**
+	 * Count the row, that gets written next
+	 *
+	 * @return true, if it is the first one
+	 */
+	protected boolean nextRow() {
+		return count++ == 0;
+	}
+
+	protected abstract void writeRow(final Map<String, Object> row, boolean first) throws IOException;
+
+	/**
+	 * Called once after the last row, also if there are none
+	 */
+	public abstract void end() throws IOException;
+
+	/**
+	 * @return number of rows written
+	 */
+	public int getCount() {
+		return count;
+	}
+}
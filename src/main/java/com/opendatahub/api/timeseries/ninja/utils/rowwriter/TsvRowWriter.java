@@ -0,0 +1,43 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja.utils.rowwriter;
+
+import com.jsoniter.output.JsonStream;
+
+/**
+ * Tab separated values, see https://www.iana.org/assignments/media-types/text/tab-separated-values.
+ * Cells must not contain tabs or line breaks, so these get escaped as <code>\t</code>,
+ * <code>\n</code> and <code>\r</code>, and backslashes as <code>\\</code>, like PostgreSQL's
+ * text format of COPY does.
+ */
+public class TsvRowWriter extends DelimitedRowWriter {
+
+	public TsvRowWriter(final JsonStream stream) {
+		super(stream, '\t', "\n");
+	}
+
+	@Override
+	protected void appendCell(StringBuilder line, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\t':
+					line.append("\\t");
+					break;
+				case '\n':
+					line.append("\\n");
+					break;
+				case '\r':
+					line.append("\\r");
+					break;
+				case '\\':
+					line.append("\\\\");
+					break;
+				default:
+					line.append(c);
+			}
+		}
+	}
+}
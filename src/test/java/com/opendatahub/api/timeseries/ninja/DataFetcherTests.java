@@ -0,0 +1,136 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
+
+public class DataFetcherTests {
+
+	private static final OffsetDateTime FROM = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+	private static final OffsetDateTime TO = OffsetDateTime.of(2024, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+	private DataFetcher dataFetcher;
+
+	@BeforeEach
+	public void setUpBefore() {
+		dataFetcher = new DataFetcher();
+		dataFetcher.setRoles(Arrays.asList("ADMIN"));
+		dataFetcher.setLimit(200);
+		dataFetcher.setOffset(0);
+	}
+
+	private QueryBuilder buildHistory() {
+		return dataFetcher.buildMeasurementQuery("*", "*", FROM, TO, Representation.FLAT_NODE);
+	}
+
+	private Object interval(String interval) {
+		dataFetcher.setAggregation("avg", interval);
+		return buildHistory().getParameters().get("interval");
+	}
+
+	private void assertFails(DataFetcher.ErrorCode expected, Runnable call) {
+		SimpleException e = assertThrows(SimpleException.class, call::run);
+		assertEquals(expected, e.getId());
+	}
+
+	@Test
+	public void testAggregationInterval() {
+		assertEquals(30L, interval("30s"));
+		assertEquals(900L, interval("15m"));
+		assertEquals(7200L, interval(" 2h "));
+		assertEquals(86400L, interval("1d"));
+		assertEquals(604800L, interval("1w"));
+		assertEquals(999999999L * 604800, interval("999999999w"));
+
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "0h"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "1x"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "-1h"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "1.5h"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "h"));
+		/* Amounts are limited to 9 digits, such that seconds cannot overflow */
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL, () -> dataFetcher.setAggregation("avg", "9999999999w"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INTERVAL,
+				() -> dataFetcher.setAggregation("avg", "99999999999999999999s"));
+	}
+
+	@Test
+	public void testAggregationParameters() {
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INCOMPLETE, () -> dataFetcher.setAggregation("avg", null));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_INCOMPLETE, () -> dataFetcher.setAggregation(null, "1h"));
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_UNKNOWN, () -> dataFetcher.setAggregation("median", "1h"));
+
+		/* Names are case insensitive, and both missing means no aggregation */
+		dataFetcher.setAggregation(" Max ", "1h");
+		assertTrue(buildHistory().getSql().contains("max(mh.double_value) as double_value"));
+		dataFetcher.setAggregation(null, null);
+		assertFalse(buildHistory().getSql().contains("join lateral"));
+	}
+
+	@Test
+	public void testAggregationDataType() {
+		dataFetcher.setAggregation("avg", "1h");
+		dataFetcher.setWhere("mvalue.eq.closed");
+		assertFails(DataFetcher.ErrorCode.AGGREGATE_WRONG_DATA_TYPE, this::buildHistory);
+
+		dataFetcher.setWhere("mvalue.gt.10");
+		String sql = buildHistory().getSql();
+		assertTrue(sql.contains("avg(mh.double_value) as double_value"));
+		assertFalse(sql.contains("measurementstring"));
+
+		/* String and JSON measurements are left out, instead of being aggregated */
+		dataFetcher.setWhere(null);
+		sql = buildHistory().getSql();
+		assertFalse(sql.contains("union all"));
+		assertFalse(sql.contains("measurementstring"));
+		assertFalse(sql.contains("measurementjson"));
+	}
+
+	@Test
+	public void testAggregationSql() {
+		Map<String, String> expressions = Map.of(
+				"avg", "avg(mh.double_value)",
+				"min", "min(mh.double_value)",
+				"max", "max(mh.double_value)",
+				"sum", "sum(mh.double_value)",
+				"count", "count(mh.double_value)",
+				"first", "(array_agg(mh.double_value order by mh.timestamp asc))[1]",
+				"last", "(array_agg(mh.double_value order by mh.timestamp desc))[1]");
+		for (Map.Entry<String, String> entry : expressions.entrySet()) {
+			dataFetcher.setAggregation(entry.getKey(), "1h");
+			QueryBuilder query = buildHistory();
+			String sql = query.getSql();
+			assertTrue(sql.contains("from timeseries ts join lateral (select mh.timeseries_id, mh.partition_id, "
+					+ "to_timestamp(floor(extract(epoch from mh.timestamp) / :interval) * :interval) as timestamp, "
+					+ entry.getValue() + " as double_value, "), entry.getKey() + ": " + sql);
+			assertTrue(sql.contains("group by 1, 2, 3) me on true"), sql);
+			assertFalse(sql.contains("from measurementhistory me"), sql);
+			assertFalse(sql.contains("and me.timestamp >= :from::timestamptz"), sql);
+			assertEquals(FROM, query.getParameters().get("from"));
+			assertEquals(TO, query.getParameters().get("to"));
+			assertEquals(3600L, query.getParameters().get("interval"));
+		}
+
+		/* Latest measurements do not get aggregated */
+		String sql = dataFetcher.buildMeasurementQuery("*", "*", null, null, Representation.FLAT_NODE).getSql();
+		assertTrue(sql.contains("from measurement me"));
+		assertFalse(sql.contains("join lateral"));
+	}
+
+}
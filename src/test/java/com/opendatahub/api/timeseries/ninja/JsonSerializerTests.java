@@ -0,0 +1,30 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jsoniter.output.JsonStream;
+
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
+
+public class JsonSerializerTests {
+
+	@Test
+	public void testRawJson() {
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("smetadata", new RawJson("{\"a\": [1, 2], \"b\": {\"c\": null}}"));
+		row.put("mvalue", new RawJson("\"text\""));
+		row.put("sname", "x");
+		assertEquals("{\"smetadata\":{\"a\": [1, 2], \"b\": {\"c\": null}},\"mvalue\":\"text\",\"sname\":\"x\"}",
+			JsonStream.serialize(row));
+		assertEquals(2, new RawJson("{\"a\": [1, 2]}").parse().get("a").size());
+	}
+}
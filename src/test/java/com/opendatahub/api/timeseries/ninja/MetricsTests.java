@@ -0,0 +1,46 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.RequestMetrics;
+
+public class MetricsTests {
+
+	@Test
+	public void testRequestMetrics() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		RequestMetrics.setRegistry(registry);
+		try {
+			RequestMetrics metrics = new RequestMetrics();
+			metrics.add(RequestMetrics.Phase.BUILD, 2_000_000);
+			metrics.add(RequestMetrics.Phase.EXECUTION, 5_000_000);
+			metrics.add(RequestMetrics.Phase.EXECUTION, 1_000_000);
+			metrics.record(100);
+			assertEquals(0, registry.getMeters().size());
+
+			metrics.setRequest("fetchMeasurement", Representation.FLAT_NODE, 42);
+			metrics.record(100);
+			assertEquals(6.0, registry.get("ninja.request.phase").tag("phase", "execution")
+					.tag("representation", "flat_node").timer().totalTime(TimeUnit.MILLISECONDS));
+			assertEquals(2.0, registry.get("ninja.request.phase").tag("phase", "build").timer()
+					.totalTime(TimeUnit.MILLISECONDS));
+			assertEquals(null, registry.find("ninja.request.phase").tag("phase", "tree").timer());
+			assertEquals(42.0, registry.get("ninja.request.rows").summary().totalAmount());
+			assertEquals(100.0, registry.get("ninja.response.bytes").tag("command", "fetchMeasurement").summary()
+					.totalAmount());
+		} finally {
+			RequestMetrics.setRegistry(null);
+		}
+	}
+}
@@ -5,12 +5,15 @@
 package com.opendatahub.api.timeseries.ninja;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.querybuilder.QueryPlanCache;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.Schema;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.SelectExpansion;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.TargetDef;
@@ -78,7 +81,7 @@ public class QueryBuilderTests {
 
 	@Test
 	public void testOpenDataHubSelectFormat() {
-		SelectExpansion seOdh = new SelectExpansionConfig().getSelectExpansion();
+		SelectExpansion seOdh = SelectExpansionConfig.newSelectExpansion();
 		String res = QueryBuilder
 			.init(seOdh, "mvalue", null, true, "measurements", "measurementdouble")
 			.addSql("SELECT")
@@ -90,6 +93,46 @@ public class QueryBuilderTests {
 		assertEquals("SELECT me.double_value as mvalue, null::character varying as mvalue_string, null::jsonb as mvalue_json , null::double precision as mvalue_double, me.string_value as mvalue, null::jsonb as mvalue_json", res);
 	}
 
+	private QueryBuilder stationQuery(String select, String where) {
+		return QueryBuilder
+			.initCached("test", SelectExpansionConfig.newSelectExpansion(), select, where, false, "station")
+			.addSql("select")
+			.expandSelect()
+			.addSql("from station s where s.available = true")
+			.expandWhere();
+	}
 
+	@Test
+	public void testPlanCache() {
+		QueryPlanCache cache = new QueryPlanCache(2);
+		QueryBuilder.setPlanCache(cache);
+		try {
+			QueryBuilder miss = stationQuery("scode, sname", "sname.eq.foo");
+			String sql = miss.getSql();
+			assertFalse(miss.isPlanned());
+			assertEquals(1, cache.size());
+
+			/* Same shape: select order and literal values do not matter */
+			QueryBuilder hit = stationQuery("sname,scode", "sname.eq.bar");
+			assertTrue(hit.isPlanned());
+			assertEquals(sql, hit.getSql());
+			assertEquals(miss.getParameters().keySet(), hit.getParameters().keySet());
+			assertTrue(hit.getParameters().containsValue("bar"));
+			assertFalse(hit.getParameters().containsValue("foo"));
+
+			/* Different operator, value type, or list length result in a different shape */
+			assertFalse(stationQuery("scode, sname", "sname.neq.foo").isPlanned());
+			assertFalse(stationQuery("scode, sname", "sname.eq.1").isPlanned());
+			stationQuery("scode", "scode.in.(a,b)").getSql();
+			assertFalse(stationQuery("scode", "scode.in.(a,b,c)").isPlanned());
+			assertTrue(stationQuery("scode", "scode.in.(c,d)").isPlanned());
+
+			assertEquals(2, cache.size());
+			assertEquals(2, cache.getHits());
+			assertEquals(5, cache.getMisses());
+		} finally {
+			QueryBuilder.setPlanCache(null);
+		}
+	}
 
 }
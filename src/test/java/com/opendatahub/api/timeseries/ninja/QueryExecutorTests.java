@@ -0,0 +1,745 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.postgis.Point;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.Bulkhead;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ColumnMapRowMapper;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.LatestMeasurementCache;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.ListingVersion;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.MergingQueryExecutor;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SharedResultBuffer;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SingleFlight;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.SlowQueryLog;
+import com.opendatahub.api.timeseries.ninja.utils.queryexecutor.TimestampFormatter;
+
+public class QueryExecutorTests {
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		SingleFlight<Integer> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		Future<Integer> leader = pool.submit(() -> flight.execute("q", () -> {
+			started.countDown();
+			while (release.getCount() > 0) {
+				Thread.onSpinWait();
+			}
+			return calls.incrementAndGet();
+		}));
+		started.await();
+		List<Future<Integer>> waiters = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			waiters.add(pool.submit(() -> flight.execute("q", calls::incrementAndGet)));
+		}
+		while (flight.getShared() < 3) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		assertEquals(1, leader.get());
+		for (Future<Integer> waiter : waiters) {
+			assertEquals(1, waiter.get());
+		}
+		assertEquals(1, calls.get());
+		assertEquals(0, flight.inFlight());
+
+		/* Nothing is kept after the call */
+		assertEquals(2, flight.execute("q", calls::incrementAndGet));
+		pool.shutdown();
+	}
+
+	@Test
+	public void testSingleFlightError() throws Exception {
+		SingleFlight<Integer> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		Future<Integer> leader = pool.submit(() -> flight.execute("q", () -> {
+			started.countDown();
+			while (release.getCount() > 0) {
+				Thread.onSpinWait();
+			}
+			throw new StackOverflowError();
+		}));
+		started.await();
+		Future<Integer> waiter = pool.submit(() -> flight.execute("q", () -> 1));
+		while (flight.getShared() < 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		/* Errors release the waiters too, and are not wrapped */
+		ExecutionException e = assertThrows(ExecutionException.class, leader::get);
+		assertTrue(e.getCause() instanceof StackOverflowError);
+		e = assertThrows(ExecutionException.class, () -> waiter.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof StackOverflowError);
+		assertEquals(0, flight.inFlight());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testSingleFlightTooBig() throws Exception {
+		SingleFlight<byte[]> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		/* The client of the executing request downloads slowly */
+		OutputStream slow = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				await(release);
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		Future<byte[]> leader = pool.submit(() -> flight.execute("q", share -> {
+			SharedResultBuffer out = new SharedResultBuffer(slow, 4, () -> share.accept(null));
+			out.write(new byte[] { 1, 2 });
+			started.countDown();
+			while (flight.getShared() < 1) {
+				Thread.onSpinWait();
+			}
+			out.write(new byte[] { 3, 4, 5 });
+			return out.toByteArray();
+		}));
+		started.await();
+		Future<byte[]> waiter = pool.submit(() -> flight.execute("q", () -> new byte[0]));
+
+		/* Released as soon as the result is too big, while the leader still writes */
+		assertNull(waiter.get(5, TimeUnit.SECONDS));
+		assertFalse(leader.isDone());
+		assertEquals(0, flight.inFlight());
+		assertArrayEquals(new byte[] { 6 }, flight.execute("q", () -> new byte[] { 6 }));
+		release.countDown();
+		assertNull(leader.get());
+
+		/* A broken connection of the executing request does not fail the waiters */
+		CountDownLatch started2 = new CountDownLatch(1);
+		OutputStream broken = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		};
+		Future<byte[]> leader2 = pool.submit(() -> flight.execute("q", share -> {
+			SharedResultBuffer out = new SharedResultBuffer(broken, 4, () -> share.accept(null));
+			started2.countDown();
+			while (flight.getShared() < 2) {
+				Thread.onSpinWait();
+			}
+			out.write(new byte[] { 1, 2, 3, 4, 5 });
+			return out.toByteArray();
+		}));
+		started2.await();
+		Future<byte[]> waiter2 = pool.submit(() -> flight.execute("q", () -> new byte[0]));
+		assertNull(waiter2.get(5, TimeUnit.SECONDS));
+		ExecutionException e = assertThrows(ExecutionException.class, leader2::get);
+		assertEquals("Broken pipe", e.getCause().getMessage());
+
+		/* Small results get shared as a whole */
+		SharedResultBuffer small = new SharedResultBuffer(broken, 4, () -> { throw new AssertionError(); });
+		small.write(new byte[] { 1, 2, 3, 4 });
+		small.flush();
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, small.toByteArray());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testTimestampFormatter() {
+		DateTimeFormatter reference = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSZ");
+		Random random = new Random(42);
+		for (String zone : new String[] { "UTC", "Europe/Rome", "America/New_York", "Asia/Kolkata",
+				"Australia/Lord_Howe", "+05:45", "-03:30" }) {
+			ZoneId zoneId = ZoneId.of(zone);
+			TimestampFormatter formatter = TimestampFormatter.of(zoneId);
+
+			/* Around the DST changes of 2024 in Europe, and random instants between 1850 and 2100 */
+			List<Timestamp> timestamps = new ArrayList<>();
+			for (long t = Instant.parse("2024-03-31T00:30:00Z").toEpochMilli(); t < Instant.parse("2024-03-31T01:30:00Z").toEpochMilli(); t += 60_001) {
+				timestamps.add(new Timestamp(t));
+			}
+			for (long t = Instant.parse("2024-10-27T00:30:00Z").toEpochMilli(); t < Instant.parse("2024-10-27T01:30:00Z").toEpochMilli(); t += 59_999) {
+				timestamps.add(new Timestamp(t));
+			}
+			for (int i = 0; i < 2000; i++) {
+				Timestamp ts = new Timestamp(-3_786_825_600_000L + (long) (random.nextDouble() * 7_888_608_000_000L));
+				ts.setNanos(random.nextInt(1_000_000_000));
+				timestamps.add(ts);
+			}
+			for (Timestamp ts : timestamps) {
+				assertEquals(reference.format(ts.toInstant().atZone(zoneId)), formatter.format(ts), zone + " " + ts);
+			}
+		}
+	}
+
+	@Test
+	public void testCompareCodePoints() {
+		assertEquals(0, MergingQueryExecutor.compareCodePoints("Bolzano", "Bolzano"));
+		assertEquals(-1, Integer.signum(MergingQueryExecutor.compareCodePoints("Bolzano", "Bolzano2")));
+		assertEquals(-1, Integer.signum(MergingQueryExecutor.compareCodePoints("Z", "a")));
+		/* U+1F600 sorts after U+FF21 by code point, but before it by UTF-16 unit */
+		assertEquals(1, Integer.signum(MergingQueryExecutor.compareCodePoints("\uD83D\uDE00", "\uFF21")));
+		assertEquals(-1, Integer.signum("\uD83D\uDE00".compareTo("\uFF21")));
+	}
+
+	private static final Comparator<Map<String, Object>> BY_KEY = Comparator.comparingInt(row -> (Integer) row.get("k"));
+
+	private static Map<String, Object> row(int key, int source) {
+		return Map.of("k", key, "s", source);
+	}
+
+	/* Rows by SQL text, "fail" throws after its rows */
+	private static MergingQueryExecutor.Query stub(Map<String, List<Map<String, Object>>> results) {
+		return (sql, parameters, ignoreNull, timeZone, onStatement, consumer) -> {
+			onStatement.accept(mock(Statement.class));
+			for (Map<String, Object> row : results.getOrDefault(sql, List.of())) {
+				consumer.accept(row);
+			}
+			if (sql.startsWith("fail")) {
+				throw new IOException("Connection reset");
+			}
+		};
+	}
+
+	private static void awaitPermits(Semaphore permits, int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (permits.availablePermits() != expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(expected, permits.availablePermits());
+	}
+
+	/* Interrupts become failures, as for the queries */
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			if (!latch.await(5, TimeUnit.SECONDS)) {
+				throw new IOException("Timed out");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static List<Map<String, Object>> merge(MergingQueryExecutor merging, long offset, long limit) throws IOException {
+		List<Map<String, Object>> rows = new ArrayList<>();
+		assertTrue(merging.tryAcquire());
+		merging.buildAndConsume(false, "UTC", BY_KEY, offset, limit, rows::add);
+		return rows;
+	}
+
+	@Test
+	public void testMergingQueryExecutorMerge() throws Exception {
+		ExecutorService pool = Executors.newCachedThreadPool();
+		Semaphore permits = new Semaphore(4);
+		MergingQueryExecutor.Query query = stub(Map.of(
+				"q0", List.of(row(1, 0), row(3, 0), row(5, 0)),
+				"q1", List.of(row(1, 1), row(2, 1), row(5, 1)),
+				"q2", List.of(row(0, 2), row(5, 2), row(6, 2)),
+				"fail", List.of(row(4, 1))));
+		Map<String, Object> params = Map.of();
+
+		/* Ties keep the order of the queries, also with small queues */
+		MergingQueryExecutor merging = new MergingQueryExecutor(pool, permits, Integer.MAX_VALUE, 1, query)
+				.addQuery("q0", params).addQuery("q1", params).addQuery("q2", params).addQuery("empty", params);
+		assertEquals(List.of(row(0, 2), row(1, 0), row(1, 1), row(2, 1), row(3, 0), row(5, 0), row(5, 1), row(5, 2), row(6, 2)),
+				merge(merging, -1, 0));
+		awaitPermits(permits, 4);
+
+		merging = new MergingQueryExecutor(pool, permits, Integer.MAX_VALUE, 1, query)
+				.addQuery("q0", params).addQuery("q1", params).addQuery("q2", params);
+		assertEquals(List.of(row(1, 1), row(2, 1), row(3, 0)), merge(merging, 2, 3));
+		awaitPermits(permits, 4);
+
+		/* Failures reach the consumer as they are, after the rows before them */
+		List<Map<String, Object>> rows = new ArrayList<>();
+		MergingQueryExecutor failing = new MergingQueryExecutor(pool, permits, Integer.MAX_VALUE, 1, query)
+				.addQuery("q0", params).addQuery("fail", params);
+		assertTrue(failing.tryAcquire());
+		IOException e = assertThrows(IOException.class,
+				() -> failing.buildAndConsume(false, "UTC", BY_KEY, 0, 0, rows::add));
+		assertEquals("Connection reset", e.getMessage());
+		assertEquals(List.of(row(1, 0), row(3, 0), row(4, 1)), rows);
+		awaitPermits(permits, 4);
+
+		/* All threads of an instance, or none */
+		MergingQueryExecutor tooMany = new MergingQueryExecutor(pool, permits, Integer.MAX_VALUE, 1, query)
+				.addQuery("q0", params).addQuery("q1", params).addQuery("q2", params)
+				.addQuery("q0", params).addQuery("q1", params);
+		assertFalse(tooMany.tryAcquire());
+		assertEquals(4, permits.availablePermits());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testMergingQueryExecutorConcat() throws Exception {
+		ExecutorService pool = Executors.newCachedThreadPool();
+		Semaphore permits = new Semaphore(1);
+		MergingQueryExecutor.Query query = stub(Map.of(
+				"q0", List.of(row(5, 0), row(1, 0)),
+				"q1", List.of(row(3, 1)),
+				"q2", List.of(row(0, 2), row(2, 2)),
+				"fail", List.of(row(9, 3))));
+		Map<String, Object> params = Map.of();
+
+		/* A single thread runs one query after the other */
+		List<Map<String, Object>> rows = new ArrayList<>();
+		MergingQueryExecutor concat = new MergingQueryExecutor(pool, permits, 1, 1, query)
+				.addQuery("q0", params).addQuery("q1", params).addQuery("empty", params).addQuery("q2", params);
+		assertTrue(concat.tryAcquire());
+		assertEquals(5, concat.buildAndConcat(false, "UTC", -1, 0, rows::add));
+		assertEquals(List.of(row(5, 0), row(1, 0), row(3, 1), row(0, 2), row(2, 2)), rows);
+		awaitPermits(permits, 1);
+
+		rows.clear();
+		concat = new MergingQueryExecutor(pool, permits, 1, 1, query)
+				.addQuery("q0", params).addQuery("q1", params).addQuery("q2", params);
+		assertTrue(concat.tryAcquire());
+		assertEquals(3, concat.buildAndConcat(false, "UTC", 1, 3, rows::add));
+		assertEquals(List.of(row(1, 0), row(3, 1), row(0, 2)), rows);
+		awaitPermits(permits, 1);
+
+		rows.clear();
+		MergingQueryExecutor failing = new MergingQueryExecutor(pool, permits, 1, 1, query)
+				.addQuery("q1", params).addQuery("fail", params).addQuery("q2", params);
+		assertTrue(failing.tryAcquire());
+		assertThrows(IOException.class, () -> failing.buildAndConcat(false, "UTC", 0, 0, rows::add));
+		assertEquals(List.of(row(3, 1), row(9, 3)), rows);
+		awaitPermits(permits, 1);
+		pool.shutdown();
+	}
+
+	@Test
+	public void testMergingQueryExecutorCancel() throws Exception {
+		ExecutorService pool = Executors.newCachedThreadPool();
+		Semaphore permits = new Semaphore(3);
+		CountDownLatch waiting = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		AtomicInteger produced = new AtomicInteger();
+		Statement statement = mock(Statement.class);
+		doAnswer(invocation -> {
+			cancelled.countDown();
+			return null;
+		}).when(statement).cancel();
+		MergingQueryExecutor.Query query = (sql, parameters, ignoreNull, timeZone, onStatement, consumer) -> {
+			onStatement.accept(statement);
+			if (sql.equals("endless")) {
+				for (int i = 0; ; i++) {
+					consumer.accept(row(i, 0));
+					produced.incrementAndGet();
+				}
+			}
+			if (sql.equals("slow")) {
+				/* Like a query, that waits for the database, until it gets cancelled */
+				waiting.countDown();
+				await(cancelled);
+				throw new RuntimeException("canceling statement due to user request");
+			}
+		};
+		Map<String, Object> params = Map.of();
+
+		/* Stop after the limit, while another query is still waiting for its first row */
+		List<Map<String, Object>> rows = new ArrayList<>();
+		MergingQueryExecutor concat = new MergingQueryExecutor(pool, permits, 3, 1, query)
+				.addQuery("endless", params).addQuery("slow", params);
+		assertTrue(concat.tryAcquire());
+		assertEquals(3, concat.buildAndConcat(false, "UTC", 0, 3, row -> {
+			await(waiting);
+			rows.add(row);
+		}));
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		awaitPermits(permits, 3);
+		/* Producing stops, when nobody reads the queue anymore */
+		int count = produced.get();
+		Thread.sleep(300);
+		assertEquals(count, produced.get());
+
+		/* A failing consumer cancels the queries as well */
+		MergingQueryExecutor merging = new MergingQueryExecutor(pool, permits, 3, 1, query)
+				.addQuery("endless", params).addQuery("endless", params);
+		assertTrue(merging.tryAcquire());
+		assertThrows(IOException.class, () -> merging.buildAndConsume(false, "UTC", BY_KEY, 0, 0, row -> {
+			throw new IOException("Broken pipe");
+		}));
+		awaitPermits(permits, 3);
+
+		/* Queries, that have not started yet, do not start anymore */
+		MergingQueryExecutor queued = new MergingQueryExecutor(pool, permits, 1, 1, (sql, parameters, ignoreNull, timeZone, onStatement, consumer) -> {
+			onStatement.accept(mock(Statement.class));
+			if (sql.equals("second")) {
+				throw new IllegalStateException("Started after cancel");
+			}
+			consumer.accept(row(0, 0));
+			consumer.accept(row(1, 0));
+		}).addQuery("first", params).addQuery("second", params);
+		assertTrue(queued.tryAcquire());
+		assertEquals(1, queued.buildAndConcat(false, "UTC", 0, 1, row -> { }));
+		awaitPermits(permits, 3);
+		pool.shutdown();
+	}
+
+	@Test
+	public void testSlowQueryLog() {
+		SlowQueryLog log = new SlowQueryLog(null, 100, 0, 2);
+		log.check("select 1", Map.of(), TimeUnit.MILLISECONDS.toNanos(100));
+		assertEquals(0, log.getEntries().size());
+		for (int i = 1; i <= 3; i++) {
+			log.check("select " + i, Map.of("limit", i), TimeUnit.MILLISECONDS.toNanos(100 + i));
+		}
+		List<SlowQueryLog.Entry> entries = log.getEntries();
+		assertEquals(2, entries.size());
+		assertEquals("select 3", entries.get(0).getSql());
+		assertEquals(103, entries.get(0).getDurationMs());
+		assertEquals("3", entries.get(0).getParameters().get("limit"));
+		assertEquals("select 2", entries.get(1).getSql());
+		assertEquals(null, entries.get(1).getPlan());
+	}
+
+	@Test
+	public void testBulkhead() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		Bulkhead bulkhead = new Bulkhead(Bulkhead.Workload.HISTORY, 2, 0, registry);
+		bulkhead.acquire();
+		bulkhead.acquire();
+		assertEquals(2.0, registry.get("ninja.bulkhead.active").tag("workload", "history").gauge().value());
+		assertThrows(Bulkhead.FullException.class, bulkhead::acquire);
+		assertEquals(1.0, registry.get("ninja.bulkhead.rejected").counter().count());
+		bulkhead.release();
+		bulkhead.acquire();
+		assertEquals(4, registry.get("ninja.bulkhead.wait").timer().count());
+	}
+
+	@Test
+	public void testListingVersion() {
+		AtomicInteger polls = new AtomicInteger();
+		String[] current = { "1.5:2.7:3.9" };
+		long[] now = { 1000 };
+		ListingVersion version = new ListingVersion(200, () -> {
+			polls.incrementAndGet();
+			return current[0];
+		}, () -> now[0]);
+		String etag = version.etag("/flat/ParkingStation", null, "JSON", "[GUEST]");
+		assertTrue(etag.matches("\"[0-9a-f]{32}\""));
+		assertEquals(etag, version.etag("/flat/ParkingStation", null, "JSON", "[GUEST]"));
+		assertNotEquals(etag, version.etag("/flat/ParkingStation", null, "CSV", "[GUEST]"));
+		assertEquals(1, polls.get());
+
+		/* Changes are not seen before the staleness has passed */
+		current[0] = "2.5:2.7:3.9";
+		now[0] += 199;
+		assertEquals(etag, version.etag("/flat/ParkingStation", null, "JSON", "[GUEST]"));
+		assertEquals(1, polls.get());
+		now[0] += 1;
+		assertNotEquals(etag, version.etag("/flat/ParkingStation", null, "JSON", "[GUEST]"));
+		assertEquals(2, polls.get());
+
+		current[0] = null;
+		now[0] += 200;
+		assertNull(version.etag("/flat/ParkingStation", null, "JSON", "[GUEST]"));
+	}
+
+	private static List<Map<String, Object>> rows(int count) {
+		List<Map<String, Object>> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			result.add(Map.of("mvalue", i));
+		}
+		return result;
+	}
+
+	/* Newest created_on per station type after the given one, as the incremental poll does */
+	private static Function<String, Map<String, String>> pollOf(Map<String, String> newest, List<String> sinces) {
+		return since -> {
+			sinces.add(since);
+			Map<String, String> result = new HashMap<>();
+			for (Map.Entry<String, String> type : newest.entrySet()) {
+				if (since == null || type.getValue().compareTo(since) > 0) {
+					result.put(type.getKey(), type.getValue());
+					result.merge("*", type.getValue(), (a, b) -> a.compareTo(b) > 0 ? a : b);
+				}
+			}
+			return result;
+		};
+	}
+
+	@Test
+	public void testLatestMeasurementCache() {
+		Map<String, String> newest = new HashMap<>(Map.of("A", "2024-01-01 10:00:00", "B", "2024-01-01 10:00:00"));
+		List<String> sinces = new ArrayList<>();
+		long[] now = { 1000 };
+		AtomicInteger loads = new AtomicInteger();
+		LatestMeasurementCache cache = new LatestMeasurementCache(200, 100, pollOf(newest, sinces), () -> now[0]);
+		Supplier<List<Map<String, Object>>> loader = () -> {
+			loads.incrementAndGet();
+			return rows(2);
+		};
+
+		/* Nothing gets cached before the first poll */
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.size());
+
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select b", Map.of(), "", Set.of("B"), loader);
+		cache.get("select all", Map.of(), "", null, loader);
+		cache.get("select all", Map.of(), "", null, loader);
+		assertEquals(5, loads.get());
+		assertEquals(2, cache.getHits());
+
+		/* A new measurement of B drops the results of B and of all station types, but keeps A */
+		newest.put("B", "2024-01-01 10:05:00");
+		now[0] += 100;
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		assertEquals(5, loads.get());
+		cache.get("select b", Map.of(), "", Set.of("B"), loader);
+		cache.get("select all", Map.of(), "", null, loader);
+		assertEquals(7, loads.get());
+
+		/* So does the first measurement of a new station type */
+		newest.put("C", "2024-01-01 10:06:00");
+		now[0] += 100;
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select c", Map.of(), "", Set.of("C"), loader);
+		cache.get("select all", Map.of(), "", null, loader);
+		assertEquals(9, loads.get());
+
+		/* Polls only ask for what is newer than the previous poll has seen */
+		now[0] += 100;
+		cache.refresh();
+		assertEquals(Arrays.asList(null, "2024-01-01 10:00:00", "2024-01-01 10:05:00", "2024-01-01 10:06:00"), sinces);
+		cache.get("select all", Map.of(), "", null, loader);
+		assertEquals(9, loads.get());
+
+		/* Parameters and variants are part of the key */
+		cache.get("select a", Map.of("x", 1), "", Set.of("A"), loader);
+		cache.get("select a", Map.of(), "UTC", Set.of("A"), loader);
+		assertEquals(11, loads.get());
+
+		/* Without a poll for longer than the staleness, the cache is bypassed */
+		now[0] += 201;
+		cache.get("select all", Map.of(), "", null, loader);
+		assertEquals(12, loads.get());
+	}
+
+	@Test
+	public void testLatestMeasurementCachePollFailure() {
+		boolean[] failing = { false };
+		long[] now = { 1000 };
+		AtomicInteger loads = new AtomicInteger();
+		List<String> sinces = new ArrayList<>();
+		Function<String, Map<String, String>> poll = pollOf(Map.of("A", "2024-01-01 10:00:00"), sinces);
+		LatestMeasurementCache cache = new LatestMeasurementCache(200, 100, since -> {
+			if (failing[0]) {
+				throw new RuntimeException("Database down");
+			}
+			return poll.apply(since);
+		}, () -> now[0]);
+		Supplier<List<Map<String, Object>>> loader = () -> {
+			loads.incrementAndGet();
+			return rows(1);
+		};
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select x", Map.of(), "", Set.of("X"), loader);
+
+		/* A failed poll drops everything, even station types, that never changed */
+		failing[0] = true;
+		now[0] += 100;
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select x", Map.of(), "", Set.of("X"), loader);
+		assertEquals(4, loads.get());
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		assertEquals(4, loads.get());
+
+		/* Once the last successful poll is too old, nothing gets cached */
+		now[0] += 101;
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		assertEquals(6, loads.get());
+
+		/* The next successful poll continues where the last successful one stopped */
+		failing[0] = false;
+		cache.refresh();
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		cache.get("select a", Map.of(), "", Set.of("A"), loader);
+		assertEquals(7, loads.get());
+		assertEquals(Arrays.asList(null, "2024-01-01 10:00:00"), sinces);
+	}
+
+	@Test
+	public void testLatestMeasurementCacheRowBudget() {
+		LatestMeasurementCache cache = new LatestMeasurementCache(60000, 5, since -> Map.of(), () -> 0);
+		cache.refresh();
+		AtomicInteger loads = new AtomicInteger();
+		cache.get("select 1", Map.of(), "", null, () -> rows(2));
+		cache.get("select 2", Map.of(), "", null, () -> rows(2));
+		assertEquals(2, cache.size());
+
+		/* The least recently used entry gets evicted first, after reading "select 1" */
+		cache.get("select 1", Map.of(), "", null, () -> rows(2));
+		cache.get("select 3", Map.of(), "", null, () -> rows(2));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getHits());
+		cache.get("select 1", Map.of(), "", null, () -> rows(2));
+		assertEquals(2, cache.getHits());
+		cache.get("select 2", Map.of(), "", null, () -> {
+			loads.incrementAndGet();
+			return rows(2);
+		});
+		assertEquals(1, loads.get());
+
+		/* Results bigger than the whole budget are not cached at all */
+		List<Map<String, Object>> big = cache.get("select 4", Map.of(), "", null, () -> rows(6));
+		assertEquals(6, big.size());
+		assertThrows(UnsupportedOperationException.class, () -> big.add(Map.of()));
+		assertEquals(2, cache.size());
+		cache.get("select 4", Map.of(), "", null, () -> {
+			loads.incrementAndGet();
+			return rows(6);
+		});
+		assertEquals(2, loads.get());
+	}
+
+	private static ResultSet mockRow(ResultSetMetaData metaData, Double number, String text, Timestamp timestamp,
+			String json, String geometry, Integer period) throws SQLException {
+		ResultSet rs = mock(ResultSet.class);
+		when(rs.getMetaData()).thenReturn(metaData);
+		when(rs.getDouble(1)).thenReturn(number == null ? 0.0 : number);
+		when(rs.wasNull()).thenReturn(number == null);
+		when(rs.getString(2)).thenReturn(text);
+		when(rs.getTimestamp(3)).thenReturn(timestamp);
+		when(rs.getString(4)).thenReturn(json);
+		when(rs.getString(5)).thenReturn(geometry);
+		when(rs.getObject(6)).thenReturn(period);
+		return rs;
+	}
+
+	@Test
+	public void testColumnMapRowMapper() throws SQLException {
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(6);
+		Object[][] columns = {
+			{ "mvalue_double", Types.DOUBLE, "float8" },
+			{ "mvalue_string", Types.VARCHAR, "varchar" },
+			{ "mvalidtime", Types.TIMESTAMP, "timestamptz" },
+			{ "smetadata", Types.OTHER, "\"public\".\"jsonb\"" },
+			{ "scoordinate", Types.OTHER, "public.geometry" },
+			{ "mperiod", Types.INTEGER, "int4" }
+		};
+		for (int i = 0; i < columns.length; i++) {
+			when(metaData.getColumnLabel(i + 1)).thenReturn((String) columns[i][0]);
+			when(metaData.getColumnType(i + 1)).thenReturn((Integer) columns[i][1]);
+			when(metaData.getColumnTypeName(i + 1)).thenReturn((String) columns[i][2]);
+		}
+		Timestamp timestamp = Timestamp.from(Instant.parse("2024-01-15T10:30:00.123Z"));
+
+		ColumnMapRowMapper.setTargetDefNameToAliasMap(Map.of("mvalue_double", "mvalue", "mvalue_string", "mvalue"));
+		try {
+			ColumnMapRowMapper mapper = new ColumnMapRowMapper();
+			ResultSet rs = mockRow(metaData, 1.5, null, timestamp, "{\"a\": 1}", "SRID=4326;POINT(11 46)", 300);
+			assertArrayEquals(new String[] { "mvalue", "mvalidtime", "smetadata", "scoordinate", "mperiod" },
+					mapper.getColumnNames(rs));
+			Map<String, Object> row = mapper.mapRow(rs, 0);
+			assertEquals(List.of("mvalue", "mvalidtime", "smetadata", "scoordinate", "mperiod"), new ArrayList<>(row.keySet()));
+			assertEquals(1.5, row.get("mvalue"));
+			assertEquals("2024-01-15 10:30:00.123+0000", row.get("mvalidtime"));
+			assertEquals(new RawJson("{\"a\": 1}"), row.get("smetadata"));
+			Point point = new Point(11, 46);
+			point.setSrid(4326);
+			assertEquals(point, row.get("scoordinate"));
+			assertEquals(300, row.get("mperiod"));
+
+			/* The first non-null value of columns with the same alias wins, and JSON null is null */
+			rs = mockRow(metaData, null, "open", null, "null", null, null);
+			row = mapper.mapRow(rs, 0);
+			assertEquals("open", row.get("mvalue"));
+			assertEquals(5, row.size());
+			assertNull(row.get("mvalidtime"));
+			assertNull(row.get("smetadata"));
+			assertNull(row.get("scoordinate"));
+			assertNull(row.get("mperiod"));
+
+			Object[] values = new Object[5];
+			assertTrue(mapper.mapRow(rs, values));
+			assertArrayEquals(new Object[] { "open", null, null, null, null }, values);
+
+			/* Time zones, also with a "+" that got URL-decoded into a space */
+			mapper.setTimeZone("Europe/Rome");
+			rs = mockRow(metaData, 2.0, "closed", timestamp, null, null, null);
+			assertTrue(mapper.mapRow(rs, values));
+			assertArrayEquals(new Object[] { 2.0, "2024-01-15 11:30:00.123+0100", null, null, null }, values);
+			mapper.setTimeZone(" 05:30");
+			assertEquals("2024-01-15 16:00:00.123+0530", mapper.mapRow(rs, 0).get("mvalidtime"));
+
+			/* Null values get left out, and rows without any value are skipped */
+			mapper.setIgnoreNull(true);
+			rs = mockRow(metaData, null, "open", null, null, null, null);
+			assertEquals(Map.of("mvalue", "open"), mapper.mapRow(rs, 0));
+			rs = mockRow(metaData, null, null, null, "null", null, null);
+			assertNull(mapper.mapRow(rs, 0));
+			assertFalse(mapper.mapRow(rs, values));
+			assertArrayEquals(new Object[5], values);
+		} finally {
+			ColumnMapRowMapper.setTargetDefNameToAliasMap(null);
+		}
+	}
+}
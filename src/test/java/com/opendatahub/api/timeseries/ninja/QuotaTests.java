@@ -0,0 +1,58 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+
+import com.opendatahub.api.timeseries.ninja.quota.BucketStore;
+import com.opendatahub.api.timeseries.ninja.quota.CostLimit;
+
+public class QuotaTests {
+
+	@Test
+	public void testBucketStore() {
+		AtomicLong now = new AtomicLong();
+		BucketStore store = new BucketStore(2, Duration.ofSeconds(60), now::get);
+		Function<String, Bucket> factory = k -> Bucket.builder()
+			.addLimit(Bandwidth.simple(1, Duration.ofSeconds(1)))
+			.build();
+
+		Bucket a = store.resolve("a", factory);
+		assertSame(a, store.resolve("a", factory));
+		store.resolve("b", factory);
+		store.resolve("a", factory);
+
+		/* "b" is the least recently used one */
+		store.resolve("c", factory);
+		assertEquals(2, store.size());
+		assertEquals(1, store.getEvictions());
+		assertSame(a, store.resolve("a", factory));
+
+		now.addAndGet(Duration.ofSeconds(61).toNanos());
+		assertNotSame(a, store.resolve("a", factory));
+		assertEquals(1, store.size());
+		assertEquals(2, store.getExpirations());
+	}
+
+	@Test
+	public void testCostEstimate() {
+		CostLimit.Estimate estimate = CostLimit.parse("[{\"Plan\": {\"Node Type\": \"Limit\", "
+				+ "\"Startup Cost\": 0.43, \"Total Cost\": 1234.56, \"Plan Rows\": 200, \"Plan Width\": 64, "
+				+ "\"Plans\": [{\"Node Type\": \"Seq Scan\", \"Total Cost\": 99999.0, \"Plan Rows\": 5000000}]}}]");
+		assertEquals(1234.56, estimate.cost);
+		assertEquals(200, estimate.rows);
+	}
+}
@@ -5,8 +5,11 @@
 package com.opendatahub.api.timeseries.ninja;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -17,6 +20,9 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jsoniter.output.JsonStream;
+
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.TargetDefList;
 import com.opendatahub.api.timeseries.ninja.config.SelectExpansionConfig;
 import com.opendatahub.api.timeseries.ninja.utils.conditionals.ConditionalMap;
@@ -25,6 +31,8 @@ import com.opendatahub.api.timeseries.ninja.utils.querybuilder.SelectExpansion;
 import com.opendatahub.api.timeseries.ninja.utils.querybuilder.TargetDef;
 import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilder;
 import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.ResultBuilderConfig;
+import com.opendatahub.api.timeseries.ninja.utils.resultbuilder.StreamingResultBuilder;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
 
 public class ResultBuilderTests {
 
@@ -35,7 +43,7 @@ public class ResultBuilderTests {
 
 	@BeforeEach
 	public void setUpBefore() throws Exception {
-		seOpenDataHub = new SelectExpansionConfig().getSelectExpansion();
+		seOpenDataHub = SelectExpansionConfig.newSelectExpansion();
 
 		rbConfig = new ResultBuilderConfig()
 				.setShowNull(false)
@@ -271,4 +279,102 @@ public class ResultBuilderTests {
 				result);
 	}
 
+	private static String streamTree(ResultBuilderConfig config, List<Map<String, Object>> records) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		StreamingResultBuilder builder = new StreamingResultBuilder(config, stream);
+		for (Map<String, Object> rec : records) {
+			builder.add(rec);
+		}
+		builder.finish();
+		stream.flush();
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testStreamingResultBuilder() throws Exception {
+		List<Map<String, Object>> resultList = new ArrayList<>();
+		String[][] keys = {
+			{"AAA", "123", "t1"}, {"AAA", "123", "t1"}, {"AAA", "123", "t2"},
+			{"AAA", "456", "t1"}, {"BBB", "123", "t1"}, {"BBB", "789", "t3"}
+		};
+		int i = 0;
+		for (String[] key : keys) {
+			resultList.add(ConditionalMap.mapOf(
+				"_stationtype", key[0],
+				"_stationcode", key[1],
+				"_datatypename", key[2],
+				"sname", "station" + key[1],
+				"tname", key[2],
+				"mvalidtime", i,
+				"mvalue", i++ * 10).get());
+		}
+
+		ObjectMapper mapper = new ObjectMapper();
+		rbConfig.setEntryPoint("stationtype");
+		assertEquals(
+			mapper.readTree(JsonStream.serialize(ResultBuilder.build(rbConfig, resultList))),
+			mapper.readTree(streamTree(rbConfig, resultList)));
+
+		resultList.clear();
+		assertEquals("{}", streamTree(rbConfig, resultList));
+
+		resultList.add(ConditionalMap.mapOf(
+			"_eventorigin", "A22",
+			"_eventseriesuuid", "series3",
+			"_eventuuid", "ev1",
+			"evuuid", "ev1").get());
+		resultList.add(ConditionalMap.mapOf(
+			"_eventorigin", "A22",
+			"_eventseriesuuid", "series3",
+			"_eventuuid", "ev2",
+			"evuuid", "ev2").get());
+		resultList.add(ConditionalMap.mapOf(
+			"_eventorigin", "A22",
+			"_eventseriesuuid", "series4",
+			"_eventuuid", "ev3",
+			"evuuid", "ev3").get());
+		rbConfig.setEntryPoint("eventorigin");
+		assertEquals(
+			mapper.readTree(JsonStream.serialize(ResultBuilder.build(rbConfig, resultList))),
+			mapper.readTree(streamTree(rbConfig, resultList)));
+	}
+
+	@Test
+	public void testStreamingResultBuilderSizeLimit() throws Exception {
+		List<Map<String, Object>> resultList = new ArrayList<>();
+		String name = "x".repeat(1000);
+		for (int i = 0; i < 2000; i++) {
+			resultList.add(ConditionalMap.mapOf(
+				"_stationtype", "AAA",
+				"_stationcode", String.format("%04d", i),
+				"_datatypename", "t1",
+				"sname", name,
+				"tname", "t1",
+				"mvalidtime", i,
+				"mvalue", i).get());
+		}
+
+		rbConfig.setEntryPoint("stationtype").setMaxAllowedSizeInMB(10);
+		ObjectMapper mapper = new ObjectMapper();
+		assertEquals(
+			mapper.readTree(JsonStream.serialize(ResultBuilder.build(rbConfig, resultList))),
+			mapper.readTree(streamTree(rbConfig, resultList)));
+
+		/* Exceeding the limit leaves the stream untouched, such that an error response can follow */
+		rbConfig.setMaxAllowedSizeInMB(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		StreamingResultBuilder builder = new StreamingResultBuilder(rbConfig, stream);
+		SimpleException e = assertThrows(SimpleException.class, () -> {
+			for (Map<String, Object> rec : resultList) {
+				builder.add(rec);
+			}
+			builder.finish();
+		});
+		assertEquals(ResultBuilder.ErrorCode.RESPONSE_SIZE, e.getId());
+		stream.flush();
+		assertEquals(0, out.size());
+	}
+
 }
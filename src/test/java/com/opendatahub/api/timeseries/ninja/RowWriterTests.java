@@ -0,0 +1,288 @@
+// SPDX-FileCopyrightText: NOI Techpark <digital@noi.bz.it>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package com.opendatahub.api.timeseries.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryEncoder;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+
+import com.jsoniter.output.JsonStream;
+
+import com.opendatahub.api.timeseries.ninja.utils.jsonserializer.RawJson;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.BinaryEncoder;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.Format;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.PositionalRowWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.ResultSetWriter;
+import com.opendatahub.api.timeseries.ninja.utils.rowwriter.RowWriter;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
+
+public class RowWriterTests {
+
+	@Test
+	public void testFormat() throws IOException {
+		assertEquals(Format.JSON, Format.get(null, null));
+		assertEquals(Format.JSON, Format.get(null, "*/*"));
+		assertEquals(Format.NDJSON, Format.get(null, "application/x-ndjson, application/json;q=0.9"));
+		assertEquals(Format.NDJSON, Format.get("NDJSON", "application/json"));
+		assertThrows(SimpleException.class, () -> Format.get("xml", null));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		RowWriter writer = RowWriter.of(Format.NDJSON, stream);
+		writer.start();
+		for (int i = 1; i <= 2; i++) {
+			Map<String, Object> row = new LinkedHashMap<>();
+			row.put("mvalue", i);
+			row.put("sname", "a\nb");
+			writer.write(row);
+		}
+		writer.end();
+		stream.flush();
+		assertEquals(2, writer.getCount());
+		assertEquals("{\"mvalue\":1,\"sname\":\"a\\nb\"}\n{\"mvalue\":2,\"sname\":\"a\\nb\"}\n", out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testDelimitedFormat() throws IOException {
+		assertEquals(Format.CSV, Format.get(null, "text/csv"));
+		assertEquals(Format.TSV, Format.get("tsv", null));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		RowWriter writer = RowWriter.of(Format.CSV, stream);
+		writer.start();
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("mvalue", 1.5);
+		row.put("sname", "Bozen, \"Süd\"");
+		row.put("smetadata", new RawJson("{\"a\":1}"));
+		writer.write(row);
+		row.put("mvalue", null);
+		writer.write(row);
+		writer.end();
+		stream.flush();
+		assertEquals("mvalue,sname,smetadata\r\n"
+				+ "1.5,\"Bozen, \"\"Süd\"\"\",\"{\"\"a\"\":1}\"\r\n"
+				+ ",\"Bozen, \"\"Süd\"\"\",\"{\"\"a\"\":1}\"\r\n", out.toString(StandardCharsets.UTF_8));
+
+		out.reset();
+		PositionalRowWriter tsv = (PositionalRowWriter) RowWriter.of(Format.TSV, stream);
+		tsv.start();
+		tsv.columns(new String[] { "mvalue", "sname" });
+		tsv.write(new Object[] { 2, "a\tb\\c\nd" });
+		tsv.end();
+		stream.flush();
+		assertEquals(1, tsv.getCount());
+		assertEquals("mvalue\tsname\n2\ta\\tb\\\\c\\nd\n", out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testColumnarFormat() throws IOException {
+		assertEquals(Format.JSON, Format.get(null, "application/json"));
+		assertEquals(Format.COLUMNAR, Format.get("columnar", "application/json"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		PositionalRowWriter writer = (PositionalRowWriter) RowWriter.of(Format.COLUMNAR, stream);
+		writer.start();
+		writer.columns(new String[] { "mvalue", "sname" });
+		writer.write(new Object[] { 1, "a" });
+		writer.write(new Object[] { null, "b" });
+		writer.end();
+		stream.flush();
+		assertEquals("{\"columns\":[\"mvalue\",\"sname\"],\"rows\":[[1,\"a\"],[null,\"b\"]]}", out.toString(StandardCharsets.UTF_8));
+
+		out.reset();
+		writer = (PositionalRowWriter) RowWriter.of(Format.COLUMNAR, stream);
+		writer.start();
+		writer.end();
+		stream.flush();
+		assertEquals("{\"columns\":[],\"rows\":[]}", out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testArrowFormat() throws IOException, SQLException {
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(3);
+		when(metaData.getColumnLabel(1)).thenReturn("mvalue_double");
+		when(metaData.getColumnType(1)).thenReturn(Types.DOUBLE);
+		when(metaData.getColumnTypeName(1)).thenReturn("float8");
+		when(metaData.getColumnLabel(2)).thenReturn("scode");
+		when(metaData.getColumnType(2)).thenReturn(Types.VARCHAR);
+		when(metaData.getColumnTypeName(2)).thenReturn("varchar");
+		when(metaData.getColumnLabel(3)).thenReturn("mvalidtime");
+		when(metaData.getColumnType(3)).thenReturn(Types.TIMESTAMP);
+		when(metaData.getColumnTypeName(3)).thenReturn("timestamp");
+
+		/*
+		 * Enough rows for several batches, whose codes repeat first and then grow the
+		 * dictionary with deltas, until it gets replaced after 65536 values. A proxy
+		 * instead of a mock, which would be too slow for that many rows.
+		 */
+		int count = 80000;
+		int[] row = { 0 };
+		ResultSet rs = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+				new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getDouble":
+							return row[0] * 0.5;
+						case "wasNull":
+							return row[0] % 7 == 3;
+						case "getString":
+							return row[0] % 11 == 5 ? null : arrowCode(row[0]);
+						case "getTimestamp":
+							return row[0] % 13 == 4 ? null : Timestamp.from(Instant.ofEpochSecond(1700000000L + row[0], 2000));
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 4096);
+		/* Typed formats have no writer for rows as maps, and the other way round */
+		assertThrows(IllegalArgumentException.class, () -> RowWriter.of(Format.ARROW, stream));
+		assertThrows(IllegalArgumentException.class, () -> ResultSetWriter.of(Format.JSON, stream));
+		ResultSetWriter writer = ResultSetWriter.of(Format.ARROW, stream);
+		writer.start();
+		writer.columns(metaData);
+		for (row[0] = 0; row[0] < count; row[0]++) {
+			writer.write(rs);
+		}
+		writer.end();
+		stream.flush();
+		assertEquals(count, writer.getCount());
+
+		try (BufferAllocator allocator = new RootAllocator();
+				ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+			VectorSchemaRoot root = reader.getVectorSchemaRoot();
+			List<Field> fields = root.getSchema().getFields();
+			assertEquals(List.of("mvalue_double", "scode", "mvalidtime"), fields.stream().map(Field::getName).toList());
+			assertEquals(new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE), fields.get(0).getType());
+			assertEquals(new ArrowType.Int(32, true), fields.get(1).getType());
+			long dictionaryId = fields.get(1).getDictionary().getId();
+			assertEquals(new ArrowType.Utf8(), reader.getDictionaryVectors().get(dictionaryId).getVectorType());
+			assertEquals(new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC"), fields.get(2).getType());
+
+			int read = 0;
+			int batches = 0;
+			while (reader.loadNextBatch()) {
+				batches++;
+				Float8Vector mvalue = (Float8Vector) root.getVector(0);
+				IntVector scode = (IntVector) root.getVector(1);
+				TimeStampMicroTZVector mvalidtime = (TimeStampMicroTZVector) root.getVector(2);
+				Dictionary dictionary = reader.getDictionaryVectors().get(dictionaryId);
+				try (ValueVector codes = DictionaryEncoder.decode(scode, dictionary)) {
+					for (int i = 0; i < root.getRowCount(); i++, read++) {
+						if (read % 7 == 3) {
+							assertTrue(mvalue.isNull(i));
+						} else {
+							assertEquals(read * 0.5, mvalue.get(i));
+						}
+						assertEquals(read % 11 == 5 ? null : arrowCode(read),
+								codes.isNull(i) ? null : codes.getObject(i).toString());
+						if (read % 13 == 4) {
+							assertTrue(mvalidtime.isNull(i));
+						} else {
+							assertEquals((1700000000L + read) * 1_000_000 + 2, mvalidtime.get(i));
+						}
+					}
+				}
+			}
+			assertEquals(count, read);
+			assertEquals((count + 4095) / 4096, batches);
+		}
+
+		/* Without any row or column, there is still a schema */
+		out.reset();
+		writer = ResultSetWriter.of(Format.ARROW, stream);
+		writer.start();
+		writer.end();
+		stream.flush();
+		try (BufferAllocator allocator = new RootAllocator();
+				ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+			assertTrue(reader.getVectorSchemaRoot().getSchema().getFields().isEmpty());
+			assertFalse(reader.loadNextBatch());
+		}
+	}
+
+	/* Codes repeat within the first batch, and are all new after it */
+	private static String arrowCode(int row) {
+		return "station-" + (row < 4096 ? row % 100 : row);
+	}
+
+	@Test
+	public void testBinaryFormats() throws IOException {
+		assertEquals(Format.CBOR, Format.get(null, "application/cbor, application/json"));
+		assertTrue(Format.MSGPACK.supportsTrees() && !Format.CSV.supportsTrees());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStream stream = new JsonStream(out, 64);
+		RowWriter writer = RowWriter.of(Format.CBOR, stream);
+		writer.start();
+		writer.write(Map.of("a", 1.5));
+		writer.write(Map.of("b", new RawJson("[true,null,-2]")));
+		writer.end();
+		stream.flush();
+		assertEquals("9fa16161fb3ff8000000000000a1616283f5f621ff", HexFormat.of().formatHex(out.toByteArray()));
+
+		out.reset();
+		writer = RowWriter.of(Format.MSGPACK, stream);
+		writer.start();
+		writer.write(Map.of("a", 1.5));
+		writer.write(Map.of("b", new RawJson("[true,null,-2]")));
+		writer.end();
+		stream.flush();
+		assertEquals("9281a161cb3ff800000000000081a16293c3c0fe", HexFormat.of().formatHex(out.toByteArray()));
+
+		out.reset();
+		BinaryEncoder encoder = BinaryEncoder.of(Format.MSGPACK, out);
+		encoder.writeValue(-33L);
+		encoder.writeValue(70000);
+		encoder.writeValue("x".repeat(40));
+		assertEquals("d0dfd200011170d928" + "78".repeat(40), HexFormat.of().formatHex(out.toByteArray()));
+
+		out.reset();
+		encoder = BinaryEncoder.of(Format.CBOR, out);
+		encoder.writeValue(-33L);
+		encoder.writeValue(70000);
+		encoder.writeValue("x".repeat(40));
+		assertEquals("3820" + "1a00011170" + "7828" + "78".repeat(40), HexFormat.of().formatHex(out.toByteArray()));
+	}
+}
@@ -139,7 +139,7 @@ public class SelectExpansionTests {
 			return t.getChildCount() == 3 || t.getChildCount() == 4;
 		});
 
-		seOpenDataHub = new SelectExpansionConfig().getSelectExpansion();
+		seOpenDataHub = SelectExpansionConfig.newSelectExpansion();
 	}
 
 	@Test
@@ -483,4 +483,32 @@ public class SelectExpansionTests {
 		}
 	}
 
+	@Test
+	public void testSharedSchemaIsFrozenAndIsolated() {
+		SelectExpansion other = SelectExpansionConfig.newSelectExpansion();
+		assertTrue(seOpenDataHub.getSchema() == other.getSchema());
+		assertTrue(other.getSchema().isFrozen());
+
+		try {
+			other.getSchema().add(TargetDefList.init("foo"));
+			fail("Exception expected; a frozen schema cannot be changed");
+		} catch (RuntimeException e) {
+			assertEquals("A frozen schema cannot be changed", e.getMessage());
+		}
+
+		seOpenDataHub.setWhereClause("sname.eq.foo");
+		seOpenDataHub.expand("sname", "station");
+		other.setWhereClause(null);
+		other.expand("scode", "station");
+		assertEquals("(s.name = :pwhere_0)", seOpenDataHub.getWhereSql());
+		assertNull(other.getWhereSql());
+		assertEquals("s.name as sname", seOpenDataHub.getExpansion("station"));
+		assertEquals("s.stationcode as scode", other.getExpansion("station"));
+
+		/* Adding an operator must not leak into the shared operator table */
+		other.addOperator("STRING", "foo", "%c = %v");
+		assertTrue(other.getOperators().containsKey("STRING/FOO"));
+		assertTrue(!SelectExpansionConfig.newSelectExpansion().getOperators().containsKey("STRING/FOO"));
+	}
+
 }
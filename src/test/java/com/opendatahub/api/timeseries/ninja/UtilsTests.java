@@ -7,8 +7,14 @@ package com.opendatahub.api.timeseries.ninja;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import com.opendatahub.api.timeseries.ninja.utils.HistoryCursor;
 import com.opendatahub.api.timeseries.ninja.utils.Representation;
+import com.opendatahub.api.timeseries.ninja.utils.simpleexception.SimpleException;
 
 public class UtilsTests {
 
@@ -35,4 +41,17 @@ public class UtilsTests {
 		assertEquals(false, r.isEvent());
 	}
 
+	@Test
+	public void testHistoryCursor() {
+		HistoryCursor cursor = HistoryCursor.decode(new HistoryCursor("2024-01-15 10:30:00.123456+02", 42).encode());
+		assertEquals(OffsetDateTime.of(2024, 1, 15, 10, 30, 0, 123456000, ZoneOffset.ofHours(2)), cursor.getTimestamp());
+		assertEquals(42, cursor.getTimeseriesId());
+
+		cursor = HistoryCursor.decode(new HistoryCursor("2024-01-15 10:30:00+05:30", 7).encode());
+		assertEquals(OffsetDateTime.of(2024, 1, 15, 10, 30, 0, 0, ZoneOffset.ofHoursMinutes(5, 30)), cursor.getTimestamp());
+
+		assertThrows(SimpleException.class, () -> HistoryCursor.decode("not a cursor"));
+		assertThrows(SimpleException.class, () -> HistoryCursor.decode("MjAyNHw0Mg"));
+	}
+
 }